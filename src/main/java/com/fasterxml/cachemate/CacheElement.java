@@ -154,6 +154,52 @@ public interface CacheElement<K, V>
      */
     public CacheEntry<K,V> removeEntry(long currentTime, K key, int keyHash);
 
+    /*
+    /**********************************************************************
+    /* Public API, batch access
+    /**********************************************************************
+     */
+
+    /**
+     * Method for finding entries for multiple keys with a single call.
+     * Results are same as if {@link #findEntry(long, Object)} was called for
+     * each key, but implementations may perform per-call work (locking,
+     * invalidation of stale entries) just once per batch.
+     *
+     * @param currentTime Logical timestamp of point when this operation
+     *   occurs
+     * @param keys Keys of entries to find
+     * @param results Array in which to store found entries, at same index as
+     *   matching key; null for keys for which no entry was found
+     * @param count Number of keys (from the beginning of <code>keys</code>) to
+     *   find entries for
+     *
+     * @return Number of entries found
+     *
+     * @since 0.5.1
+     */
+    public int findEntries(long currentTime, K[] keys, CacheEntry<K,V>[] results, int count);
+
+    /**
+     * Method for putting multiple entries in this cache with a single call,
+     * using the default TTL.
+     * Results are same as if {@link #putEntry(long, Object, Object, int)} was called
+     * for each entry, but implementations may perform per-call work (locking,
+     * invalidation of stale entries) just once per batch.
+     *
+     * @param currentTime Logical timestamp of point when this operation
+     *   occurs
+     * @param keys Keys of entries to insert
+     * @param values Values of entries to insert
+     * @param weights Weights of entries to insert
+     * @param count Number of entries (from the beginning of arrays) to insert
+     *
+     * @return Number of entries that replaced an existing entry
+     *
+     * @since 0.5.1
+     */
+    public int putEntries(long currentTime, K[] keys, V[] values, int[] weights, int count);
+
     /**
      * Method for clearing up the cache by removing all entries.
      */
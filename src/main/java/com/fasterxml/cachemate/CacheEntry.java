@@ -41,14 +41,14 @@ public interface CacheEntry<K, V>
     /**********************************************************************
      */
     
-    /**
-     * Accessor for checking approximate age of the entry (in milliseconds)
-     * 
-     * @param currentTime Current time as reported by
-     *    {link {@link System#currentTimeMillis()}
-     *    
-     * @deprecated Since 0.5 replaced by {@link #getExpirationInMilliSeconds(long)}
-     */
+//    /**
+//     * Accessor for checking approximate age of the entry (in milliseconds)
+//     * 
+//     * @param currentTime Current time as reported by
+//     *    {link {@link System#currentTimeMillis()}
+//     *    
+//     * @deprecated Since 0.5 replaced by {@link #getExpirationInMilliSeconds(long)}
+//     */
 //    public long getAgeInMilliSeconds(long currentTime);
 
     /**
@@ -70,4 +70,16 @@ public interface CacheEntry<K, V>
      * @since 0.5.0
      */
     public long getExpirationInMilliSeconds(long currentTime);
+
+    /**
+     * Accessor for getting number of times this entry has been returned
+     * by lookups (not including the initial insertion), which may be used
+     * to determine how "hot" entry is.
+     * 
+     * Note that some backends may not keep track of this; if so, 0 is
+     * returned.
+     * 
+     * @since 0.5.1
+     */
+    public int getTimesReturned();
 }
@@ -6,9 +6,25 @@ package com.fasterxml.cachemate;
  */
 public class CacheStats
 {
-    protected final int _hits;
-    protected final int _misses;
-    protected final int _insertions;
+    protected final long _hits;
+    protected final long _misses;
+    protected final long _insertions;
+
+    /**
+     * Number of entries removed to make room for other entries
+     * (due to entry count or weight limits)
+     */
+    protected final long _evictions;
+
+    /**
+     * Number of entries removed because they had expired
+     */
+    protected final long _expirations;
+
+    /**
+     * Number of entries removed explicitly
+     */
+    protected final long _removals;
 
     protected final int _entryCount;
     protected final long _contentsWeight;
@@ -16,14 +32,26 @@ public class CacheStats
 
     protected final int _maxEntryCount;
     protected final long _maxTotalWeight;
-    
+
     public CacheStats(int hits, int misses, int insertions,
             int entryCount, long contentsWeight, long totalWeight,
             int maxEntryCount, long maxTotalWeight)
+    {
+        this(hits, misses, insertions, 0L, 0L, 0L,
+                entryCount, contentsWeight, totalWeight, maxEntryCount, maxTotalWeight);
+    }
+
+    public CacheStats(long hits, long misses, long insertions,
+            long evictions, long expirations, long removals,
+            int entryCount, long contentsWeight, long totalWeight,
+            int maxEntryCount, long maxTotalWeight)
     {
         _hits = hits;
         _misses = misses;
         _insertions = insertions;
+        _evictions = evictions;
+        _expirations = expirations;
+        _removals = removals;
         _entryCount = entryCount;
         _contentsWeight = contentsWeight;
         _totalWeight = totalWeight;
@@ -31,9 +59,14 @@ public class CacheStats
         _maxTotalWeight = maxTotalWeight;
     }
 
-    public int getHits() { return _hits; }
-    public int getMisses() { return _misses; }
-    public int getTotalGets() { return _hits + _misses; }
+    public long getHits() { return _hits; }
+    public long getMisses() { return _misses; }
+    public long getTotalGets() { return _hits + _misses; }
+    public long getInsertions() { return _insertions; }
+
+    public long getEvictions() { return _evictions; }
+    public long getExpirations() { return _expirations; }
+    public long getRemovals() { return _removals; }
 
     public int getEntryCount() { return _entryCount; }
     public long getContentsWeight() { return _contentsWeight; }
@@ -42,4 +75,27 @@ public class CacheStats
     public int getMaxEntryCount() { return _maxEntryCount; }
     public long getMaxTotalWeight() { return _maxTotalWeight; }
 
-}
\ No newline at end of file
+    /**
+     * Method for calculating ratio of hits to all lookups; 0.0 if
+     * there have been no lookups.
+     */
+    public double getHitRatio() {
+        long total = getTotalGets();
+        return (total == 0L) ? 0.0 : ((double) _hits / (double) total);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(100)
+            .append("[hits=").append(_hits)
+            .append(", misses=").append(_misses)
+            .append(", insertions=").append(_insertions)
+            .append(", evictions=").append(_evictions)
+            .append(", expirations=").append(_expirations)
+            .append(", removals=").append(_removals)
+            .append(", entries=").append(_entryCount).append('/').append(_maxEntryCount)
+            .append(", weight=").append(_contentsWeight).append('/').append(_totalWeight)
+            .append('/').append(_maxTotalWeight)
+            .append(']').toString();
+    }
+}
@@ -0,0 +1,27 @@
+package com.fasterxml.cachemate.loading;
+
+/**
+ * Object used by {@link LoadingCache} for loading values that are
+ * missing from the cache, usually from a slower backing store.
+ *
+ * @param <K> Type of keys values are loaded for
+ * @param <V> Type of values loaded
+ */
+public abstract class CacheLoader<K, V>
+{
+    /**
+     * Method called to load value for given key.
+     *
+     * @return Value for the key, if one exists; null if not (in which
+     *   case nothing is cached)
+     *
+     * @throws Exception If load fails for any reason
+     */
+    public abstract V load(K key) throws Exception;
+
+    /**
+     * Method called to calculate weight of a loaded entry, to be
+     * used when inserting it in the cache element.
+     */
+    public abstract int weightOf(K key, V value);
+}
@@ -0,0 +1,464 @@
+package com.fasterxml.cachemate.loading;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.fasterxml.cachemate.CacheElement;
+import com.fasterxml.cachemate.CacheEntry;
+import com.fasterxml.cachemate.converters.KeyConverter;
+
+/**
+ * Facade over a {@link CacheElement} that loads values missing from the
+ * cache using a {@link CacheLoader}, and inserts them in the element.
+ * Loads are deduplicated ("single-flight"): if multiple threads miss on
+ * the same key concurrently, only one of them loads the value, and others
+ * wait for that load to complete and return its result.
+ *<p>
+ * Since calls may be made concurrently, underlying cache element must be
+ * safe for concurrent access, such as
+ * {@link com.fasterxml.cachemate.pojo.StripedPOJOCacheElement}.
+ *<p>
+ * By default load failures are not cached: every lookup after a failed
+ * load will try loading again (although concurrent lookups still share
+ * a single attempt). Optionally failures may be cached for a fixed
+ * amount of time, to protect a failing backend from repeated loads.
+ *<p>
+ * Optionally "refresh-ahead" may be enabled (see {@link #enableRefreshAhead}):
+ * if so, hits on "hot" entries that are close to expiring return the current
+ * value, but also trigger asynchronous reload of the entry; this
+ * avoids latency spikes caused by popular entries expiring.
+ *
+ * @param <K> Type of keys cache contains
+ * @param <V> Type of values cache contains
+ */
+public class LoadingCache<K, V>
+{
+    /**
+     * Maximum number of failures to keep track of, if failures are cached;
+     * failures that occur when this many are already being kept are not cached.
+     */
+    protected final static int MAX_CACHED_FAILURES = 1000;
+
+    /*
+    /**********************************************************************
+    /* Configuration
+    /**********************************************************************
+     */
+
+    protected final CacheElement<K, V> _element;
+
+    protected final KeyConverter<K> _keyConverter;
+
+    /**
+     * Length of time (in milliseconds) failures are cached for; 0 if they are
+     * not to be cached.
+     */
+    protected final long _failureTimeToLiveMsecs;
+
+    /**
+     * Time source used for inserting loaded entries (and caching failures),
+     * since loads may take a while to complete.
+     */
+    protected final TimeSource _timeSource;
+
+    /**
+     * Executor used for running refresh-ahead reloads, if refresh-ahead
+     * is enabled; null if not.
+     */
+    protected Executor _refreshExecutor;
+
+    /**
+     * Time-to-live (in seconds) that loaded entries are inserted with,
+     * if refresh-ahead is enabled; refresh window is based on it.
+     */
+    protected int _refreshTimeToLiveSecs;
+
+    /**
+     * Length of time (in milliseconds) before expiration during which
+     * hits may trigger refresh-ahead.
+     */
+    protected long _refreshAheadMsecs;
+
+    /**
+     * Minimum number of times an entry must have been returned, for
+     * it to be refreshed ahead of expiration.
+     */
+    protected int _refreshMinTimesReturned;
+
+    /*
+    /**********************************************************************
+    /* State
+    /**********************************************************************
+     */
+
+    /**
+     * Loads that are currently in progress
+     */
+    protected final ConcurrentHashMap<Key<K>, InFlightLoad<V>> _inFlight;
+
+    /**
+     * Failures of recent loads, if failures are cached; null if not
+     */
+    protected final ConcurrentHashMap<Key<K>, CachedFailure> _failures;
+
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    /**
+     * @param keyConverter Converter used for hashing and comparing keys; should
+     *   be the same as used by the cache element
+     */
+    public LoadingCache(CacheElement<K, V> element, KeyConverter<K> keyConverter)
+    {
+        this(element, keyConverter, 0L);
+    }
+
+    /**
+     * @param keyConverter Converter used for hashing and comparing keys; should
+     *   be the same as used by the cache element
+     * @param failureTimeToLiveMsecs Length of time load failures are cached for,
+     *   in milliseconds; 0 means that failures are not cached
+     */
+    public LoadingCache(CacheElement<K, V> element, KeyConverter<K> keyConverter,
+            long failureTimeToLiveMsecs)
+    {
+        this(element, keyConverter, failureTimeToLiveMsecs, TimeSource.SYSTEM);
+    }
+
+    /**
+     * @param keyConverter Converter used for hashing and comparing keys; should
+     *   be the same as used by the cache element
+     * @param failureTimeToLiveMsecs Length of time load failures are cached for,
+     *   in milliseconds; 0 means that failures are not cached
+     * @param timeSource Source of current time to use when loads complete;
+     *   needs to be consistent with "current time" passed to other methods,
+     *   usually {@link TimeSource#SYSTEM}
+     */
+    public LoadingCache(CacheElement<K, V> element, KeyConverter<K> keyConverter,
+            long failureTimeToLiveMsecs, TimeSource timeSource)
+    {
+        _element = element;
+        _keyConverter = keyConverter;
+        _failureTimeToLiveMsecs = failureTimeToLiveMsecs;
+        _timeSource = timeSource;
+        _inFlight = new ConcurrentHashMap<Key<K>, InFlightLoad<V>>();
+        _failures = (failureTimeToLiveMsecs > 0L) ? new ConcurrentHashMap<Key<K>, CachedFailure>() : null;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    public CacheElement<K, V> getCacheElement() {
+        return _element;
+    }
+
+    /**
+     * Method for enabling refresh-ahead of entries: when an entry that has been
+     * returned at least <code>minTimesReturned</code> times is found, and it
+     * will expire within <code>refreshFraction</code> of its time-to-live,
+     * a reload is started using given executor. All loaded entries are inserted
+     * using given <code>timeToLiveSecs</code>, so that refresh window is
+     * consistent with actual expiration time of entries. Reloaded value replaces
+     * the existing entry once loaded; until then, existing value is returned.
+     * Failed reloads are ignored (entry is simply loaded again, if needed,
+     * after it expires).
+     *<p>
+     * Needs to be called before cache is used by other threads.
+     * Note that only cache elements that keep track of
+     * {@link CacheEntry#getTimesReturned} support refresh-ahead if
+     * <code>minTimesReturned</code> is above 0.
+     *
+     * @param timeToLiveSecs Time-to-live to insert loaded (and reloaded) entries
+     *   with; refresh window is calculated from it
+     * @param refreshFraction Fraction of time-to-live (between 0.0 and 1.0)
+     *   before expiration, during which hits trigger reload
+     * @param minTimesReturned Minimum number of times entry must have been
+     *   returned by lookups, to be refreshed
+     */
+    public void enableRefreshAhead(Executor executor, int timeToLiveSecs,
+            double refreshFraction, int minTimesReturned)
+    {
+        if (refreshFraction < 0.0 || refreshFraction > 1.0) {
+            throw new IllegalArgumentException("Invalid refreshFraction ("+refreshFraction+"): must be between 0.0 and 1.0");
+        }
+        _refreshExecutor = executor;
+        _refreshTimeToLiveSecs = timeToLiveSecs;
+        _refreshAheadMsecs = (long) (timeToLiveSecs * 1000L * refreshFraction);
+        _refreshMinTimesReturned = minTimesReturned;
+    }
+
+    public boolean usesRefreshAhead() {
+        return _refreshExecutor != null;
+    }
+
+    /**
+     * Method for finding value for given key from the cache element; or, if
+     * none found, loading it using given loader (or waiting for a concurrent
+     * load of the same key to complete), and inserting into the element.
+     *
+     * @param currentTime Logical timestamp of point when this operation
+     *   occurs; usually system time, but may be different for tests
+     *
+     * @return Value for the key, if any; null if loader returned null
+     *
+     * @throws ExecutionException If load (either by this thread, or by a concurrent
+     *   one this thread waited for) failed, or if a cached failure exists;
+     *   underlying problem is available as the cause
+     * @throws InterruptedException If thread was interrupted while waiting
+     *   for a concurrent load to complete
+     */
+    public V getOrLoad(long currentTime, K key, CacheLoader<K, V> loader)
+        throws ExecutionException, InterruptedException
+    {
+        final int keyHash = _keyConverter.keyHash(key);
+        CacheEntry<K, V> entry = _element.findEntry(currentTime, key, keyHash);
+        if (entry != null) {
+            if (_refreshExecutor != null) {
+                _checkRefresh(currentTime, entry, loader);
+            }
+            return entry.getValue();
+        }
+        final Key<K> lookupKey = new Key<K>(_keyConverter, key, keyHash);
+        if (_failures != null) {
+            _checkFailure(currentTime, lookupKey);
+        }
+        final InFlightLoad<V> load = new InFlightLoad<V>();
+        InFlightLoad<V> existing = _inFlight.putIfAbsent(lookupKey, load);
+        if (existing != null) {
+            return existing.await();
+        }
+        return _load(currentTime, key, keyHash, lookupKey, load, loader, false);
+    }
+
+    /**
+     * Method for checking how many loads are currently in progress
+     */
+    public int getLoadsInFlight() {
+        return _inFlight.size();
+    }
+
+    /**
+     * Method for removing all cached failures, if any.
+     */
+    public void clearFailures()
+    {
+        if (_failures != null) {
+            _failures.clear();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method for loading value for given key, and inserting it in the cache
+     * element; and then completing given in-flight load (which caller
+     * has registered).
+     *
+     * @param currentTime Time of the lookup that triggered load; loaded value is
+     *   inserted using time at which load completes (from {@link #_timeSource}),
+     *   since load may take a while
+     * @param refresh Whether this is a refresh-ahead reload (in which case existing
+     *   entry is replaced) or not (in which case existing entry is used as is)
+     */
+    protected V _load(long currentTime, K key, int keyHash, Key<K> lookupKey,
+            InFlightLoad<V> load, CacheLoader<K, V> loader, boolean refresh)
+        throws ExecutionException
+    {
+        V value = null;
+        Throwable failure = null;
+        try {
+            /* Need to re-check, since a load may have completed between our
+             * lookup and registration of this load
+             */
+            CacheEntry<K, V> entry = refresh ? null : _element.findEntry(currentTime, key, keyHash);
+            if (entry != null) {
+                value = entry.getValue();
+            } else {
+                value = loader.load(key);
+                // load may have taken a while (or reload been triggered a while ago, by a lookup)
+                final long insertTime = _timeSource.currentTimeMillis();
+                if (value != null) {
+                    final int weight = loader.weightOf(key, value);
+                    if (_refreshExecutor != null) { // TTL must match that refresh window is based on
+                        _element.putEntry(insertTime, _refreshTimeToLiveSecs, key, keyHash, value, weight);
+                    } else {
+                        _element.putEntry(insertTime, key, keyHash, value, weight);
+                    }
+                } else if (refresh) { // value is gone, so should not keep returning old one
+                    _element.removeEntry(insertTime, key, keyHash);
+                }
+            }
+        } catch (Throwable t) {
+            failure = t;
+            if (_failures != null && !refresh) {
+                _cacheFailure(_timeSource.currentTimeMillis(), lookupKey, t);
+            }
+        } finally {
+            // must complete before removal, so that no waiter is left hanging
+            load.complete(value, failure);
+            _inFlight.remove(lookupKey, load);
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+    /**
+     * Method called on hits when refresh-ahead is enabled, to check whether
+     * entry should be reloaded; and if so, to start a reload, unless one is
+     * already in progress.
+     */
+    protected void _checkRefresh(final long currentTime, CacheEntry<K, V> entry,
+            final CacheLoader<K, V> loader)
+    {
+        if ((entry.getTimesReturned() < _refreshMinTimesReturned)
+                || (entry.getExpirationInMilliSeconds(currentTime) > _refreshAheadMsecs)) {
+            return;
+        }
+        final K key = entry.getKey();
+        final int keyHash = entry.getKeyHash();
+        final Key<K> lookupKey = new Key<K>(_keyConverter, key, keyHash);
+        final InFlightLoad<V> load = new InFlightLoad<V>();
+        if (_inFlight.putIfAbsent(lookupKey, load) != null) { // already being (re)loaded
+            return;
+        }
+        try {
+            _refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        _load(currentTime, key, keyHash, lookupKey, load, loader, true);
+                    } catch (ExecutionException e) {
+                        // ignore: existing entry remains until it expires
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // can not refresh now; but may try again on next hit
+            load.complete(entry.getValue(), null);
+            _inFlight.remove(lookupKey, load);
+        }
+    }
+
+    protected void _checkFailure(long currentTime, Key<K> key)
+        throws ExecutionException
+    {
+        CachedFailure failure = _failures.get(key);
+        if (failure != null) {
+            if (failure.expiresAt > currentTime) {
+                throw new ExecutionException(failure.cause);
+            }
+            _failures.remove(key, failure);
+        }
+    }
+
+    protected void _cacheFailure(long currentTime, Key<K> key, Throwable cause)
+    {
+        if (_failures.size() >= MAX_CACHED_FAILURES) {
+            // try to make room by removing expired failures; if none, do not cache
+            Iterator<CachedFailure> it = _failures.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().expiresAt <= currentTime) {
+                    it.remove();
+                }
+            }
+            if (_failures.size() >= MAX_CACHED_FAILURES) {
+                return;
+            }
+        }
+        _failures.put(key, new CachedFailure(cause, currentTime + _failureTimeToLiveMsecs));
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Wrapper for keys, needed since keys themselves need not implement
+     * <code>equals</code> and <code>hashCode</code> (byte arrays do not).
+     */
+    protected final static class Key<K>
+    {
+        protected final KeyConverter<K> _converter;
+        protected final K _key;
+        protected final int _hash;
+
+        public Key(KeyConverter<K> converter, K key, int hash)
+        {
+            _converter = converter;
+            _key = key;
+            _hash = hash;
+        }
+
+        @Override
+        public int hashCode() { return _hash; }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public boolean equals(Object o)
+        {
+            if (o == this) return true;
+            if (o == null || o.getClass() != getClass()) return false;
+            Key<K> other = (Key<K>) o;
+            return (other._hash == _hash) && _converter.keysEqual(_key, other._key);
+        }
+    }
+
+    /**
+     * Container for state of a single load that is in progress; threads that
+     * need the value wait for the latch to be released.
+     */
+    protected final static class InFlightLoad<V>
+    {
+        protected final CountDownLatch _latch = new CountDownLatch(1);
+
+        // no need for volatile, latch guarantees visibility
+        protected V _value;
+        protected Throwable _failure;
+
+        public void complete(V value, Throwable failure)
+        {
+            _value = value;
+            _failure = failure;
+            _latch.countDown();
+        }
+
+        public V await() throws ExecutionException, InterruptedException
+        {
+            _latch.await();
+            if (_failure != null) {
+                throw new ExecutionException(_failure);
+            }
+            return _value;
+        }
+    }
+
+    protected final static class CachedFailure
+    {
+        public final Throwable cause;
+        public final long expiresAt;
+
+        public CachedFailure(Throwable cause, long expiresAt)
+        {
+            this.cause = cause;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.fasterxml.cachemate.loading;
+
+/**
+ * Object used by {@link LoadingCache} for getting current time for
+ * operations that are not directly triggered by calls to it, such as
+ * completion of asynchronous refresh-ahead reloads.
+ *<p>
+ * Time is expected to use the same units and base as the "current time"
+ * passed to cache methods: usually system time in milliseconds, as returned
+ * by {@link #SYSTEM}, but tests may use a different logical time.
+ */
+public abstract class TimeSource
+{
+    /**
+     * Time source that returns system time, using {@link System#currentTimeMillis}
+     */
+    public final static TimeSource SYSTEM = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Method called to get current time, in milliseconds
+     */
+    public abstract long currentTimeMillis();
+}
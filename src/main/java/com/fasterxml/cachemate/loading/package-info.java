@@ -0,0 +1,5 @@
+/**
+ * Package that contains facades that add loading of missing entries
+ * on top of {@link com.fasterxml.cachemate.CacheElement}s.
+ */
+package com.fasterxml.cachemate.loading;
@@ -0,0 +1,903 @@
+package com.fasterxml.cachemate.pojo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.cachemate.CacheElement;
+import com.fasterxml.cachemate.CacheEntry;
+import com.fasterxml.cachemate.CacheStats;
+import com.fasterxml.cachemate.converters.KeyConverter;
+import com.fasterxml.cachemate.util.PlatformConstants;
+import com.fasterxml.cachemate.util.TimeUtil;
+
+/**
+ * Alternative to {@link POJOCacheElement} that does not use an object
+ * per entry: instead, entry data is stored in parallel arrays
+ * ("struct of arrays"), so that keys and values are in <code>Object[]</code>s,
+ * and hash collision, insertion-order and LRU links are <code>int</code> indexes
+ * within <code>int[]</code>s. Slots of removed entries are reused, using
+ * a free list.
+ *<p>
+ * This reduces per-entry memory overhead (no object headers, 4-byte
+ * links), and greatly reduces the number of objects garbage collector has
+ * to trace for large caches. The trade-off is that this element has
+ * some limitations compared to {@link POJOCacheElement}:
+ *<ul>
+ * <li>Returned entries are snapshots constructed on demand
+ *   ({@link CompactPOJOCacheEntry}), so every hit allocates an object
+ *  </li>
+ * <li>Stale entries are removed in insertion order (as well as when found
+ *   on lookup), without a timer wheel: so with per-entry TTLs, an entry
+ *   with short TTL is not removed before older entries with longer TTL
+ *   expire (although it is never returned once stale)
+ *  </li>
+ * <li>Access counts are not kept, so {@link CacheEntry#getTimesReturned}
+ *   always returns 0 (and refresh-ahead of
+ *   {@link com.fasterxml.cachemate.loading.LoadingCache} that requires
+ *   minimum access count does not work)
+ *  </li>
+ *</ul>
+ *<p>
+ * Arrays are grown (by doubling) as needed, up to maximum entry count;
+ * they are not shrunk when entries are removed. Removal of all entries is
+ * done in constant time, using generations similar to {@link POJOCacheElement}:
+ * slots of earlier generations are unlinked and freed lazily.
+ *
+ * @param <K> Type of keys cache element contains
+ * @param <V> Type of values cache element containts
+ */
+public class CompactPOJOCacheElement<K, V>
+    implements CacheElement<K, V>
+{
+    /**
+     * Marker used for "null" links
+     */
+    protected final static int NULL_INDEX = -1;
+
+    /**
+     * Number of slots to allocate initially (unless maximum entry count is lower)
+     */
+    protected final static int INITIAL_CAPACITY = 16;
+
+    /**
+     * Estimated memory usage of a single slot: 2 references, 9 ints, and
+     * the share of hash area.
+     */
+    public final static int MEM_USAGE_PER_SLOT = 12 * PlatformConstants.BASE_FIELD_MEMORY_USAGE;
+
+    /**
+     * Rough estimate of fixed overhead: instance fields, and headers of
+     * 12 arrays.
+     */
+    private final static int BASE_MEM_USAGE = PlatformConstants.BASE_OBJECT_MEMORY_USAGE
+        + (42 * PlatformConstants.BASE_FIELD_MEMORY_USAGE)
+        + (12 * PlatformConstants.BASE_OBJECT_MEMORY_USAGE);
+
+    /*
+    /**********************************************************************
+    /* Configuration
+    /**********************************************************************
+     */
+
+    protected final KeyConverter<K> _keyConverter;
+
+    /**
+     * Maximum number of entries that can be stored in the cache
+     */
+    protected final int _maxEntries;
+
+    /**
+     * Maximum weight (approximate size) of all entries cache can contain.
+     */
+    protected final long _maxContentsWeight;
+
+    /**
+     * Default length of time entries will remain non-stale in cache after being inserted;
+     * measured in units of 256 milliseconds (about quarter of a second).
+     */
+    protected int _configTimeToLive;
+
+    protected int _configInvalidatePerGet = 1;
+
+    protected int _configInvalidatePerInsert = 4;
+
+    /*
+    /**********************************************************************
+    /* Entry data, one slot per entry
+    /**********************************************************************
+     */
+
+    protected Object[] _keys;
+
+    protected Object[] _values;
+
+    protected int[] _keyHashes;
+
+    /**
+     * Expiration times, in units of 256 milliseconds
+     */
+    protected int[] _expirationTimes;
+
+    protected int[] _weights;
+
+    /**
+     * Links to next slot in hash collision chain; for free slots, next
+     * slot in the free list.
+     */
+    protected int[] _nextInChain;
+
+    protected int[] _newerLinks;
+
+    protected int[] _olderLinks;
+
+    protected int[] _moreRecentLinks;
+
+    protected int[] _lessRecentLinks;
+
+    /**
+     * Generation each slot was allocated in; slots of earlier generations
+     * are considered removed
+     */
+    protected int[] _generations;
+
+    /*
+    /**********************************************************************
+    /* Hash area, slot allocation
+    /**********************************************************************
+     */
+
+    /**
+     * Hash area: index of the first slot of collision chain, for each bucket
+     */
+    protected int[] _buckets;
+
+    /**
+     * Number of slots that have been used so far; slots at and beyond
+     * this index have never been used.
+     */
+    protected int _slotsUsed;
+
+    /**
+     * First slot in the list of free (reusable) slots, if any
+     */
+    protected int _freeHead = NULL_INDEX;
+
+    /**
+     * Current generation of entries: incremented when all entries are
+     * removed (see {@link #removeAll}).
+     */
+    protected int _generation;
+
+    /**
+     * Index of the next bucket to sweep for slots of earlier generations;
+     * -1 if sweeping is not needed.
+     */
+    protected int _sweepIndex = -1;
+
+    /*
+    /**********************************************************************
+    /* Information on current contents
+    /**********************************************************************
+     */
+
+    protected int _currentEntries;
+
+    protected long _currentContentsWeight;
+
+    protected int _oldest = NULL_INDEX;
+
+    protected int _newest = NULL_INDEX;
+
+    protected int _leastRecent = NULL_INDEX;
+
+    protected int _mostRecent = NULL_INDEX;
+
+    /*
+    /**********************************************************************
+    /* Statistics
+    /**********************************************************************
+     */
+
+    protected long _hitCount;
+
+    protected long _missCount;
+
+    protected long _insertCount;
+
+    protected long _evictionCount;
+
+    protected long _expirationCount;
+
+    protected long _removalCount;
+
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    /**
+     * @param timeToLiveSecs Amount of time entries will remain fresh (non-stale) in
+     *   cache; in seconds.
+     */
+    public CompactPOJOCacheElement(KeyConverter<K> keyConverter,
+            int maxEntries, long maxWeight,
+            int timeToLiveSecs)
+    {
+        _keyConverter = keyConverter;
+        _maxEntries = maxEntries;
+        _configTimeToLive = TimeUtil.secondsToInternal(timeToLiveSecs);
+        _allocate(Math.min(maxEntries, INITIAL_CAPACITY));
+        _maxContentsWeight = maxWeight - BASE_MEM_USAGE - ((long) maxEntries * MEM_USAGE_PER_SLOT);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, config access
+    /**********************************************************************
+     */
+
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+
+    /**
+     * Accessor for checking number of entries arrays can currently hold
+     * without growing.
+     */
+    public int getCapacity() {
+        return _keys.length;
+    }
+
+    public int getConfigInvalidatePerGet() {
+        return _configInvalidatePerGet;
+    }
+
+    public void setConfigInvalidatePerGet(int value) {
+        _configInvalidatePerGet = value;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public methods: put, find, remove
+    /**********************************************************************
+     */
+
+    @Override
+    public final CompactPOJOCacheEntry<K,V> putEntry(long currentTime, K key, V value, int weight) {
+        return _putEntry(currentTime, _configTimeToLive, key, _keyConverter.keyHash(key), value, weight);
+    }
+
+    @Override
+    public final CompactPOJOCacheEntry<K,V> putEntry(long currentTime, int timeToLiveSecs,
+            K key, V value, int weight) {
+        return _putEntry(currentTime, TimeUtil.secondsToInternal(timeToLiveSecs),
+                key, _keyConverter.keyHash(key), value, weight);
+    }
+
+    @Override
+    public final CompactPOJOCacheEntry<K,V> putEntry(long currentTime,
+            K key, int keyHash, V value, int weight) {
+        return _putEntry(currentTime, _configTimeToLive, key, keyHash, value, weight);
+    }
+
+    @Override
+    public final CompactPOJOCacheEntry<K,V> putEntry(long currentTime, int timeToLiveSecs,
+            K key, int keyHash, V value, int weight) {
+        return _putEntry(currentTime, TimeUtil.secondsToInternal(timeToLiveSecs),
+                key, keyHash, value, weight);
+    }
+
+    @Override
+    public final CompactPOJOCacheEntry<K,V> findEntry(long currentTime, K key) {
+        return findEntry(currentTime, key, _keyConverter.keyHash(key));
+    }
+
+    @Override
+    public final CompactPOJOCacheEntry<K,V> findEntry(long currentTime, K key, int keyHash)
+    {
+        final int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+        CompactPOJOCacheEntry<K,V> result = _findEntry(key, keyHash, currTimeInQ);
+        int count = _configInvalidatePerGet;
+        while (count > 0 && _invalidateOldestIfStale(currTimeInQ)) {
+            --count;
+        }
+        return result;
+    }
+
+    @Override
+    public final CompactPOJOCacheEntry<K,V> removeEntry(long currentTime, K key) {
+        return removeEntry(currentTime, key, _keyConverter.keyHash(key));
+    }
+
+    @Override
+    public final CompactPOJOCacheEntry<K,V> removeEntry(long currentTime, K key, int keyHash)
+    {
+        CompactPOJOCacheEntry<K,V> result = null;
+        int slot = _findSlot(key, keyHash);
+        if (slot != NULL_INDEX) {
+            result = _snapshot(slot);
+            _removeSlot(slot);
+            ++_removalCount;
+        }
+        int count = _configInvalidatePerInsert;
+        if (count > 0) {
+            int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+            do {
+                if (!_invalidateOldestIfStale(currTimeInQ)) {
+                    break;
+                }
+            } while (--count > 0);
+        }
+        return result;
+    }
+
+    @Override
+    public int findEntries(long currentTime, K[] keys, CacheEntry<K,V>[] results, int count)
+    {
+        final int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+        int found = 0;
+        for (int i = 0; i < count; ++i) {
+            K key = keys[i];
+            CompactPOJOCacheEntry<K,V> entry = _findEntry(key, _keyConverter.keyHash(key), currTimeInQ);
+            results[i] = entry;
+            if (entry != null) {
+                ++found;
+            }
+        }
+        // stale entries are cleaned up once per batch, not once per key
+        int toInvalidate = _configInvalidatePerGet;
+        while (toInvalidate > 0 && _invalidateOldestIfStale(currTimeInQ)) {
+            --toInvalidate;
+        }
+        return found;
+    }
+
+    @Override
+    public int putEntries(long currentTime, K[] keys, V[] values, int[] weights, int count)
+    {
+        int replaced = 0;
+        for (int i = 0; i < count; ++i) {
+            K key = keys[i];
+            if (_putEntry(currentTime, _configTimeToLive, key, _keyConverter.keyHash(key),
+                    values[i], weights[i], 0) != null) {
+                ++replaced;
+            }
+        }
+        int toInvalidate = _configInvalidatePerInsert;
+        if (toInvalidate > 0) {
+            int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+            while (toInvalidate > 0 && _invalidateOldestIfStale(currTimeInQ)) {
+                --toInvalidate;
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Removal of all entries is done in constant time, by starting a new
+     * generation: slots of earlier generations are ignored, and unlinked from
+     * hash area (and freed) lazily, a few buckets at a time, by subsequent
+     * operations.
+     */
+    @Override
+    public void removeAll()
+    {
+        ++_generation;
+        _sweepIndex = 0;
+        _oldest = _newest = NULL_INDEX;
+        _leastRecent = _mostRecent = NULL_INDEX;
+        _currentEntries = 0;
+        _currentContentsWeight = 0L;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public methods, invalidation
+    /**********************************************************************
+     */
+
+    @Override
+    public final int invalidateStale(long currentTimeMsecs) {
+        return invalidateStale(currentTimeMsecs, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public final int invalidateStale(long currentTimeMsecs, int maxToInvalidate)
+    {
+        int count = 0;
+        int currInQ = TimeUtil.timeToTimestamp(currentTimeMsecs);
+        while (count < maxToInvalidate && _invalidateOldestIfStale(currInQ)) {
+            ++count;
+        }
+        return count;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, stats
+    /**********************************************************************
+     */
+
+    @Override
+    public final int size() {
+        return _currentEntries;
+    }
+
+    @Override
+    public final long contentsWeight() {
+        return _currentContentsWeight;
+    }
+
+    public long maxContentsWeight() {
+        return _maxContentsWeight;
+    }
+
+    @Override
+    public long weight() {
+        return BASE_MEM_USAGE + _currentContentsWeight
+            + ((long) _keys.length * MEM_USAGE_PER_SLOT);
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return new CacheStats(_hitCount, _missCount, _insertCount,
+                _evictionCount, _expirationCount, _removalCount,
+                size(), contentsWeight(), weight(),
+                _maxEntries, maxContentsWeight());
+    }
+
+    @Override
+    public final void clearStats()
+    {
+        _hitCount = 0L;
+        _missCount = 0L;
+        _insertCount = 0L;
+        _evictionCount = 0L;
+        _expirationCount = 0L;
+        _removalCount = 0L;
+    }
+
+    @Override
+    public final void decayStats(double ratio)
+    {
+        _hitCount = (long) (_hitCount * ratio);
+        _missCount = (long) (_missCount * ratio);
+        _insertCount = (long) (_insertCount * ratio);
+        _evictionCount = (long) (_evictionCount * ratio);
+        _expirationCount = (long) (_expirationCount * ratio);
+        _removalCount = (long) (_removalCount * ratio);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, put/find/remove
+    /**********************************************************************
+     */
+
+    protected final CompactPOJOCacheEntry<K,V> _findEntry(K key, int keyHash, int currTimeInQ)
+    {
+        CompactPOJOCacheEntry<K,V> result = null;
+        int slot = _findSlot(key, keyHash);
+        if (slot != NULL_INDEX) {
+            if (_expired(slot, currTimeInQ)) {
+                _removeSlot(slot);
+                ++_expirationCount;
+            } else {
+                _markAsMostRecent(slot);
+                result = _snapshot(slot);
+            }
+        }
+        if (result == null) {
+            ++_missCount;
+        } else {
+            ++_hitCount;
+        }
+        return result;
+    }
+
+    protected CompactPOJOCacheEntry<K,V> _putEntry(long currentTime, int timeToLiveQ,
+            K key, int keyHash, V value, int weight)
+    {
+        return _putEntry(currentTime, timeToLiveQ, key, keyHash, value, weight,
+                _configInvalidatePerInsert);
+    }
+
+    /**
+     * @param staleToInvalidate Maximum number of stale entries to invalidate
+     *   before insertion (more may be removed if needed to stay within limits)
+     */
+    protected final CompactPOJOCacheEntry<K,V> _putEntry(long currentTime, int timeToLiveQ,
+            K key, int keyHash, V value, int weight, int staleToInvalidate)
+    {
+        CompactPOJOCacheEntry<K,V> existing = null;
+        int slot = _findSlot(key, keyHash);
+        if (slot != NULL_INDEX) {
+            existing = _snapshot(slot);
+            _removeSlot(slot);
+        }
+        // no room for any entries? Same as if entry was inserted and evicted right away
+        if (_maxEntries <= 0) {
+            ++_insertCount;
+            ++_evictionCount;
+            return existing;
+        }
+        final int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+        // First things first: get rid of stale entries; and if still full, LRU entries
+        int count = staleToInvalidate;
+        while ((count > 0) || (_currentEntries >= _maxEntries)) {
+            if (!_invalidateOldestIfStale(currTimeInQ)) {
+                break;
+            }
+            --count;
+        }
+        while (_currentEntries >= _maxEntries) {
+            _removeSlot(_leastRecent);
+            ++_evictionCount;
+        }
+        slot = _allocateSlot();
+        _generations[slot] = _generation;
+        _keys[slot] = key;
+        _values[slot] = value;
+        _keyHashes[slot] = keyHash;
+        _expirationTimes[slot] = currTimeInQ + timeToLiveQ;
+        _weights[slot] = weight;
+
+        // link in hash area
+        int index = keyHash & (_buckets.length - 1);
+        _nextInChain[slot] = _buckets[index];
+        _buckets[index] = slot;
+        // as the newest entry
+        _olderLinks[slot] = _newest;
+        _newerLinks[slot] = NULL_INDEX;
+        if (_newest == NULL_INDEX) {
+            _oldest = slot;
+        } else {
+            _newerLinks[_newest] = slot;
+        }
+        _newest = slot;
+        // and the most recently used
+        _linkAsMostRecent(slot);
+
+        ++_currentEntries;
+        _currentContentsWeight += weight;
+        ++_insertCount;
+
+        // and if too heavy, remove LRU entries
+        while ((_currentContentsWeight > _maxContentsWeight) && (_leastRecent != NULL_INDEX)) {
+            _removeSlot(_leastRecent);
+            ++_evictionCount;
+        }
+        return existing;
+    }
+
+    protected final int _findSlot(K key, int keyHash)
+    {
+        final int index = keyHash & (_buckets.length - 1);
+        // need to get rid of slots of earlier generations first
+        if (_sweepIndex >= 0) {
+            _sweepBucket(index);
+            _sweepStep();
+        }
+        int slot = _buckets[index];
+        final Object[] keys = _keys;
+        final int[] hashes = _keyHashes;
+        while (slot != NULL_INDEX) {
+            if (hashes[slot] == keyHash) {
+                @SuppressWarnings("unchecked")
+                K curr = (K) keys[slot];
+                if (_keyConverter.keysEqual(key, curr)) {
+                    return slot;
+                }
+            }
+            slot = _nextInChain[slot];
+        }
+        return NULL_INDEX;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected final CompactPOJOCacheEntry<K,V> _snapshot(int slot) {
+        return new CompactPOJOCacheEntry<K,V>((K) _keys[slot], _keyHashes[slot], (V) _values[slot],
+                _weights[slot], _expirationTimes[slot]);
+    }
+
+    protected final boolean _expired(int slot, int currTimeInQ) {
+        return (_expirationTimes[slot] - currTimeInQ) <= 0;
+    }
+
+    protected boolean _invalidateOldestIfStale(int currTimeInQ)
+    {
+        final int oldest = _oldest;
+        if ((oldest != NULL_INDEX) && _expired(oldest, currTimeInQ)) {
+            _removeSlot(oldest);
+            ++_expirationCount;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Method that unlinks entry in given slot from all chains, clears
+     * references it has and adds it to the free list.
+     */
+    protected final void _removeSlot(int slot)
+    {
+        // First, from hash area
+        int index = _keyHashes[slot] & (_buckets.length - 1);
+        int curr = _buckets[index];
+        if (curr == slot) {
+            _buckets[index] = _nextInChain[slot];
+        } else {
+            while (true) {
+                if (curr == NULL_INDEX) { // should never occur, so:
+                    throw new IllegalStateException("Internal data error: could not find slot "+slot
+                            +" (index "+index+"/"+_buckets.length+")");
+                }
+                int next = _nextInChain[curr];
+                if (next == slot) {
+                    _nextInChain[curr] = _nextInChain[slot];
+                    break;
+                }
+                curr = next;
+            }
+        }
+        // then from insertion order...
+        int older = _olderLinks[slot];
+        int newer = _newerLinks[slot];
+        if (older == NULL_INDEX) {
+            _oldest = newer;
+        } else {
+            _newerLinks[older] = newer;
+        }
+        if (newer == NULL_INDEX) {
+            _newest = older;
+        } else {
+            _olderLinks[newer] = older;
+        }
+        // and LRU
+        _unlinkRecent(slot);
+
+        --_currentEntries;
+        _currentContentsWeight -= _weights[slot];
+        _keys[slot] = null;
+        _values[slot] = null;
+        _nextInChain[slot] = _freeHead;
+        _freeHead = slot;
+    }
+
+    protected final void _markAsMostRecent(int slot)
+    {
+        if (slot != _mostRecent) {
+            _unlinkRecent(slot);
+            _linkAsMostRecent(slot);
+        }
+    }
+
+    private void _unlinkRecent(int slot)
+    {
+        int less = _lessRecentLinks[slot];
+        int more = _moreRecentLinks[slot];
+        if (less == NULL_INDEX) {
+            _leastRecent = more;
+        } else {
+            _moreRecentLinks[less] = more;
+        }
+        if (more == NULL_INDEX) {
+            _mostRecent = less;
+        } else {
+            _lessRecentLinks[more] = less;
+        }
+    }
+
+    private void _linkAsMostRecent(int slot)
+    {
+        _lessRecentLinks[slot] = _mostRecent;
+        _moreRecentLinks[slot] = NULL_INDEX;
+        if (_mostRecent == NULL_INDEX) {
+            _leastRecent = slot;
+        } else {
+            _moreRecentLinks[_mostRecent] = slot;
+        }
+        _mostRecent = slot;
+    }
+
+    /**
+     * Method for sweeping a few more buckets for slots of earlier generations;
+     * and if all buckets have been swept, to stop sweeping.
+     */
+    protected final void _sweepStep()
+    {
+        final int size = _buckets.length;
+        int ix = _sweepIndex;
+        for (int end = Math.min(size, ix + POJOCacheElementBase.SWEEP_BUCKETS_PER_OPERATION); ix < end; ++ix) {
+            _sweepBucket(ix);
+        }
+        _sweepIndex = (ix >= size) ? -1 : ix;
+    }
+
+    /**
+     * Method for unlinking slots of earlier generations from given bucket,
+     * and adding them to the free list.
+     */
+    protected final void _sweepBucket(int index)
+    {
+        int prev = NULL_INDEX;
+        int slot = _buckets[index];
+        while (slot != NULL_INDEX) {
+            final int next = _nextInChain[slot];
+            if (_generations[slot] == _generation) {
+                prev = slot;
+            } else {
+                if (prev == NULL_INDEX) {
+                    _buckets[index] = next;
+                } else {
+                    _nextInChain[prev] = next;
+                }
+                _keys[slot] = null;
+                _values[slot] = null;
+                _nextInChain[slot] = _freeHead;
+                _freeHead = slot;
+            }
+            slot = next;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, slot allocation
+    /**********************************************************************
+     */
+
+    private int _allocateSlot()
+    {
+        if ((_freeHead == NULL_INDEX) && (_slotsUsed == _keys.length)) {
+            // slots of earlier generations may be reused, instead of growing
+            while (_sweepIndex >= 0) {
+                _sweepStep();
+            }
+        }
+        int slot = _freeHead;
+        if (slot != NULL_INDEX) {
+            _freeHead = _nextInChain[slot];
+            return slot;
+        }
+        if (_slotsUsed == _keys.length) {
+            _grow();
+        }
+        return _slotsUsed++;
+    }
+
+    private void _allocate(int capacity)
+    {
+        _keys = new Object[capacity];
+        _values = new Object[capacity];
+        _keyHashes = new int[capacity];
+        _expirationTimes = new int[capacity];
+        _weights = new int[capacity];
+        _nextInChain = new int[capacity];
+        _newerLinks = new int[capacity];
+        _olderLinks = new int[capacity];
+        _moreRecentLinks = new int[capacity];
+        _lessRecentLinks = new int[capacity];
+        _generations = new int[capacity];
+        _buckets = new int[POJOCacheElementBase.calcHashAreaSize(capacity)];
+        Arrays.fill(_buckets, NULL_INDEX);
+    }
+
+    /**
+     * Method called when all slots are in use, and more are needed: arrays
+     * are doubled in size (up to maximum entry count), and hash area
+     * rebuilt if necessary.
+     */
+    private void _grow()
+    {
+        final int oldCapacity = _keys.length;
+        final int capacity = (int) Math.min((long) _maxEntries, Math.max(INITIAL_CAPACITY, 2L * oldCapacity));
+        if (capacity <= oldCapacity) { // should never occur
+            throw new IllegalStateException("Can not grow past maximum capacity of "+oldCapacity+" entries");
+        }
+        _keys = Arrays.copyOf(_keys, capacity);
+        _values = Arrays.copyOf(_values, capacity);
+        _keyHashes = Arrays.copyOf(_keyHashes, capacity);
+        _expirationTimes = Arrays.copyOf(_expirationTimes, capacity);
+        _weights = Arrays.copyOf(_weights, capacity);
+        _nextInChain = Arrays.copyOf(_nextInChain, capacity);
+        _newerLinks = Arrays.copyOf(_newerLinks, capacity);
+        _olderLinks = Arrays.copyOf(_olderLinks, capacity);
+        _moreRecentLinks = Arrays.copyOf(_moreRecentLinks, capacity);
+        _lessRecentLinks = Arrays.copyOf(_lessRecentLinks, capacity);
+        _generations = Arrays.copyOf(_generations, capacity);
+
+        final int hashSize = POJOCacheElementBase.calcHashAreaSize(capacity);
+        if (hashSize != _buckets.length) {
+            // since there are no free slots (and nothing to sweep), all used slots have entries
+            int[] buckets = new int[hashSize];
+            Arrays.fill(buckets, NULL_INDEX);
+            final int mask = hashSize - 1;
+            for (int slot = 0; slot < _slotsUsed; ++slot) {
+                int index = _keyHashes[slot] & mask;
+                _nextInChain[slot] = buckets[index];
+                buckets[index] = slot;
+            }
+            _buckets = buckets;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Support for unit tests, diagnostics
+    /**********************************************************************
+     */
+
+    @SuppressWarnings("unchecked")
+    protected List<K> keysFromLeastToMostRecent()
+    {
+        ArrayList<K> keys = new ArrayList<K>();
+        for (int slot = _leastRecent; slot != NULL_INDEX; slot = _moreRecentLinks[slot]) {
+            keys.add((K) _keys[slot]);
+        }
+        return keys;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected List<K> keysFromOldestToNewest()
+    {
+        ArrayList<K> keys = new ArrayList<K>();
+        for (int slot = _oldest; slot != NULL_INDEX; slot = _newerLinks[slot]) {
+            keys.add((K) _keys[slot]);
+        }
+        return keys;
+    }
+
+    /**
+     * Method that verifies that counts calculated by traversing various
+     * chains agree with each other; and if not, throws an
+     * {@link IllegalStateException} with details.
+     */
+    protected void checkSanity()
+    {
+        final int expCount = _currentEntries;
+        int count = 0;
+        int unswept = 0;
+        long weight = 0L;
+        for (int bucket : _buckets) {
+            for (int slot = bucket; slot != NULL_INDEX; slot = _nextInChain[slot]) {
+                if (_generations[slot] != _generation) {
+                    ++unswept;
+                    continue;
+                }
+                ++count;
+                weight += _weights[slot];
+            }
+        }
+        if (count != expCount) {
+            throw new IllegalStateException("Invalid count by hash area: actual "+count+"; expected "+expCount);
+        }
+        if (weight != _currentContentsWeight) {
+            throw new IllegalStateException("Invalid weight by hash area: actual "+weight+"; expected "+_currentContentsWeight);
+        }
+        count = 0;
+        for (int slot = _oldest; slot != NULL_INDEX; slot = _newerLinks[slot]) {
+            ++count;
+        }
+        if (count != expCount) {
+            throw new IllegalStateException("Invalid count by insertion order: actual "+count+"; expected "+expCount);
+        }
+        count = 0;
+        for (int slot = _mostRecent; slot != NULL_INDEX; slot = _lessRecentLinks[slot]) {
+            ++count;
+        }
+        if (count != expCount) {
+            throw new IllegalStateException("Invalid count by LRU order: actual "+count+"; expected "+expCount);
+        }
+        count = 0;
+        for (int slot = _freeHead; slot != NULL_INDEX; slot = _nextInChain[slot]) {
+            ++count;
+        }
+        if ((count + expCount + unswept) != _slotsUsed) {
+            throw new IllegalStateException("Invalid free slot count: "+count+" free, "+expCount
+                    +" entries, "+unswept+" not yet swept; but "+_slotsUsed+" slots used");
+        }
+    }
+}
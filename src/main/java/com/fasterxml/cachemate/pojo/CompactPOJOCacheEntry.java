@@ -0,0 +1,79 @@
+package com.fasterxml.cachemate.pojo;
+
+import com.fasterxml.cachemate.CacheEntry;
+import com.fasterxml.cachemate.util.TimeUtil;
+
+/**
+ * {@link CacheEntry} implementation returned by {@link CompactPOJOCacheElement}:
+ * since that element does not store entries as objects, instances are
+ * immutable snapshots of entry state, constructed when entries are returned.
+ */
+public final class CompactPOJOCacheEntry<K, V>
+    implements CacheEntry<K, V>
+{
+    protected final K _key;
+
+    protected final int _keyHash;
+
+    protected final V _value;
+
+    protected final int _weight;
+
+    /**
+     * Timepoint when entry is set to expire, in units of 256 milliseconds
+     */
+    protected final int _expirationTime;
+
+    public CompactPOJOCacheEntry(K key, int keyHash, V value, int weight, int expirationTime)
+    {
+        _key = key;
+        _keyHash = keyHash;
+        _value = value;
+        _weight = weight;
+        _expirationTime = expirationTime;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public accessors
+    /**********************************************************************
+     */
+
+    @Override
+    public K getKey() { return _key; }
+
+    @Override
+    public int getKeyHash() { return _keyHash; }
+
+    @Override
+    public V getValue() { return _value; }
+
+    @Override
+    public int getWeight() { return _weight; }
+
+    @Override
+    public long getExpirationInMilliSeconds(long currentTime) {
+        return TimeUtil.getExpirationInMilliSeconds(currentTime, _expirationTime);
+    }
+
+    /**
+     * Compact cache element does not keep track of accesses, so this
+     * always returns 0.
+     */
+    @Override
+    public int getTimesReturned() { return 0; }
+
+    /*
+    /**********************************************************************
+    /* Standard method overrides
+    /**********************************************************************
+     */
+
+    @Override
+    public int hashCode() { return _keyHash; }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append(_key).append(':').append(_value).toString();
+    }
+}
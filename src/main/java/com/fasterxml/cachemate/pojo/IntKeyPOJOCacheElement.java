@@ -0,0 +1,101 @@
+package com.fasterxml.cachemate.pojo;
+
+import com.fasterxml.cachemate.CacheElement;
+import com.fasterxml.cachemate.converters.IntegerKeyConverter;
+import com.fasterxml.cachemate.util.TimeUtil;
+
+/**
+ * Variant of {@link POJOCacheElement} specialized for primitive <code>int</code>
+ * keys: keys are stored as primitives in entries, and methods that take
+ * <code>int</code> keys ({@link #findEntryForKey(long, int)}, {@link #putEntryForKey(long, int, Object, int)},
+ * {@link #removeEntryForKey(long, int)}) do not allocate key objects.
+ * Generic {@link CacheElement} methods that take {@link Integer} keys are also
+ * supported, and hash codes are calculated same way as {@link IntegerKeyConverter}
+ * does, so both can be used interchangeably.
+ *
+ * @param <V> Type of values cache element containts
+ */
+public class IntKeyPOJOCacheElement<V>
+    extends PrimitiveKeyPOJOCacheElementBase<Integer, V, IntKeyPOJOCacheEntry<V>>
+    implements CacheElement<Integer, V>
+{
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    /**
+     * @param timeToLiveSecs Amount of time entries will remain fresh (non-stale) in
+     *   cache; in seconds.
+     */
+    public IntKeyPOJOCacheElement(int maxEntries, long maxWeight, int timeToLiveSecs)
+    {
+        super(IntegerKeyConverter.instance, maxEntries, maxWeight, timeToLiveSecs,
+                IntKeyPOJOCacheElement.<V>_newHashArea(calcHashAreaSize(maxEntries)));
+    }
+
+    /*
+    /**********************************************************************
+    /* Public methods: put, find, remove with primitive keys
+    /**********************************************************************
+     */
+
+    public final IntKeyPOJOCacheEntry<V> putEntryForKey(long currentTime, int key, V value, int weight) {
+        return _putEntryForKey(currentTime, _configTimeToLive, key, keyHash(key), value, weight);
+    }
+
+    public final IntKeyPOJOCacheEntry<V> putEntryForKey(long currentTime, int timeToLiveSecs,
+            int key, V value, int weight) {
+        return _putEntryForKey(currentTime, TimeUtil.secondsToInternal(timeToLiveSecs),
+                key, keyHash(key), value, weight);
+    }
+
+    public final IntKeyPOJOCacheEntry<V> findEntryForKey(long currentTime, int key) {
+        return _findEntryForKey(currentTime, key, keyHash(key));
+    }
+
+    public final IntKeyPOJOCacheEntry<V> removeEntryForKey(long currentTime, int key) {
+        return _removeEntryForKey(currentTime, key, keyHash(key));
+    }
+
+    /**
+     * Method for calculating hash code for given key; same as what
+     * {@link IntegerKeyConverter} (and {@link Integer#hashCode}) produces.
+     */
+    public static int keyHash(int key) {
+        return key;
+    }
+
+    /*
+    /**********************************************************************
+    /* Overridden/implemented base class methods
+    /**********************************************************************
+     */
+
+    @Override
+    protected IntKeyPOJOCacheEntry<V> _createDummyEntry() {
+        return new IntKeyPOJOCacheEntry<V>();
+    }
+
+    @Override
+    protected IntKeyPOJOCacheEntry<V>[] _createHashArea(int size) {
+        return _newHashArea(size);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> IntKeyPOJOCacheEntry<V>[] _newHashArea(int size) {
+        return (IntKeyPOJOCacheEntry<V>[]) new IntKeyPOJOCacheEntry<?>[size];
+    }
+
+    @Override
+    protected IntKeyPOJOCacheEntry<V> _createEntryForKey(long key, int keyHash, V value, int expirationTime,
+            int weight, IntKeyPOJOCacheEntry<V> nextCollision) {
+        return new IntKeyPOJOCacheEntry<V>((int) key, keyHash, value, expirationTime, weight, nextCollision);
+    }
+
+    @Override
+    protected final long _primitiveKey(IntKeyPOJOCacheEntry<V> entry) {
+        return entry._intKey;
+    }
+}
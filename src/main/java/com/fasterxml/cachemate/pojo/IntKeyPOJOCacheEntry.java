@@ -0,0 +1,80 @@
+package com.fasterxml.cachemate.pojo;
+
+import com.fasterxml.cachemate.CacheEntry;
+
+/**
+ * {@link CacheEntry} implementation used by {@link IntKeyPOJOCacheElement}:
+ * key is stored as primitive <code>int</code>, and only converted into
+ * {@link Integer} if accessed using {@link #getKey}.
+ */
+public class IntKeyPOJOCacheEntry<V>
+    extends POJOCacheEntryBase<Integer, V, IntKeyPOJOCacheEntry<V>>
+    implements CacheEntry<Integer, V>
+{
+    // // // Constants
+
+    /**
+     * This is our guestimation of per-entry base overhead JVM incurs; it is used
+     * to get closer approximation of true memory usage of cache structure.
+     * Same as {@link POJOCacheEntry#MEM_USAGE_PER_ENTRY}, plus primitive
+     * <code>int</code> key; but since there
+     * is no separate key object, total is usually lower than that of
+     * {@link POJOCacheEntry} with {@link Integer} key.
+     */
+    public final static int MEM_USAGE_PER_ENTRY = 16 + (17 * 4);
+
+    /**
+     * Primary key of the entry
+     */
+    protected final int _intKey;
+
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    /**
+     * Constructors used for constructing placeholder instances (heads and tails
+     * of linked lists)
+     */
+    public IntKeyPOJOCacheEntry() {
+        this(0, 0, null, 0, 0, null);
+    }
+
+    public IntKeyPOJOCacheEntry(int key, int keyHash, V value, int expirationTime, int weight,
+            IntKeyPOJOCacheEntry<V> nextCollision)
+    {
+        super(null, keyHash, value, expirationTime, weight, nextCollision);
+        _intKey = key;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public accessors
+    /**********************************************************************
+     */
+
+    @Override
+    public final Integer getKey() {
+        return Integer.valueOf(_intKey);
+    }
+
+    /**
+     * Accessor for getting the key without boxing
+     */
+    public final int getIntKey() {
+        return _intKey;
+    }
+
+    /*
+    /**********************************************************************
+    /* Standard method overrides
+    /**********************************************************************
+     */
+
+    @Override
+    public final String toString() {
+        return new StringBuilder().append(_intKey).append(':').append(getValue()).toString();
+    }
+}
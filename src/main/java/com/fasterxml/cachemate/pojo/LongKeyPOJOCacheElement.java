@@ -0,0 +1,101 @@
+package com.fasterxml.cachemate.pojo;
+
+import com.fasterxml.cachemate.CacheElement;
+import com.fasterxml.cachemate.converters.LongKeyConverter;
+import com.fasterxml.cachemate.util.TimeUtil;
+
+/**
+ * Variant of {@link POJOCacheElement} specialized for primitive <code>long</code>
+ * keys: keys are stored as primitives in entries, and methods that take
+ * <code>long</code> keys ({@link #findEntryForKey(long, long)}, {@link #putEntryForKey(long, long, Object, int)},
+ * {@link #removeEntryForKey(long, long)}) do not allocate key objects.
+ * Generic {@link CacheElement} methods that take {@link Long} keys are also
+ * supported, and hash codes are calculated same way as {@link LongKeyConverter}
+ * does, so both can be used interchangeably.
+ *
+ * @param <V> Type of values cache element containts
+ */
+public class LongKeyPOJOCacheElement<V>
+    extends PrimitiveKeyPOJOCacheElementBase<Long, V, LongKeyPOJOCacheEntry<V>>
+    implements CacheElement<Long, V>
+{
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    /**
+     * @param timeToLiveSecs Amount of time entries will remain fresh (non-stale) in
+     *   cache; in seconds.
+     */
+    public LongKeyPOJOCacheElement(int maxEntries, long maxWeight, int timeToLiveSecs)
+    {
+        super(LongKeyConverter.instance, maxEntries, maxWeight, timeToLiveSecs,
+                LongKeyPOJOCacheElement.<V>_newHashArea(calcHashAreaSize(maxEntries)));
+    }
+
+    /*
+    /**********************************************************************
+    /* Public methods: put, find, remove with primitive keys
+    /**********************************************************************
+     */
+
+    public final LongKeyPOJOCacheEntry<V> putEntryForKey(long currentTime, long key, V value, int weight) {
+        return _putEntryForKey(currentTime, _configTimeToLive, key, keyHash(key), value, weight);
+    }
+
+    public final LongKeyPOJOCacheEntry<V> putEntryForKey(long currentTime, int timeToLiveSecs,
+            long key, V value, int weight) {
+        return _putEntryForKey(currentTime, TimeUtil.secondsToInternal(timeToLiveSecs),
+                key, keyHash(key), value, weight);
+    }
+
+    public final LongKeyPOJOCacheEntry<V> findEntryForKey(long currentTime, long key) {
+        return _findEntryForKey(currentTime, key, keyHash(key));
+    }
+
+    public final LongKeyPOJOCacheEntry<V> removeEntryForKey(long currentTime, long key) {
+        return _removeEntryForKey(currentTime, key, keyHash(key));
+    }
+
+    /**
+     * Method for calculating hash code for given key; same as what
+     * {@link LongKeyConverter} (and {@link Long#hashCode}) produces.
+     */
+    public static int keyHash(long key) {
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /*
+    /**********************************************************************
+    /* Overridden/implemented base class methods
+    /**********************************************************************
+     */
+
+    @Override
+    protected LongKeyPOJOCacheEntry<V> _createDummyEntry() {
+        return new LongKeyPOJOCacheEntry<V>();
+    }
+
+    @Override
+    protected LongKeyPOJOCacheEntry<V>[] _createHashArea(int size) {
+        return _newHashArea(size);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> LongKeyPOJOCacheEntry<V>[] _newHashArea(int size) {
+        return (LongKeyPOJOCacheEntry<V>[]) new LongKeyPOJOCacheEntry<?>[size];
+    }
+
+    @Override
+    protected LongKeyPOJOCacheEntry<V> _createEntryForKey(long key, int keyHash, V value, int expirationTime,
+            int weight, LongKeyPOJOCacheEntry<V> nextCollision) {
+        return new LongKeyPOJOCacheEntry<V>(key, keyHash, value, expirationTime, weight, nextCollision);
+    }
+
+    @Override
+    protected final long _primitiveKey(LongKeyPOJOCacheEntry<V> entry) {
+        return entry._longKey;
+    }
+}
@@ -0,0 +1,80 @@
+package com.fasterxml.cachemate.pojo;
+
+import com.fasterxml.cachemate.CacheEntry;
+
+/**
+ * {@link CacheEntry} implementation used by {@link LongKeyPOJOCacheElement}:
+ * key is stored as primitive <code>long</code>, and only converted into
+ * {@link Long} if accessed using {@link #getKey}.
+ */
+public class LongKeyPOJOCacheEntry<V>
+    extends POJOCacheEntryBase<Long, V, LongKeyPOJOCacheEntry<V>>
+    implements CacheEntry<Long, V>
+{
+    // // // Constants
+
+    /**
+     * This is our guestimation of per-entry base overhead JVM incurs; it is used
+     * to get closer approximation of true memory usage of cache structure.
+     * Same as {@link POJOCacheEntry#MEM_USAGE_PER_ENTRY}, plus primitive
+     * <code>long</code> key (which takes space of two fields); but since there
+     * is no separate key object, total is usually lower than that of
+     * {@link POJOCacheEntry} with {@link Long} key.
+     */
+    public final static int MEM_USAGE_PER_ENTRY = 16 + (18 * 4);
+
+    /**
+     * Primary key of the entry
+     */
+    protected final long _longKey;
+
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    /**
+     * Constructors used for constructing placeholder instances (heads and tails
+     * of linked lists)
+     */
+    public LongKeyPOJOCacheEntry() {
+        this(0L, 0, null, 0, 0, null);
+    }
+
+    public LongKeyPOJOCacheEntry(long key, int keyHash, V value, int expirationTime, int weight,
+            LongKeyPOJOCacheEntry<V> nextCollision)
+    {
+        super(null, keyHash, value, expirationTime, weight, nextCollision);
+        _longKey = key;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public accessors
+    /**********************************************************************
+     */
+
+    @Override
+    public final Long getKey() {
+        return Long.valueOf(_longKey);
+    }
+
+    /**
+     * Accessor for getting the key without boxing
+     */
+    public final long getLongKey() {
+        return _longKey;
+    }
+
+    /*
+    /**********************************************************************
+    /* Standard method overrides
+    /**********************************************************************
+     */
+
+    @Override
+    public final String toString() {
+        return new StringBuilder().append(_longKey).append(':').append(getValue()).toString();
+    }
+}
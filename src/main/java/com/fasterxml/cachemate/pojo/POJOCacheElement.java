@@ -13,8 +13,10 @@ import com.fasterxml.cachemate.util.PlatformConstants;
  *<p>
  * Note on implementation: hash area is allocated on construction based on specified
  * maximum number of entries (allocate chunk with size that is next biggest power of two),
- * and remains static in size unless explicit resizing is requested.
- * Because of this, it makes sense to use sensible maximum entry count, as well as
+ * and is then grown or shrunk as entry count changes (for example, if maximum
+ * entry count is changed with {@link #setMaxEntries}). Resizing is done incrementally,
+ * so that entries are moved a few hash buckets at a time, during later operations.
+ * It still makes sense to use sensible maximum entry count, as well as
  * maximum weight (rough memory usage estimation)
  * 
  * @author Tatu Saloranta
@@ -34,7 +36,8 @@ public class POJOCacheElement<K, V>
     protected final static int IMPL_FIELD_COUNT = BASE_FIELD_COUNT + 1;
 
     private final static int BASE_MEM_USAGE = PlatformConstants.BASE_OBJECT_MEMORY_USAGE 
-        + (IMPL_FIELD_COUNT * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
+        + (IMPL_FIELD_COUNT * PlatformConstants.BASE_FIELD_MEMORY_USAGE)
+        + (TimerWheel.SLOT_COUNT * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
 
     // // // Actual entries
 
@@ -55,13 +58,12 @@ public class POJOCacheElement<K, V>
      * @param timeToLiveSecs Amount of time entries will remain fresh (non-stale) in
      *   cache; in seconds.
      */
-    @SuppressWarnings("unchecked")
     public POJOCacheElement(KeyConverter<K> keyConverter,
             int maxEntries, long maxWeight,
             int timeToLiveSecs)
     {
         super(keyConverter, maxEntries, timeToLiveSecs,
-                (POJOCacheEntry<K,V>[]) new POJOCacheEntry<?,?>[calcHashAreaSize(maxEntries)]);
+                POJOCacheElement.<K,V>_newHashArea(calcHashAreaSize(maxEntries)));
         _resetOldestAndNewest(); // to set oldest/newest (head/tail) linked
         // take into account base mem usage of the cache (crude, but...), including hash area
         _maxContentsWeight = maxWeight - BASE_MEM_USAGE - (_entries.length * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
@@ -76,7 +78,7 @@ public class POJOCacheElement<K, V>
     @Override
     public final long weight() {
         return BASE_MEM_USAGE + _currentContentsWeight
-            + (_entries.length * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
+            + (_hashAreaSlots() * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
     }
 
     @Override
@@ -95,6 +97,16 @@ public class POJOCacheElement<K, V>
         return new POJOCacheEntry<K,V>();
     }
 
+    @Override
+    protected POJOCacheEntry<K,V>[] _createHashArea(int size) {
+        return _newHashArea(size);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K,V> POJOCacheEntry<K,V>[] _newHashArea(int size) {
+        return (POJOCacheEntry<K,V>[]) new POJOCacheEntry<?,?>[size];
+    }
+
     @Override
     protected POJOCacheEntry<K,V> _createEntry(K key, int keyHash, V value, int expirationTime, int weight,
             POJOCacheEntry<K,V> nextCollision) {
@@ -105,6 +117,7 @@ public class POJOCacheElement<K, V>
     protected void _removeEntry(POJOCacheEntry<K,V> entry)
     {
         // Ok, need to locate entry in hash...
+        _migrateBucketFor(entry._keyHash);
         int index = _primaryHashIndex(entry._keyHash);
         POJOCacheEntry<K,V> curr = _entries[index];
         POJOCacheEntry<K,V> prev = null;
@@ -123,6 +136,7 @@ public class POJOCacheElement<K, V>
     @Override
     protected final POJOCacheEntry<K,V> _removeByPrimary(long currentTime, K key, int keyHash)
     {
+        _migrateBucketFor(keyHash);
         int index = (keyHash & (_entries.length - 1));
         // First, locate the entry
         POJOCacheEntry<K,V> prev = null;
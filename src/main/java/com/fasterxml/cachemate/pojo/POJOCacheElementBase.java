@@ -1,11 +1,11 @@
 package com.fasterxml.cachemate.pojo;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import com.fasterxml.cachemate.*;
 import com.fasterxml.cachemate.converters.KeyConverter;
+import com.fasterxml.cachemate.util.FrequencySketch;
 import com.fasterxml.cachemate.util.TimeUtil;
 
 /**
@@ -20,7 +20,37 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
      * used for estimating rough in-memory size
      * for the cache as total.
      */
-    protected final static int BASE_FIELD_COUNT = 13;
+    protected final static int BASE_FIELD_COUNT = 27;
+
+    /**
+     * Maximum number of collision chain entries to traverse when doing
+     * unsynchronized lookups.
+     */
+    protected final static int MAX_UNSYNCED_CHAIN_STEPS = 256;
+
+    /**
+     * Hash area is never shrunk below this size
+     */
+    protected final static int MIN_HASH_AREA_SIZE = 16;
+
+    /**
+     * Number of buckets of the old hash area that are moved to the new one,
+     * for each operation, while hash area is being resized.
+     */
+    protected final static int REHASH_BUCKETS_PER_OPERATION = 8;
+
+    /**
+     * Number of buckets of the hash area that are swept for entries
+     * of earlier generations, for each operation, after all entries
+     * have been removed.
+     */
+    protected final static int SWEEP_BUCKETS_PER_OPERATION = 16;
+
+    /**
+     * When admission filter is used, size of the admission window
+     * as percentage of maximum entry count.
+     */
+    protected final static int ADMISSION_WINDOW_PERCENT = 1;
     
     /*
     /**********************************************************************
@@ -76,6 +106,42 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
      * Primary hash area for entries
      */
     protected E[] _entries;
+
+    /**
+     * Previous primary hash area, when hash area is being resized;
+     * null otherwise. Entries are moved from this area to {@link #_entries}
+     * incrementally: eagerly for buckets that are accessed, and
+     * a few buckets at a time (in index order) for every operation.
+     */
+    protected E[] _oldEntries;
+
+    /**
+     * Size below which hash area is not shrunk: initially size of hash area
+     * allocated on construction (based on maximum entry count), so that
+     * pre-sized hash area is not shrunk on first operations; lowered if
+     * maximum entry count is lowered.
+     */
+    protected int _minHashAreaSize;
+
+    /**
+     * Index of the next bucket of {@link #_oldEntries} to move, when
+     * resizing hash area.
+     */
+    protected int _rehashIndex;
+
+    /**
+     * Current generation of entries: incremented when all entries are
+     * removed (see {@link #removeAll}), so that entries of earlier
+     * generations are considered removed without having to be unlinked
+     * from hash area right away.
+     */
+    protected int _generation;
+
+    /**
+     * Index of the next bucket of {@link #_entries} to sweep for entries
+     * of earlier generations; -1 if sweeping is not needed.
+     */
+    protected int _sweepIndex = -1;
     
     /**
      * Total current weight (approximate size) of all keys and entries in
@@ -107,6 +173,49 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
      * via entry links)
      */
     protected E _newEntryHead;
+
+    /**
+     * Index of entries by expiration time, used for finding entries
+     * that have expired.
+     */
+    protected final TimerWheel<E> _timerWheel = new TimerWheel<E>();
+
+    /*
+    /**********************************************************************
+    /* Admission filter (W-TinyLFU)
+    /**********************************************************************
+     */
+
+    /**
+     * Sketch used for estimating access frequencies of keys, when
+     * admission filter is enabled; null if not.
+     */
+    protected FrequencySketch _frequencySketch;
+
+    /**
+     * Placeholder entry that represents the least-recently used end
+     * of admission window LRU linkage (only used with admission filter)
+     */
+    protected E _windowOldHead;
+
+    /**
+     * Placeholder entry that represents the most-recently used end
+     * of admission window LRU linkage (only used with admission filter)
+     */
+    protected E _windowNewHead;
+
+    /**
+     * Number of entries currently in the admission window
+     */
+    protected int _windowEntries;
+
+    /**
+     * Maximum number of entries in the admission window; entries
+     * beyond this are moved to the main LRU area, if they are
+     * accessed more frequently than least-recently used entry
+     * they would displace.
+     */
+    protected int _maxWindowEntries;
  
     /*
     /**********************************************************************
@@ -117,17 +226,33 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     /**
      * Number of times an entry has been found within cache
      */
-    protected int _hitCount;
+    protected long _hitCount;
     
     /**
-     * Number of times an entry has been found within cache
+     * Number of times an entry has not been found within cache
      */
-    protected int _missCount;
+    protected long _missCount;
 
     /**
      * Number of times entries have been inserted in the cache
      */
-    protected int _insertCount;
+    protected long _insertCount;
+
+    /**
+     * Number of entries removed to make room for new entries
+     */
+    protected long _evictionCount;
+
+    /**
+     * Number of entries removed because they had expired
+     */
+    protected long _expirationCount;
+
+    /**
+     * Number of entries removed explicitly, using one of
+     * <code>removeEntry</code> methods
+     */
+    protected long _removalCount;
 
     /*
     /**********************************************************************
@@ -143,6 +268,7 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         _maxEntries = maxEntries;
         _configTimeToLive = TimeUtil.secondsToInternal(timeToLiveSecs);
         _entries = entries;
+        _minHashAreaSize = Math.max(MIN_HASH_AREA_SIZE, entries.length);
     }
     
     protected static int calcHashAreaSize(int maxEntries)
@@ -161,9 +287,68 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     /**********************************************************************
      */
 
-    /*
-    // More to be added:
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+
+    /**
+     * Method for changing maximum number of entries this element may contain.
+     * If the new limit is lower than current entry count, least-recently
+     * used entries are evicted right away. Hash area is resized
+     * incrementally as entry count changes.
+     */
+    public void setMaxEntries(int maxEntries)
+    {
+        _maxEntries = maxEntries;
+        _minHashAreaSize = Math.min(_minHashAreaSize, calcHashAreaSize(maxEntries));
+        if (_frequencySketch != null) {
+            _maxWindowEntries = _calcMaxWindowEntries(maxEntries);
+            _frequencySketch.ensureCapacity(maxEntries);
+        }
+        while (_currentEntries > _maxEntries) {
+            _removeEntry(_leastRecentEntry());
+            ++_evictionCount;
+        }
+        _checkHashAreaSize();
+    }
+
+    /**
+     * Accessor for checking current size of the primary hash area.
+     */
+    public int getHashAreaSize() {
+        return _entries.length;
+    }
+
+    /**
+     * Method for enabling admission filter ("W-TinyLFU"): with it, new
+     * entries are first added in a small admission window (LRU), and when
+     * evicted from there, only retained if they have been accessed more
+     * frequently than the least-recently used entry of the main LRU area.
+     * This protects frequently accessed entries from being flushed by
+     * scans of keys that are only accessed once.
+     * Access frequencies are estimated using a {@link FrequencySketch}.
+     *<p>
+     * Admission filter can only be enabled when cache element is empty.
+     *
+     * @throws IllegalStateException If cache element is not empty
      */
+    public void enableAdmissionFilter()
+    {
+        if (_frequencySketch != null) {
+            return;
+        }
+        if (_currentEntries > 0) {
+            throw new IllegalStateException("Can not enable admission filter for non-empty cache element (size "
+                    +_currentEntries+")");
+        }
+        _frequencySketch = new FrequencySketch(_maxEntries);
+        _maxWindowEntries = _calcMaxWindowEntries(_maxEntries);
+        _resetWindow();
+    }
+
+    public boolean usesAdmissionFilter() {
+        return (_frequencySketch != null);
+    }
 
     public int getConfigInvalidatePerGet() {
         return _configInvalidatePerGet;
@@ -209,7 +394,19 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     
     protected E _putEntry(long currentTime, int timeToLiveQ,
             K key, int keyHash, V value, int weight)
+    {
+        return _putEntry(currentTime, timeToLiveQ, key, keyHash, value, weight,
+                _configInvalidatePerInsert);
+    }
+
+    /**
+     * @param staleToInvalidate Maximum number of stale entries to invalidate
+     *   after insertion (more may be removed if needed to stay within limits)
+     */
+    protected final E _putEntry(long currentTime, int timeToLiveQ,
+            K key, int keyHash, V value, int weight, int staleToInvalidate)
     {    
+        _rehashFor(keyHash);
         E existingEntry = _removeByPrimary(currentTime, key, keyHash);
         // Either way, need to add the new entry next, as newest and MRU
         int index = _primaryHashIndex(keyHash);
@@ -217,7 +414,7 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
                 weight, _entries[index]);
         _entries[index] = newEntry;
 
-        _linkNewEntry(currentTime, newEntry, weight);
+        _linkNewEntry(currentTime, newEntry, weight, staleToInvalidate);
         return existingEntry;
     }
     
@@ -229,48 +426,12 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     @Override
     public final E findEntry(long currentTime, K key, int keyHash)
     {
-        int index = _primaryHashIndex(keyHash);
-        // First, locate the entry, but keep track of position within hash/collision chain:
-        E prev = null;
-        E entry = _entries[index];
-        int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
-
-        while (entry != null) {
-            if ((entry._keyHash == keyHash) && _keyConverter.keysEqual(key, entry.getKey())) {
-                if (_expired(entry, currTimeInQ)) {
-                    _removeEntry(entry, index, prev);
-                    entry = null;
-                } else { // if not stale, move as LRU
-                    // Also: make this the LRU entry (note: _newEntryHead and _oldEntryHead are placeholders)
-                    // first, unlink from previous chain
-                    prev = entry._lessRecentEntry;
-                    E next = entry._moreRecentEntry;
-                    prev._moreRecentEntry = next;
-                    next._lessRecentEntry = prev;
-                    // then add as new head (wrt LRU)
-                    next = _newEntryHead;
-                    prev = _newEntryHead._lessRecentEntry;
-                    prev._moreRecentEntry = entry;
-                    entry._lessRecentEntry = prev;
-                    next._lessRecentEntry = entry;
-                    entry._moreRecentEntry = next;
-
-                    // and finally, update match count; may be used to decide on promotion/demotion
-                    ++entry._timesReturned;
-                }
-                break;
-            }
-            prev = entry;
-            entry = entry._primaryCollision;
-        }
-
-        // also: if aggressively cleaning up, remove stale entries
-        int count = _configInvalidatePerGet;
-        while (count > 0 && _invalidateOldestIfStale(currTimeInQ)) {
-            --count;
-        }
+        final int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+        E entry = _findEntry(key, keyHash, currTimeInQ);
+        _invalidateAfterGet(currTimeInQ);
         return entry;
     }
+
     
     @Override
     public final E removeEntry(long currentTime, K key) {
@@ -281,27 +442,110 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     public final E removeEntry(long currentTime, K key, int keyHash)
     {
         // first, basic removal
+        _rehashFor(keyHash);
         E entry = _removeByPrimary(currentTime, key, keyHash);
+        _afterRemove(currentTime, entry);
+        return entry;
+    }
+
+    /**
+     * Helper method called after lookup by key, to invalidate stale entries
+     * if configured to aggressively clean up.
+     */
+    protected final void _invalidateAfterGet(int currTimeInQ)
+    {
+        int count = _configInvalidatePerGet;
+        while (count > 0 && _invalidateNextStale(currTimeInQ)) {
+            --count;
+        }
+    }
+
+    /**
+     * Helper method called after explicit removal by key: updates statistics,
+     * invalidates stale entries if so configured, and shrinks hash area if needed.
+     *
+     * @param removed Entry removed, if any; null if none
+     */
+    protected final void _afterRemove(long currentTime, E removed)
+    {
+        if (removed != null) {
+            ++_removalCount;
+        }
         // also: if aggressively cleaning up, remove stale entries
         int count = _configInvalidatePerInsert;
         if (count > 0) {
             int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
             do {
-                if (!_invalidateOldestIfStale(currTimeInQ)) {
+                if (!_invalidateNextStale(currTimeInQ)) {
                     break;
                 }
             } while (--count > 0);
         }
-        return entry;
+        _checkHashAreaSize();
     }
-    
-    
+
+    @Override
+    public int findEntries(long currentTime, K[] keys, CacheEntry<K,V>[] results, int count)
+    {
+        final int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+        int found = 0;
+        for (int i = 0; i < count; ++i) {
+            K key = keys[i];
+            E entry = _findEntry(key, _keyConverter.keyHash(key), currTimeInQ);
+            results[i] = entry;
+            if (entry != null) {
+                ++found;
+            }
+        }
+        // stale entries are cleaned up once per batch, not once per key
+        int toInvalidate = _configInvalidatePerGet;
+        while (toInvalidate > 0 && _invalidateNextStale(currTimeInQ)) {
+            --toInvalidate;
+        }
+        return found;
+    }
+
+    @Override
+    public int putEntries(long currentTime, K[] keys, V[] values, int[] weights, int count)
+    {
+        int replaced = 0;
+        for (int i = 0; i < count; ++i) {
+            K key = keys[i];
+            if (_putEntry(currentTime, _configTimeToLive, key, _keyConverter.keyHash(key),
+                    values[i], weights[i], 0) != null) {
+                ++replaced;
+            }
+        }
+        // similarly, only check for stale entries once per batch
+        int toInvalidate = _configInvalidatePerInsert;
+        if (toInvalidate > 0) {
+            int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+            while (toInvalidate > 0 && _invalidateNextStale(currTimeInQ)) {
+                --toInvalidate;
+            }
+            _checkHashAreaSize();
+        }
+        return replaced;
+    }
+
+    /**
+     * Removal of all entries is done in constant time, by starting a new
+     * generation of entries: entries of earlier generations are ignored,
+     * and unlinked from hash area lazily, a few buckets at a time, by
+     * subsequent operations (or when accessed).
+     */
     @Override
     public void removeAll()
     {
-        // Easy enough to drop all:
+        // Easy enough to drop all (but retain access frequencies, if any)
+        ++_generation;
+        _sweepIndex = 0;
         _resetOldestAndNewest();
-        Arrays.fill(_entries, null);
+        // if resizing, entries not yet moved can just be dropped
+        if (_oldEntries != null) {
+            _finishResize();
+        }
+        _timerWheel.clear();
         _currentContentsWeight = 0L;
         _currentEntries = 0;
         // but do not clear stats necessarily
@@ -324,9 +568,12 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         int count = 0;
         int currInQ = TimeUtil.timeToTimestamp(currentTimeMsecs);
         
-        while (count < maxToInvalidate && _invalidateOldestIfStale(currInQ)) {
+        while (count < maxToInvalidate && _invalidateNextStale(currInQ)) {
             ++count;
         }
+        if (count > 0) {
+            _checkHashAreaSize();
+        }
         return count;
     }
     
@@ -361,16 +608,20 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     @Override
     public CacheStats getStats() {
         return new CacheStats(_hitCount, _missCount, _insertCount,
-                size(), weight(), contentsWeight(),
+                _evictionCount, _expirationCount, _removalCount,
+                size(), contentsWeight(), weight(),
                 _maxEntries, maxContentsWeight());
     }
 
     @Override
     public final void clearStats()
     {
-        _hitCount = 0;
-        _missCount = 0;
-        _insertCount = 0;
+        _hitCount = 0L;
+        _missCount = 0L;
+        _insertCount = 0L;
+        _evictionCount = 0L;
+        _expirationCount = 0L;
+        _removalCount = 0L;
     }
 
     /**
@@ -380,11 +631,91 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     @Override
     public final void decayStats(double ratio)
     {
-        _hitCount = (int) (_hitCount * ratio);
-        _missCount = (int) (_missCount * ratio);
-        _insertCount = (int) (_insertCount * ratio);
+        _hitCount = (long) (_hitCount * ratio);
+        _missCount = (long) (_missCount * ratio);
+        _insertCount = (long) (_insertCount * ratio);
+        _evictionCount = (long) (_evictionCount * ratio);
+        _expirationCount = (long) (_expirationCount * ratio);
+        _removalCount = (long) (_removalCount * ratio);
     }
     
+    /*
+    /**********************************************************************
+    /* Package methods: support for concurrent access
+    /**********************************************************************
+     */
+
+    /**
+     * Method for finding entry with specified key without modifying any
+     * state (LRU ordering, access counts, stale entries); used by concurrent
+     * wrappers for lookups that are done without holding a lock.
+     * Since access is not synchronized with modifications, lookups are only
+     * weakly consistent: a lookup that races with a modification may
+     * miss an entry, or find one that was just removed; but will never
+     * return an entry with mismatching key or value.
+     * Caller needs to ensure visibility of changes, usually by reading a
+     * volatile field that modifying thread writes after changes.
+     *
+     * @return Non-stale entry with given key, if one found; null otherwise
+     */
+    protected final E _findEntryUnsynced(K key, int keyHash, int currTimeInQ)
+    {
+        E entry = _findEntryUnsynced(_entries, key, keyHash);
+        if (entry == null) {
+            // if resizing, may still be in the old hash area
+            final E[] oldEntries = _oldEntries;
+            if (oldEntries != null) {
+                entry = _findEntryUnsynced(oldEntries, key, keyHash);
+            }
+            if (entry == null) {
+                return null;
+            }
+        }
+        return _expired(entry, currTimeInQ) ? null : entry;
+    }
+
+    private final E _findEntryUnsynced(E[] entries, K key, int keyHash)
+    {
+        E entry = entries[keyHash & (entries.length - 1)];
+        // limit traversal, as concurrent changes could expose transient cycles
+        for (int steps = 0; (entry != null) && (steps < MAX_UNSYNCED_CHAIN_STEPS); ++steps) {
+            if ((entry._keyHash == keyHash) && (entry._generation == _generation)
+                    && _keyConverter.keysEqual(key, entry.getKey())) {
+                return entry;
+            }
+            entry = entry._primaryCollision;
+        }
+        return null;
+    }
+
+    /**
+     * Method called (with proper synchronization) to apply effects of a read
+     * that was done with {@link #_findEntryUnsynced}: unless entry has been
+     * removed from cache in the meantime, it is marked as the most recently used
+     * entry.
+     */
+    protected void _applyBufferedRead(E entry)
+    {
+        if (_isLive(entry)) {
+            _markAsMostRecent(entry);
+        }
+    }
+
+    /**
+     * Helper method for checking whether given entry is still contained in this
+     * cache element.
+     */
+    protected boolean _isLive(E entry)
+    {
+        _migrateBucketFor(entry._keyHash);
+        for (E curr = _entries[_primaryHashIndex(entry._keyHash)]; curr != null; curr = curr._primaryCollision) {
+            if (curr == entry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /*
     /**********************************************************************
     /* Support for unit tests
@@ -394,7 +725,7 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     protected E oldestEntry(long currentTime)
     {
         // first, ensure we have dumped all stale entries, then return what's left if anything
-        while (_invalidateOldestIfStale(TimeUtil.timeToTimestamp(currentTime))) { }
+        while (_invalidateNextStale(TimeUtil.timeToTimestamp(currentTime))) { }
         E oldest = _oldEntryHead.newerEntry();
         return (oldest != _newEntryHead) ? oldest : null;
     }
@@ -402,7 +733,7 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     protected E newestEntry(long currentTime)
     {
         // first, ensure we have dumped all stale entries, then return what's left if anything
-        while (_invalidateOldestIfStale(TimeUtil.timeToTimestamp(currentTime))) { }
+        while (_invalidateNextStale(TimeUtil.timeToTimestamp(currentTime))) { }
         E newest = _newEntryHead.olderEntry();
         return (newest != _oldEntryHead) ? newest : null;
     }
@@ -410,15 +741,14 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     protected E leastRecentEntry(long currentTime)
     {
         // first, ensure we have dumped all stale entries, then return what's left if anything
-        while (_invalidateOldestIfStale(TimeUtil.timeToTimestamp(currentTime))) { }
-        E leastRecent = _oldEntryHead.moreRecentEntry();
-        return (leastRecent != _newEntryHead) ? leastRecent : null;
+        while (_invalidateNextStale(TimeUtil.timeToTimestamp(currentTime))) { }
+        return _leastRecentEntry();
     }
 
     protected E mostRecentEntry(long currentTime)
     {
         // first, ensure we have dumped all stale entries, then return what's left if anything
-        while (_invalidateOldestIfStale(TimeUtil.timeToTimestamp(currentTime))) { }
+        while (_invalidateNextStale(TimeUtil.timeToTimestamp(currentTime))) { }
         E mostRecent = _newEntryHead.lessRecentEntry();
         return (mostRecent != _oldEntryHead) ? mostRecent : null;
     }
@@ -438,6 +768,12 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         for (E entry = _oldEntryHead.moreRecentEntry(); entry != _newEntryHead; entry = entry.moreRecentEntry()) {
             keys.add(entry.getKey());
         }
+        // if admission window is used, its entries are considered more recent than main area
+        if (_windowOldHead != null) {
+            for (E entry = _windowOldHead.moreRecentEntry(); entry != _windowNewHead; entry = entry.moreRecentEntry()) {
+                keys.add(entry.getKey());
+            }
+        }
         return keys;
     }
     /*
@@ -463,10 +799,23 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         // First: verify that entry count agrees with one calculated via hash table chains:
         int primaryCount = 0;
         long primaryWeight = 0;
+        // (entries of earlier generations may not have been unlinked yet)
         for (E entry : _entries) {
             for (; entry != null; entry = entry._primaryCollision) {
-                ++primaryCount;
-                primaryWeight += entry.getWeight();
+                if (entry._generation == _generation) {
+                    ++primaryCount;
+                    primaryWeight += entry.getWeight();
+                }
+            }
+        }
+        if (_oldEntries != null) {
+            for (E entry : _oldEntries) {
+                for (; entry != null; entry = entry._primaryCollision) {
+                    if (entry._generation == _generation) {
+                        ++primaryCount;
+                        primaryWeight += entry.getWeight();
+                    }
+                }
             }
         }
         if (primaryCount != expCount) {
@@ -484,12 +833,14 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         if (oldCount != expCount) {
             throw new IllegalStateException("Invalid count by _oldEntryHead._newerEntry: actual "+oldCount+"; expected "+expCount);
         }
+        // note: LRU linkage is split if admission window is used
+        final int expLRUCount = expCount - _windowEntries;
         oldCount = -2;
         for (E entry = _oldEntryHead; entry != null; entry = entry.moreRecentEntry()) {
             ++oldCount;
         }
-        if (oldCount != expCount) {
-            throw new IllegalStateException("Invalid count by _oldEntryHead._moreRecentEntry: actual "+oldCount+"; expected "+expCount);
+        if (oldCount != expLRUCount) {
+            throw new IllegalStateException("Invalid count by _oldEntryHead._moreRecentEntry: actual "+oldCount+"; expected "+expLRUCount);
         }
 
         
@@ -505,8 +856,25 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         for (E entry = _newEntryHead; entry != null; entry = entry.lessRecentEntry()) {
             ++newCount;
         }
-        if (newCount != expCount) {
-            throw new IllegalStateException("Invalid count by _oldEntryHead.lessRecentEntry(): actual "+newCount+"; expected "+expCount);
+        if (newCount != expLRUCount) {
+            throw new IllegalStateException("Invalid count by _oldEntryHead.lessRecentEntry(): actual "+newCount+"; expected "+expLRUCount);
+        }
+        // and that all entries are in the expiration index
+        int wheelCount = _timerWheel.countEntries();
+        if (wheelCount != expCount) {
+            throw new IllegalStateException("Invalid count by timer wheel: actual "+wheelCount+"; expected "+expCount);
+        }
+        if (_windowOldHead != null) {
+            int windowCount = -2;
+            for (E entry = _windowOldHead; entry != null; entry = entry.moreRecentEntry()) {
+                if (entry != _windowOldHead && entry != _windowNewHead && !entry._inWindow) {
+                    throw new IllegalStateException("Entry "+entry+" in admission window LRU list not marked as being in window");
+                }
+                ++windowCount;
+            }
+            if (windowCount != _windowEntries) {
+                throw new IllegalStateException("Invalid count by _windowOldHead._moreRecentEntry: actual "+windowCount+"; expected "+_windowEntries);
+            }
         }
         // and expiration chains
     }
@@ -521,6 +889,208 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         return keyHash & (_entries.length - 1);
     }
 
+    /**
+     * Method for checking total number of slots in primary hash area(s);
+     * includes both new and old area during resizing.
+     */
+    protected final int _hashAreaSlots() {
+        return (_oldEntries == null) ? _entries.length : (_entries.length + _oldEntries.length);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, hash area resizing
+    /**********************************************************************
+     */
+
+    /**
+     * Method called before accessing hash area(s) using given key hash:
+     * if hash area is being resized, ensures that the bucket for the
+     * hash has been moved to new hash area, and also moves a few other buckets.
+     * Similarly, if entries of earlier generations remain, ensures that
+     * they are unlinked from the bucket, and sweeps a few other buckets.
+     */
+    protected final void _rehashFor(int keyHash)
+    {
+        if (_oldEntries != null) {
+            // note: step first, since completing it may start another resize
+            _rehashStep();
+            if (_oldEntries != null) {
+                _migrateBucket(keyHash & (_oldEntries.length - 1));
+            }
+        }
+        if (_sweepIndex >= 0) {
+            _sweepBucket(_primaryHashIndex(keyHash));
+            _sweepStep();
+        }
+    }
+
+    /**
+     * Method similar to {@link #_rehashFor}, but which only moves the
+     * specific bucket (if any); used from within removal methods, where
+     * bigger changes are not safe.
+     */
+    protected final void _migrateBucketFor(int keyHash)
+    {
+        if (_oldEntries != null) {
+            _migrateBucket(keyHash & (_oldEntries.length - 1));
+        }
+        if (_sweepIndex >= 0) {
+            _sweepBucket(_primaryHashIndex(keyHash));
+        }
+    }
+
+    /**
+     * Method for moving a few more buckets from the old hash area; and
+     * if all buckets have been moved, to complete resizing.
+     */
+    protected final void _rehashStep()
+    {
+        final int oldSize = _oldEntries.length;
+        int ix = _rehashIndex;
+        for (int end = Math.min(oldSize, ix + REHASH_BUCKETS_PER_OPERATION); ix < end; ++ix) {
+            _migrateBucket(ix);
+        }
+        _rehashIndex = ix;
+        if (ix >= oldSize) {
+            _finishResize();
+            // entry count may have changed enough to require another resize
+            _checkHashAreaSize();
+        }
+    }
+
+    /**
+     * Method that will move all entries in given bucket of old hash area(s)
+     * into new hash area(s). Entries are appended at the end of collision
+     * chains, to retain relative ordering of entries. Entries of earlier
+     * generations are dropped.
+     */
+    protected void _migrateBucket(int oldIndex)
+    {
+        E entry = _oldEntries[oldIndex];
+        if (entry == null) {
+            return;
+        }
+        _oldEntries[oldIndex] = null;
+        final E[] entries = _entries;
+        final int mask = entries.length - 1;
+        while (entry != null) {
+            E next = entry._primaryCollision;
+            if (entry._generation != _generation) {
+                entry = next;
+                continue;
+            }
+            entry._primaryCollision = null;
+            int index = entry._keyHash & mask;
+            E last = entries[index];
+            if (last == null) {
+                entries[index] = entry;
+            } else {
+                while (last._primaryCollision != null) {
+                    last = last._primaryCollision;
+                }
+                last._primaryCollision = entry;
+            }
+            entry = next;
+        }
+    }
+
+    /**
+     * Method for moving sweeping of entries of earlier generations forward
+     * by a few buckets; and if all buckets have been swept, to stop sweeping.
+     * Note that buckets of old hash area (if resizing) need not be swept, since
+     * such entries are dropped when buckets are moved.
+     */
+    protected final void _sweepStep()
+    {
+        final int size = _entries.length;
+        int ix = _sweepIndex;
+        for (int end = Math.min(size, ix + SWEEP_BUCKETS_PER_OPERATION); ix < end; ++ix) {
+            _sweepBucket(ix);
+        }
+        _sweepIndex = (ix >= size) ? -1 : ix;
+    }
+
+    /**
+     * Method for unlinking entries of earlier generations from given bucket
+     * of hash area(s). Unlinked entries retain their collision links, so that
+     * unsynchronized lookups that are traversing them are not affected.
+     */
+    protected void _sweepBucket(int index)
+    {
+        E prev = null;
+        for (E entry = _entries[index]; entry != null; entry = entry._primaryCollision) {
+            if (entry._generation == _generation) {
+                prev = entry;
+            } else if (prev == null) {
+                _entries[index] = entry._primaryCollision;
+            } else {
+                prev._primaryCollision = entry._primaryCollision;
+            }
+        }
+    }
+
+    /**
+     * Method called after modifications to see if hash area(s) should be
+     * resized: grown if there are more entries than slots; or shrunk if
+     * less than 1/8 of slots would be used (but not below {@link #_minHashAreaSize}).
+     */
+    protected final void _checkHashAreaSize()
+    {
+        if (_oldEntries == null) {
+            final int size = _entries.length;
+            if (_currentEntries > size) {
+                _startResize(size + size);
+            } else if ((size > _minHashAreaSize) && (_currentEntries < (size >> 3))) {
+                _startResize(size >> 1);
+            }
+        }
+    }
+
+    /**
+     * Method called to start resizing of hash area(s): new area is allocated
+     * but entries are moved incrementally.
+     */
+    protected void _startResize(int newSize)
+    {
+        _oldEntries = _entries;
+        _entries = _createHashArea(newSize);
+        _rehashIndex = 0;
+    }
+
+    protected void _finishResize()
+    {
+        _oldEntries = null;
+        _rehashIndex = 0;
+    }
+
+    /**
+     * Helper method that makes given entry the most recently used one,
+     * and updates its access count.
+     */
+    protected final void _markAsMostRecent(E entry)
+    {
+        // note: _newEntryHead and _oldEntryHead are placeholders
+        // first, unlink from previous chain
+        E prev = entry._lessRecentEntry;
+        E next = entry._moreRecentEntry;
+        prev._moreRecentEntry = next;
+        next._lessRecentEntry = prev;
+        // then add as new head (wrt LRU) of the list entry is in
+        next = entry._inWindow ? _windowNewHead : _newEntryHead;
+        prev = next._lessRecentEntry;
+        prev._moreRecentEntry = entry;
+        entry._lessRecentEntry = prev;
+        next._lessRecentEntry = entry;
+        entry._moreRecentEntry = next;
+
+        // and finally, update match count; may be used to decide on promotion/demotion
+        ++entry._timesReturned;
+        if (_frequencySketch != null) {
+            _frequencySketch.increment(entry._keyHash);
+        }
+    }
+
     /**
      * Helper method that will verify whether given entry is considered expired
      * at given timepoint.
@@ -532,23 +1102,24 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
     }
     
     /**
-     * Method that will delete the oldest entry in the cache, if there
-     * is at least one entry in the cache, and it was inserted at or
-     * before given timepoint.
+     * Method that will delete one of expired entries in the cache, if there
+     * is at least one entry that has expired at or before given timepoint.
+     * Expired entries are located using timer wheel, so that entries are
+     * removed regardless of their position in insertion order.
      * 
      * @param currTimeInQ Current timestamp in units of ~1/4 seconds
      */
-    protected boolean _invalidateOldestIfStale(int currTimeInQ)
+    protected boolean _invalidateNextStale(int currTimeInQ)
     {
-        E oldest = _oldEntryHead._newerEntry;
-        if (oldest != _newEntryHead) {
-            /* ok now: timestamps we use are relative (due to truncation), so
-             * we MUST compare by subtraction, compare difference
-             */
-            if (_expired(oldest, currTimeInQ)) {
-                _removeEntry(oldest);
-                return true;
-            }
+        _timerWheel.advance(currTimeInQ);
+        E expired = _timerWheel.firstExpired();
+        /* note: need to double-check expiration, in case time given is earlier
+         * than what wheel has been advanced to
+         */
+        if ((expired != null) && _expired(expired, currTimeInQ)) {
+            _removeEntry(expired);
+            ++_expirationCount;
+            return true;
         }
         return false;
     }
@@ -572,6 +1143,10 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         // First, update counts
         --_currentEntries;
         _currentContentsWeight -= entry._weight;
+        if (entry._inWindow) {
+            --_windowEntries;
+        }
+        _timerWheel.remove(entry);
 
         // Unlink from hash area
         E next = entry._primaryCollision;
@@ -594,14 +1169,43 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         _newEntryHead._lessRecentEntry = _oldEntryHead;
         _oldEntryHead._newerEntry = _newEntryHead;
         _oldEntryHead._moreRecentEntry = _newEntryHead;
+        if (_frequencySketch != null) {
+            _resetWindow();
+        }
+    }
+
+    protected final void _resetWindow()
+    {
+        _windowNewHead = _createDummyEntry();
+        _windowOldHead = _createDummyEntry();
+        _windowNewHead._lessRecentEntry = _windowOldHead;
+        _windowOldHead._moreRecentEntry = _windowNewHead;
+        _windowEntries = 0;
+    }
+
+    protected static int _calcMaxWindowEntries(int maxEntries)
+    {
+        return Math.max(1, (int) (((long) maxEntries * ADMISSION_WINDOW_PERCENT) / 100));
     }
 
     protected abstract E _createDummyEntry();
 
+    protected abstract E[] _createHashArea(int size);
+
     protected abstract E _createEntry(K key, int keyHash, V value, int expirationTime, int weight, E nextPrimaryCollision);
 
-    protected final void _linkNewEntry(long currentTime, E newEntry, int weight)
+    protected final void _linkNewEntry(long currentTime, E newEntry, int weight) {
+        _linkNewEntry(currentTime, newEntry, weight, _configInvalidatePerInsert);
+    }
+
+    /**
+     * @param staleToInvalidate Maximum number of stale entries to invalidate
+     *   (in addition to ones removed to stay within limits)
+     */
+    protected final void _linkNewEntry(long currentTime, E newEntry, int weight,
+            int staleToInvalidate)
     {
+        newEntry._generation = _generation;
         // ok; first insertion-order linked list:
         E next = _newEntryHead;
         E prev = next._olderEntry;
@@ -609,7 +1213,14 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         newEntry._newerEntry = next;
         prev._newerEntry = newEntry;
         newEntry._olderEntry = prev;
-        // then LRU listing (insertion counts as access, hence new entry will be most-recently-used)
+        // then LRU listing (insertion counts as access, hence new entry will be most-recently-used);
+        // with admission filter, new entries start in the admission window
+        if (_frequencySketch != null) {
+            newEntry._inWindow = true;
+            ++_windowEntries;
+            _frequencySketch.increment(newEntry._keyHash);
+            next = _windowNewHead;
+        }
         prev = next._lessRecentEntry;
         next._lessRecentEntry = newEntry;
         newEntry._moreRecentEntry = next;
@@ -618,28 +1229,162 @@ abstract class POJOCacheElementBase<K, V, E extends POJOCacheEntryBase<K,V,E>>
         // then update stats
         _currentEntries++;
         _currentContentsWeight += weight;
+        ++_insertCount;
+
+        // and add to expiration index
+        int expireTime = TimeUtil.timeToTimestamp(currentTime);
+        _timerWheel.advance(expireTime);
+        _timerWheel.schedule(newEntry);
 
         // Ok, then; let's see if we need to remove stale entries
-        int count = _configInvalidatePerInsert;
+        int count = staleToInvalidate;
         final long maxContentsWeight = maxContentsWeight();
-        int expireTime = TimeUtil.timeToTimestamp(currentTime);
         while ((count > 0) || (_currentEntries > _maxEntries) || (_currentContentsWeight > maxContentsWeight)) {
-            if (!_invalidateOldestIfStale(expireTime)) {
+            if (!_invalidateNextStale(expireTime)) {
                 break;
             }
             --count;
         }
+        // With admission filter, entries that overflow the window compete with LRU entries
+        if (_frequencySketch != null) {
+            _evictWithAdmission(maxContentsWeight);
+        }
         // And if we are still above limit, remove LRU entries
         count = 0;
         while ((_currentEntries > _maxEntries) || (_currentContentsWeight > maxContentsWeight)) {
-            E lru = _oldEntryHead._moreRecentEntry;
-            if (lru == _newEntryHead) { // should never occur...
+            E lru = _leastRecentEntry();
+            if (lru == null) { // should never occur...
                 throw new IllegalStateException("Flushed "+count+" entries, cache empty, still too many entries ("+_currentEntries
                         +") or too much weight ("+_currentContentsWeight+")");
             }
             _removeEntry(lru);
+            ++_evictionCount;
             ++count;
         }
+        _checkHashAreaSize();
     }
-}
 
+    /**
+     * Method for locating non-stale entry with given key, marking it as the most
+     * recently used one, and updating hit/miss statistics. Stale entry with the
+     * key, if any, is removed.
+     */
+    protected final E _findEntry(K key, int keyHash, int currTimeInQ)
+    {
+        _rehashFor(keyHash);
+        int index = _primaryHashIndex(keyHash);
+        // First, locate the entry, but keep track of position within hash/collision chain:
+        E prev = null;
+        for (E entry = _entries[index]; entry != null; entry = entry._primaryCollision) {
+            if ((entry._keyHash == keyHash) && _keyConverter.keysEqual(key, entry.getKey())) {
+                return _foundEntry(entry, index, prev, currTimeInQ);
+            }
+            prev = entry;
+        }
+        return _missedEntry(keyHash);
+    }
+
+    /**
+     * Helper method called by lookups once entry with matching key has been
+     * located: stale entries are removed (and lookup counted as a miss);
+     * others are marked as the most recently used, and counted as hits.
+     *
+     * @param index Index of the hash bucket entry is in
+     * @param prev Entry preceding given entry in the collision chain, if any
+     */
+    protected final E _foundEntry(E entry, int index, E prev, int currTimeInQ)
+    {
+        if (_expired(entry, currTimeInQ)) {
+            _removeEntry(entry, index, prev);
+            ++_expirationCount;
+            return _missedEntry(entry._keyHash);
+        }
+        _markAsMostRecent(entry);
+        ++_hitCount;
+        return entry;
+    }
+
+    /**
+     * Helper method called by lookups that found no live entry.
+     *
+     * @return Always null
+     */
+    protected final E _missedEntry(int keyHash)
+    {
+        ++_missCount;
+        // misses count as accesses for admission purposes as well
+        if (_frequencySketch != null) {
+            _frequencySketch.increment(keyHash);
+        }
+        return null;
+    }
+
+    /**
+     * Method for finding the entry to evict when cache is over its limits:
+     * least-recently used entry of main area; or, if main area is empty,
+     * that of admission window.
+     *
+     * @return Least-recently used entry, if any; null if cache is empty
+     */
+    protected final E _leastRecentEntry()
+    {
+        E lru = _oldEntryHead._moreRecentEntry;
+        if (lru == _newEntryHead) {
+            if (_windowEntries == 0) {
+                return null;
+            }
+            lru = _windowOldHead._moreRecentEntry;
+        }
+        return lru;
+    }
+
+    /**
+     * Method called when admission filter is used, to move entries
+     * that overflow the admission window into main area. If cache is
+     * over its limits, such candidate entries compete with the least-recently
+     * used entry of main area, and whichever has lower estimated access
+     * frequency gets evicted (in case of a tie, candidate is evicted).
+     */
+    protected final void _evictWithAdmission(long maxContentsWeight)
+    {
+        while (_windowEntries > _maxWindowEntries) {
+            final E candidate = _windowOldHead._moreRecentEntry;
+            _moveFromWindow(candidate);
+            while ((_currentEntries > _maxEntries) || (_currentContentsWeight > maxContentsWeight)) {
+                E victim = _oldEntryHead._moreRecentEntry;
+                if (victim == candidate) { // nothing else in main area to evict
+                    break;
+                }
+                if (_frequencySketch.frequency(candidate._keyHash) > _frequencySketch.frequency(victim._keyHash)) {
+                    _removeEntry(victim);
+                    ++_evictionCount;
+                } else {
+                    _removeEntry(candidate);
+                    ++_evictionCount;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper method for moving given entry from admission window to be
+     * the most-recently used entry of the main area.
+     */
+    protected final void _moveFromWindow(E entry)
+    {
+        E prev = entry._lessRecentEntry;
+        E next = entry._moreRecentEntry;
+        prev._moreRecentEntry = next;
+        next._lessRecentEntry = prev;
+        entry._inWindow = false;
+        --_windowEntries;
+
+        next = _newEntryHead;
+        prev = next._lessRecentEntry;
+        prev._moreRecentEntry = entry;
+        entry._lessRecentEntry = prev;
+        next._lessRecentEntry = entry;
+        entry._moreRecentEntry = next;
+    }
+}
@@ -16,10 +16,10 @@ public class POJOCacheEntry<K, V>
      * This is our guestimation of per-entry base overhead JVM incurs; it is used
      * to get closer approximation of true memory usage of cache structure.
      * We will use 16 bytes for base object, and otherwise typical 32-bit system
-     * values for 11 fields we have. This gives estimation of 60 bytes; not
+     * values for 16 fields we have. This gives estimation of 80 bytes; not
      * including referenced objects (_key, value)
      */
-    public final static int MEM_USAGE_PER_ENTRY = 16 + (11 * 4);
+    public final static int MEM_USAGE_PER_ENTRY = 16 + (16 * 4);
 
     /*
     /**********************************************************************
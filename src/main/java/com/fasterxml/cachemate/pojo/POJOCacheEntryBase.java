@@ -76,6 +76,28 @@ abstract class POJOCacheEntryBase<K, V, SUBTYPE extends POJOCacheEntryBase<K, V,
      * in same bucket as this entry. Null if no collisions for bucket
      */
     protected SUBTYPE _primaryCollision;
+
+    /*
+    /**********************************************************************
+    /* Links between entries; expiration timer wheel
+    /**********************************************************************
+     */
+
+    /**
+     * Next entry in the timer wheel bucket this entry is in, if any
+     */
+    protected SUBTYPE _nextInWheel;
+
+    /**
+     * Previous entry in the timer wheel bucket this entry is in; null
+     * if this is the first entry (or not in wheel)
+     */
+    protected SUBTYPE _prevInWheel;
+
+    /**
+     * Index of timer wheel bucket this entry is in; -1 if not in wheel
+     */
+    protected int _wheelIndex = TimerWheel.NOT_IN_WHEEL;
     
     /*
     /**********************************************************************
@@ -101,6 +123,20 @@ abstract class POJOCacheEntryBase<K, V, SUBTYPE extends POJOCacheEntryBase<K, V,
      */
     protected int _timesReturned;
 
+    /**
+     * Flag that indicates whether this entry is in the admission window
+     * (when admission filter is used), in which case its LRU links
+     * point to other window entries, instead of main LRU list.
+     */
+    protected boolean _inWindow;
+
+    /**
+     * Generation of the owning cache element at the time entry was added;
+     * entries from earlier generations (ones added before all entries
+     * were removed) are not considered to be in the cache.
+     */
+    protected int _generation;
+
     /*
     /**********************************************************************
     /* Construction
@@ -132,8 +168,12 @@ abstract class POJOCacheEntryBase<K, V, SUBTYPE extends POJOCacheEntryBase<K, V,
     /**********************************************************************
      */
 
+    /**
+     * Note: not final, since entries that store primitive keys need to
+     * construct key object on demand.
+     */
     @Override
-    public final K getKey() { return _key; }
+    public K getKey() { return _key; }
 
     @Override
     public final V getValue() { return _value; }
@@ -156,6 +196,9 @@ abstract class POJOCacheEntryBase<K, V, SUBTYPE extends POJOCacheEntryBase<K, V,
     public long getExpirationInMilliSeconds(long currentTime) {
         return TimeUtil.getExpirationInMilliSeconds(currentTime, _expirationTime);
     }
+
+    @Override
+    public int getTimesReturned() { return _timesReturned; }
     
     /*
     /**********************************************************************
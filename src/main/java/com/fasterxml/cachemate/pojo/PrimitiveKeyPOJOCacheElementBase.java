@@ -0,0 +1,189 @@
+package com.fasterxml.cachemate.pojo;
+
+import com.fasterxml.cachemate.converters.KeyConverter;
+import com.fasterxml.cachemate.util.PlatformConstants;
+import com.fasterxml.cachemate.util.TimeUtil;
+
+/**
+ * Shared base class for {@link LongKeyPOJOCacheElement} and
+ * {@link IntKeyPOJOCacheElement}: contains lookup, insertion and removal
+ * logic using primitive keys (passed as <code>long</code>s, since those can
+ * represent <code>int</code> keys as well), so that no key objects need
+ * to be allocated. Sub-classes only need to define how primitive keys are
+ * stored in, and accessed from, entries.
+ *
+ * @param <K> Type of boxed keys cache element contains
+ * @param <V> Type of values cache element containts
+ * @param <E> Type of entries cache element contains
+ */
+abstract class PrimitiveKeyPOJOCacheElementBase<K extends Number, V,
+        E extends POJOCacheEntryBase<K,V,E>>
+    extends POJOCacheElementBase<K, V, E>
+{
+    /**
+     * This base class has this many fields; count is
+     * used for estimating rough in-memory size
+     * for the cache as total.
+     */
+    protected final static int IMPL_FIELD_COUNT = BASE_FIELD_COUNT + 1;
+
+    private final static int BASE_MEM_USAGE = PlatformConstants.BASE_OBJECT_MEMORY_USAGE
+        + (IMPL_FIELD_COUNT * PlatformConstants.BASE_FIELD_MEMORY_USAGE)
+        + (TimerWheel.SLOT_COUNT * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
+
+    /**
+     * Maximum weight (approximate size) of all entries cache can contain.
+     * Set to maximum weight allowed minus overhead of the cache structure
+     * itself.
+     */
+    protected long _maxContentsWeight;
+
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    protected PrimitiveKeyPOJOCacheElementBase(KeyConverter<K> keyConverter,
+            int maxEntries, long maxWeight, int timeToLiveSecs, E[] hashArea)
+    {
+        super(keyConverter, maxEntries, timeToLiveSecs, hashArea);
+        _resetOldestAndNewest();
+        _maxContentsWeight = maxWeight - BASE_MEM_USAGE - (_entries.length * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public methods, other
+    /**********************************************************************
+     */
+
+    @Override
+    public final long weight() {
+        return BASE_MEM_USAGE + _currentContentsWeight
+            + (_hashAreaSlots() * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
+    }
+
+    @Override
+    public long maxContentsWeight() {
+        return _maxContentsWeight;
+    }
+
+    /*
+    /**********************************************************************
+    /* Abstract methods for sub-classes
+    /**********************************************************************
+     */
+
+    /**
+     * Accessor for primitive key of given entry, widened to <code>long</code>
+     */
+    protected abstract long _primitiveKey(E entry);
+
+    protected abstract E _createEntryForKey(long key, int keyHash, V value, int expirationTime, int weight,
+            E nextPrimaryCollision);
+
+    /*
+    /**********************************************************************
+    /* Overridden/implemented base class methods
+    /**********************************************************************
+     */
+
+    @Override
+    protected final E _createEntry(K key, int keyHash, V value, int expirationTime, int weight,
+            E nextCollision) {
+        return _createEntryForKey(key.longValue(), keyHash, value, expirationTime, weight, nextCollision);
+    }
+
+    @Override
+    protected final void _removeEntry(E entry)
+    {
+        _migrateBucketFor(entry._keyHash);
+        int index = _primaryHashIndex(entry._keyHash);
+        E curr = _entries[index];
+        E prev = null;
+        while (curr != null) {
+            if (curr == entry) {
+                _removeEntry(entry, index, prev);
+                return;
+            }
+            prev = curr;
+            curr = curr._primaryCollision;
+        }
+        // should never occur, so:
+        throw new IllegalStateException("Internal data error: could not find entry (index "+index+"/"+_entries.length+"), _key "+_primitiveKey(entry));
+    }
+
+    @Override
+    protected final E _removeByPrimary(long currentTime, K key, int keyHash) {
+        return _removeByKey(key.longValue(), keyHash);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods: put, find, remove with primitive keys
+    /**********************************************************************
+     */
+
+    protected final E _putEntryForKey(long currentTime, int timeToLiveQ,
+            long key, int keyHash, V value, int weight)
+    {
+        _rehashFor(keyHash);
+        E existingEntry = _removeByKey(key, keyHash);
+        int index = _primaryHashIndex(keyHash);
+        E newEntry = _createEntryForKey(key, keyHash, value,
+                TimeUtil.timeToTimestamp(currentTime) + timeToLiveQ, weight, _entries[index]);
+        _entries[index] = newEntry;
+        _linkNewEntry(currentTime, newEntry, weight);
+        return existingEntry;
+    }
+
+    protected final E _findEntryForKey(long currentTime, long key, int keyHash)
+    {
+        final int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+        E entry = _lookupByKey(key, keyHash, currTimeInQ);
+        _invalidateAfterGet(currTimeInQ);
+        return entry;
+    }
+
+    /**
+     * Counterpart of {@link #_findEntry(Object, int, int)} for primitive keys;
+     * hit/miss statistics are updated same way.
+     */
+    protected final E _lookupByKey(long key, int keyHash, int currTimeInQ)
+    {
+        _rehashFor(keyHash);
+        int index = _primaryHashIndex(keyHash);
+        E prev = null;
+        for (E entry = _entries[index]; entry != null; entry = entry._primaryCollision) {
+            if (_primitiveKey(entry) == key) {
+                return _foundEntry(entry, index, prev, currTimeInQ);
+            }
+            prev = entry;
+        }
+        return _missedEntry(keyHash);
+    }
+
+    protected final E _removeEntryForKey(long currentTime, long key, int keyHash)
+    {
+        _rehashFor(keyHash);
+        E entry = _removeByKey(key, keyHash);
+        _afterRemove(currentTime, entry);
+        return entry;
+    }
+
+    protected final E _removeByKey(long key, int keyHash)
+    {
+        _migrateBucketFor(keyHash);
+        int index = _primaryHashIndex(keyHash);
+        E prev = null;
+        for (E entry = _entries[index]; entry != null; entry = entry._primaryCollision) {
+            if (_primitiveKey(entry) == key) {
+                _removeEntry(entry, index, prev);
+                return entry;
+            }
+            prev = entry;
+        }
+        return null;
+    }
+}
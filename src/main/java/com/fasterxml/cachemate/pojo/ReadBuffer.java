@@ -0,0 +1,153 @@
+package com.fasterxml.cachemate.pojo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lossy buffer used for recording cache hits that were made without holding
+ * a lock, so that their effects (changes to LRU ordering) can be applied
+ * later on in batches, by a thread that holds the lock ("BP-Wrapper" style
+ * batching).
+ *<p>
+ * Buffer is split into a set of ring buffers (stripes), selected based on
+ * the calling thread, to reduce contention between reader threads.
+ * Recording never blocks: if a ring buffer is full, or if there is contention
+ * for a slot, access is simply dropped; this is acceptable since LRU
+ * ordering is approximate to begin with.
+ *<p>
+ * Recording may be done by any number of threads concurrently; draining
+ * must be done by one thread at a time (usually one holding the lock
+ * of the cache element that entries belong to).
+ */
+final class ReadBuffer<E extends POJOCacheEntryBase<?,?,E>>
+{
+    /**
+     * Number of slots in each ring buffer; must be a power of two.
+     */
+    protected final static int STRIPE_SIZE = 32;
+
+    protected final static int STRIPE_MASK = STRIPE_SIZE - 1;
+
+    /**
+     * Number of pending accesses within a stripe that triggers
+     * an attempt to drain buffers.
+     */
+    protected final static int DRAIN_THRESHOLD = STRIPE_SIZE / 2;
+
+    /**
+     * Ring buffers for recorded entries
+     */
+    private final AtomicReferenceArray<E>[] _slots;
+
+    /**
+     * Number of entries ever recorded in each ring buffer; used
+     * for determining write position
+     */
+    private final AtomicLong[] _writeCounts;
+
+    /**
+     * Number of entries ever drained from each ring buffer; used
+     * for determining read position. Only modified by draining thread.
+     */
+    private final AtomicLong[] _readCounts;
+
+    private final int _stripeMask;
+
+    @SuppressWarnings("unchecked")
+    public ReadBuffer(int stripes)
+    {
+        int count = 1;
+        while (count < stripes) {
+            count += count;
+        }
+        _stripeMask = count - 1;
+        _slots = (AtomicReferenceArray<E>[]) new AtomicReferenceArray<?>[count];
+        _writeCounts = new AtomicLong[count];
+        _readCounts = new AtomicLong[count];
+        for (int i = 0; i < count; ++i) {
+            _slots[i] = new AtomicReferenceArray<E>(STRIPE_SIZE);
+            _writeCounts[i] = new AtomicLong();
+            _readCounts[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Method called to record access to given entry.
+     *
+     * @return True if the caller should try to drain the buffer (because stripe
+     *   is getting full); false if not
+     */
+    public boolean record(E entry)
+    {
+        final int stripe = _stripeIndex();
+        final AtomicLong writeCount = _writeCounts[stripe];
+        final long tail = writeCount.get();
+        final int pending = (int) (tail - _readCounts[stripe].get());
+        if (pending >= STRIPE_SIZE) { // full; drop access, but ask for drain
+            return true;
+        }
+        // if another thread raced to the slot, just drop this access
+        if (writeCount.compareAndSet(tail, tail+1)) {
+            _slots[stripe].lazySet((int) tail & STRIPE_MASK, entry);
+        }
+        return (pending + 1) >= DRAIN_THRESHOLD;
+    }
+
+    /**
+     * Method called by the thread that holds the lock of given element,
+     * to apply all recorded accesses.
+     *
+     * @return Number of accesses applied
+     */
+    public int drainTo(POJOCacheElementBase<?,?,E> element)
+    {
+        int total = 0;
+        for (int stripe = 0, end = _slots.length; stripe < end; ++stripe) {
+            final AtomicReferenceArray<E> slots = _slots[stripe];
+            final AtomicLong readCount = _readCounts[stripe];
+            long head = readCount.get();
+            final long tail = _writeCounts[stripe].get();
+            for (; head < tail; ++head) {
+                final int index = (int) head & STRIPE_MASK;
+                E entry = slots.get(index);
+                if (entry == null) { // slot claimed but not yet written; leave for next drain
+                    break;
+                }
+                slots.lazySet(index, null);
+                element._applyBufferedRead(entry);
+                ++total;
+            }
+            readCount.lazySet(head);
+        }
+        return total;
+    }
+
+    /**
+     * Method called when contents of the cache element are cleared, to drop
+     * any pending accesses.
+     */
+    public void clear()
+    {
+        for (int stripe = 0, end = _slots.length; stripe < end; ++stripe) {
+            final AtomicReferenceArray<E> slots = _slots[stripe];
+            final AtomicLong readCount = _readCounts[stripe];
+            long head = readCount.get();
+            final long tail = _writeCounts[stripe].get();
+            for (; head < tail; ++head) {
+                final int index = (int) head & STRIPE_MASK;
+                if (slots.get(index) == null) {
+                    break;
+                }
+                slots.lazySet(index, null);
+            }
+            readCount.lazySet(head);
+        }
+    }
+
+    private int _stripeIndex()
+    {
+        // scramble thread id, to spread sequential ids
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return (h >>> 16) & _stripeMask;
+    }
+}
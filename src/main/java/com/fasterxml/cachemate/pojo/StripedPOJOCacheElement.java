@@ -0,0 +1,816 @@
+package com.fasterxml.cachemate.pojo;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.cachemate.CacheElement;
+import com.fasterxml.cachemate.CacheEntry;
+import com.fasterxml.cachemate.CacheStats;
+import com.fasterxml.cachemate.converters.KeyConverter;
+import com.fasterxml.cachemate.util.StripedCounter;
+import com.fasterxml.cachemate.util.TimeUtil;
+
+/**
+ * {@link CacheElement} implementation that is safe to use from multiple
+ * threads concurrently, without external synchronization.
+ * Key space is partitioned (based on key hash) into a set of
+ * independently locked {@link POJOCacheElement} segments, each of which
+ * gets its share of maximum entry count and maximum weight.
+ * Because of this, global limits are only approximately enforced: a segment
+ * may start evicting entries before the cache as a whole is full, if keys
+ * are not evenly distributed.
+ *<p>
+ * Entries returned by methods are the same immutable entry objects that
+ * segments use; their keys and values may be safely accessed after the
+ * call returns, without synchronization.
+ *<p>
+ * Element may optionally be constructed to use "buffered reads": if so,
+ * lookups are done without locking, and hits are recorded in lossy
+ * per-segment {@link ReadBuffer}s; LRU ordering is then updated in batches,
+ * either when buffers fill up (by a reader thread that manages to acquire
+ * the segment lock without blocking), or before any modification.
+ * This allows reads to scale with number of cores, at the cost of
+ * approximate LRU ordering and weakly consistent lookups (a lookup
+ * that races with modification of the same key may see either old or
+ * new state; misses that race with any modification of the segment are
+ * rechecked with segment lock held). Stale entries are also only removed by the maintenance done
+ * when draining buffers, and by modifications.
+ *
+ * @param <K> Type of keys cache element contains
+ * @param <V> Type of values cache element containts
+ */
+public class StripedPOJOCacheElement<K, V>
+    implements CacheElement<K, V>
+{
+    /**
+     * Number of segments to use, unless explicitly specified
+     */
+    public final static int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    /**
+     * Upper limit for number of segments to use
+     */
+    protected final static int MAX_CONCURRENCY_LEVEL = 1 << 16;
+
+    /*
+    /**********************************************************************
+    /* Configuration
+    /**********************************************************************
+     */
+
+    protected final KeyConverter<K> _keyConverter;
+
+    /**
+     * Maximum number of entries across all segments
+     */
+    protected final int _maxEntries;
+
+    /**
+     * Number of bits to shift scrambled key hash to the right, to get
+     * index of the segment
+     */
+    protected final int _segmentShift;
+
+    /*
+    /**********************************************************************
+    /* Segments
+    /**********************************************************************
+     */
+
+    /**
+     * Segments that contain actual entries; each one guarded by the lock
+     * with same index in {@link #_locks}.
+     */
+    protected final POJOCacheElement<K,V>[] _segments;
+
+    protected final ReentrantLock[] _locks;
+
+    /**
+     * Per-thread scratch arrays (created as needed) used by batch operations
+     * for grouping keys by segment
+     */
+    protected final ThreadLocal<BatchScratch> _batchScratch;
+
+    /*
+    /**********************************************************************
+    /* State for buffered reads
+    /**********************************************************************
+     */
+
+    /**
+     * Buffers for recording hits, one per segment, if buffered reads are enabled;
+     * null if not.
+     */
+    protected final ReadBuffer<POJOCacheEntry<K,V>>[] _readBuffers;
+
+    /**
+     * Modification counts of segments, when using buffered reads; incremented
+     * (with lock held) both before and after every modification, so that
+     * count is odd while modification is in progress. Read before
+     * unsynchronized lookups, to guarantee visibility of changes; and after
+     * misses, to detect modifications (such as incremental resizing of hash
+     * area) that may have hidden entries from lookup.
+     */
+    protected final AtomicIntegerArray _modCounts;
+
+    /**
+     * Number of hits for lookups done without locking (with buffered reads);
+     * null if buffered reads are not used. Lookups done with segment
+     * lock held are counted by segments themselves.
+     */
+    protected final StripedCounter _bufferedHits;
+
+    /**
+     * Number of misses for lookups done without locking (with buffered reads);
+     * null if buffered reads are not used.
+     */
+    protected final StripedCounter _bufferedMisses;
+
+    /*
+    /**********************************************************************
+    /* Construction
+    /**********************************************************************
+     */
+
+    /**
+     * @param timeToLiveSecs Amount of time entries will remain fresh (non-stale) in
+     *   cache; in seconds.
+     */
+    public StripedPOJOCacheElement(KeyConverter<K> keyConverter,
+            int maxEntries, long maxWeight,
+            int timeToLiveSecs)
+    {
+        this(keyConverter, maxEntries, maxWeight, timeToLiveSecs, DEFAULT_CONCURRENCY_LEVEL, false);
+    }
+
+    /**
+     * @param timeToLiveSecs Amount of time entries will remain fresh (non-stale) in
+     *   cache; in seconds.
+     * @param concurrencyLevel Number of independently locked segments to use;
+     *   rounded up to the next power of two.
+     */
+    public StripedPOJOCacheElement(KeyConverter<K> keyConverter,
+            int maxEntries, long maxWeight,
+            int timeToLiveSecs, int concurrencyLevel)
+    {
+        this(keyConverter, maxEntries, maxWeight, timeToLiveSecs, concurrencyLevel, false);
+    }
+
+    /**
+     * @param timeToLiveSecs Amount of time entries will remain fresh (non-stale) in
+     *   cache; in seconds.
+     * @param concurrencyLevel Number of independently locked segments to use;
+     *   rounded up to the next power of two.
+     * @param bufferedReads Whether lookups are to be done without locking,
+     *   with LRU updates buffered and applied in batches
+     */
+    @SuppressWarnings("unchecked")
+    public StripedPOJOCacheElement(KeyConverter<K> keyConverter,
+            int maxEntries, long maxWeight,
+            int timeToLiveSecs, int concurrencyLevel, boolean bufferedReads)
+    {
+        _keyConverter = keyConverter;
+        _maxEntries = maxEntries;
+        int count = 1;
+        int shift = 32;
+        while (count < concurrencyLevel && count < MAX_CONCURRENCY_LEVEL) {
+            count += count;
+            --shift;
+        }
+        _segmentShift = shift;
+        _segments = (POJOCacheElement<K,V>[]) new POJOCacheElement<?,?>[count];
+        _locks = new ReentrantLock[count];
+        // round entry count up, so that total is never below what was requested
+        final int entriesPerSegment = Math.max(1, (maxEntries + count - 1) / count);
+        final long weightPerSegment = maxWeight / count;
+        for (int i = 0; i < count; ++i) {
+            _segments[i] = new POJOCacheElement<K,V>(keyConverter,
+                    entriesPerSegment, weightPerSegment, timeToLiveSecs);
+            _locks[i] = new ReentrantLock();
+        }
+        final int segmentCount = count;
+        _batchScratch = new ThreadLocal<BatchScratch>() {
+            @Override
+            protected BatchScratch initialValue() {
+                return new BatchScratch(segmentCount);
+            }
+        };
+        if (bufferedReads) {
+            _readBuffers = (ReadBuffer<POJOCacheEntry<K,V>>[]) new ReadBuffer<?>[count];
+            final int stripes = Runtime.getRuntime().availableProcessors();
+            for (int i = 0; i < count; ++i) {
+                _readBuffers[i] = new ReadBuffer<POJOCacheEntry<K,V>>(stripes);
+            }
+            _modCounts = new AtomicIntegerArray(count);
+            _bufferedHits = new StripedCounter(stripes);
+            _bufferedMisses = new StripedCounter(stripes);
+        } else {
+            _readBuffers = null;
+            _modCounts = null;
+            _bufferedHits = null;
+            _bufferedMisses = null;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, config access
+    /**********************************************************************
+     */
+
+    public int getConcurrencyLevel() {
+        return _segments.length;
+    }
+
+    public boolean usesBufferedReads() {
+        return _readBuffers != null;
+    }
+
+    public int getConfigInvalidatePerGet() {
+        return _segments[0].getConfigInvalidatePerGet();
+    }
+
+    public void setConfigInvalidatePerGet(int value)
+    {
+        for (int i = 0, end = _segments.length; i < end; ++i) {
+            _lockSegment(i);
+            try {
+                _segments[i].setConfigInvalidatePerGet(value);
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+    }
+
+    /**
+     * Method for enabling admission filter for all segments; see
+     * {@link POJOCacheElementBase#enableAdmissionFilter} for details.
+     *
+     * @throws IllegalStateException If cache element is not empty
+     */
+    public void enableAdmissionFilter()
+    {
+        for (int i = 0, end = _segments.length; i < end; ++i) {
+            _lockSegment(i);
+            try {
+                _segments[i].enableAdmissionFilter();
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+    }
+
+    public boolean usesAdmissionFilter() {
+        return _segments[0].usesAdmissionFilter();
+    }
+
+    /*
+    /**********************************************************************
+    /* Public methods: put, find, remove
+    /**********************************************************************
+     */
+
+    @Override
+    public final POJOCacheEntry<K,V> putEntry(long currentTime, K key, V value, int weight) {
+        return putEntry(currentTime, key, _keyConverter.keyHash(key), value, weight);
+    }
+
+    @Override
+    public final POJOCacheEntry<K,V> putEntry(long currentTime, int timeToLiveSecs,
+            K key, V value, int weight) {
+        return putEntry(currentTime, timeToLiveSecs, key, _keyConverter.keyHash(key), value, weight);
+    }
+
+    @Override
+    public final POJOCacheEntry<K,V> putEntry(long currentTime,
+            K key, int keyHash, V value, int weight)
+    {
+        final int index = _segmentIndex(keyHash);
+        _lockSegment(index);
+        try {
+            return _segments[index].putEntry(currentTime, key, keyHash, value, weight);
+        } finally {
+            _unlockSegment(index);
+        }
+    }
+
+    @Override
+    public final POJOCacheEntry<K,V> putEntry(long currentTime, int timeToLiveSecs,
+            K key, int keyHash, V value, int weight)
+    {
+        final int index = _segmentIndex(keyHash);
+        _lockSegment(index);
+        try {
+            return _segments[index].putEntry(currentTime, timeToLiveSecs, key, keyHash, value, weight);
+        } finally {
+            _unlockSegment(index);
+        }
+    }
+
+    @Override
+    public final POJOCacheEntry<K,V> findEntry(long currentTime, K key) {
+        return findEntry(currentTime, key, _keyConverter.keyHash(key));
+    }
+
+    @Override
+    public POJOCacheEntry<K,V> findEntry(long currentTime, K key, int keyHash)
+    {
+        final int index = _segmentIndex(keyHash);
+        if (_readBuffers != null) {
+            return _findEntryBuffered(index, currentTime, key, keyHash);
+        }
+        _lockSegment(index);
+        try {
+            return _segments[index].findEntry(currentTime, key, keyHash);
+        } finally {
+            _unlockSegment(index);
+        }
+    }
+
+    @Override
+    public final POJOCacheEntry<K,V> removeEntry(long currentTime, K key) {
+        return removeEntry(currentTime, key, _keyConverter.keyHash(key));
+    }
+
+    @Override
+    public final POJOCacheEntry<K,V> removeEntry(long currentTime, K key, int keyHash)
+    {
+        final int index = _segmentIndex(keyHash);
+        _lockSegment(index);
+        try {
+            return _segments[index].removeEntry(currentTime, key, keyHash);
+        } finally {
+            _unlockSegment(index);
+        }
+    }
+
+    /**
+     * Keys are grouped by segment, so that lock of each segment is acquired at
+     * most once per call (or never, if buffered reads are used).
+     */
+    @Override
+    public int findEntries(long currentTime, K[] keys, CacheEntry<K,V>[] results, int count)
+    {
+        int found = 0;
+        if (_readBuffers != null) {
+            for (int i = 0; i < count; ++i) {
+                K key = keys[i];
+                int keyHash = _keyConverter.keyHash(key);
+                POJOCacheEntry<K,V> entry = _findEntryBuffered(_segmentIndex(keyHash), currentTime, key, keyHash);
+                results[i] = entry;
+                if (entry != null) {
+                    ++found;
+                }
+            }
+            return found;
+        }
+        final BatchScratch scratch = _groupBySegment(keys, count);
+        final int[] hashes = scratch.hashes;
+        final int[] order = scratch.order;
+        final int[] segmentEnds = scratch.segmentEnds;
+        final int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+        for (int index = 0, start = 0; start < count; ++index) {
+            final int end = segmentEnds[index];
+            if (start == end) { // no keys for this segment
+                continue;
+            }
+            final POJOCacheElement<K,V> segment = _segments[index];
+            _lockSegment(index);
+            try {
+                for (; start < end; ++start) {
+                    final int i = order[start];
+                    POJOCacheEntry<K,V> entry = segment._findEntry(keys[i], hashes[i], currTimeInQ);
+                    results[i] = entry;
+                    if (entry != null) {
+                        ++found;
+                    }
+                }
+                segment.invalidateStale(currentTime, segment._configInvalidatePerGet);
+            } finally {
+                _unlockSegment(index);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Entries are grouped by segment, so that lock of each segment is acquired at
+     * most once per call.
+     */
+    @Override
+    public int putEntries(long currentTime, K[] keys, V[] values, int[] weights, int count)
+    {
+        final BatchScratch scratch = _groupBySegment(keys, count);
+        final int[] hashes = scratch.hashes;
+        final int[] order = scratch.order;
+        final int[] segmentEnds = scratch.segmentEnds;
+        int replaced = 0;
+        for (int index = 0, start = 0; start < count; ++index) {
+            final int end = segmentEnds[index];
+            if (start == end) {
+                continue;
+            }
+            final POJOCacheElement<K,V> segment = _segments[index];
+            _lockSegment(index);
+            try {
+                // grouping retains relative order, so that last one of duplicate keys wins
+                for (; start < end; ++start) {
+                    final int i = order[start];
+                    if (segment._putEntry(currentTime, segment._configTimeToLive,
+                            keys[i], hashes[i], values[i], weights[i], 0) != null) {
+                        ++replaced;
+                    }
+                }
+                segment.invalidateStale(currentTime, segment._configInvalidatePerInsert);
+            } finally {
+                _unlockSegment(index);
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Note: segments are cleared one at a time, so concurrent insertions
+     * into already cleared segments may remain after call completes.
+     */
+    @Override
+    public void removeAll()
+    {
+        for (int i = 0, end = _segments.length; i < end; ++i) {
+            _lockSegment(i);
+            try {
+                _segments[i].removeAll();
+                if (_readBuffers != null) {
+                    _readBuffers[i].clear();
+                }
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Public methods, invalidation
+    /**********************************************************************
+     */
+
+    @Override
+    public final int invalidateStale(long currentTimeMsecs) {
+        return invalidateStale(currentTimeMsecs, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int invalidateStale(long currentTimeMsecs, int maxToInvalidate)
+    {
+        int count = 0;
+        for (int i = 0, end = _segments.length; (i < end) && (count < maxToInvalidate); ++i) {
+            _lockSegment(i);
+            try {
+                count += _segments[i].invalidateStale(currentTimeMsecs, maxToInvalidate - count);
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+        return count;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, stats
+    /**********************************************************************
+     */
+
+    @Override
+    public int size()
+    {
+        int count = 0;
+        for (int i = 0, end = _segments.length; i < end; ++i) {
+            _lockSegment(i);
+            try {
+                count += _segments[i].size();
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long contentsWeight()
+    {
+        long weight = 0L;
+        for (int i = 0, end = _segments.length; i < end; ++i) {
+            _lockSegment(i);
+            try {
+                weight += _segments[i].contentsWeight();
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+        return weight;
+    }
+
+    public long maxContentsWeight()
+    {
+        long weight = 0L;
+        for (POJOCacheElement<K,V> segment : _segments) {
+            weight += segment.maxContentsWeight();
+        }
+        return weight;
+    }
+
+    @Override
+    public long weight()
+    {
+        long weight = 0L;
+        for (int i = 0, end = _segments.length; i < end; ++i) {
+            _lockSegment(i);
+            try {
+                weight += _segments[i].weight();
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+        return weight;
+    }
+
+    @Override
+    public CacheStats getStats()
+    {
+        long hits = 0L, misses = 0L, insertions = 0L;
+        long evictions = 0L, expirations = 0L, removals = 0L;
+        int entries = 0;
+        long contentsWeight = 0L, totalWeight = 0L;
+        for (int i = 0, end = _segments.length; i < end; ++i) {
+            _lockSegment(i);
+            try {
+                CacheStats stats = _segments[i].getStats();
+                hits += stats.getHits();
+                misses += stats.getMisses();
+                insertions += stats.getInsertions();
+                evictions += stats.getEvictions();
+                expirations += stats.getExpirations();
+                removals += stats.getRemovals();
+                entries += stats.getEntryCount();
+                contentsWeight += stats.getContentsWeight();
+                totalWeight += stats.getTotalWeight();
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+        if (_bufferedHits != null) {
+            hits += _bufferedHits.get();
+            misses += _bufferedMisses.get();
+        }
+        return new CacheStats(hits, misses, insertions,
+                evictions, expirations, removals,
+                entries, contentsWeight, totalWeight,
+                _maxEntries, maxContentsWeight());
+    }
+
+    @Override
+    public void clearStats()
+    {
+        for (int i = 0, end = _segments.length; i < end; ++i) {
+            _lockSegment(i);
+            try {
+                _segments[i].clearStats();
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+        if (_bufferedHits != null) {
+            _bufferedHits.reset();
+            _bufferedMisses.reset();
+        }
+    }
+
+    @Override
+    public void decayStats(double ratio)
+    {
+        for (int i = 0, end = _segments.length; i < end; ++i) {
+            _lockSegment(i);
+            try {
+                _segments[i].decayStats(ratio);
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+        if (_bufferedHits != null) {
+            _bufferedHits.decay(ratio);
+            _bufferedMisses.decay(ratio);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Diagnostic methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method that will verify internal consistency of all segments;
+     * see {@link POJOCacheElementBase#checkSanity} for details.
+     */
+    protected void checkSanity()
+    {
+        for (int i = 0, end = _segments.length; i < end; ++i) {
+            _lockSegment(i);
+            try {
+                _segments[i].checkSanity();
+            } finally {
+                _unlockSegment(i);
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method for acquiring lock of given segment, before accessing it.
+     * If buffered reads are used, will also apply pending accesses, so that
+     * modifications are done using up-to-date LRU ordering.
+     */
+    protected final void _lockSegment(int index)
+    {
+        _locks[index].lock();
+        if (_readBuffers != null) {
+            _modCounts.incrementAndGet(index); // odd while modifications are being made
+            _readBuffers[index].drainTo(_segments[index]);
+        }
+    }
+
+    protected final void _unlockSegment(int index)
+    {
+        if (_modCounts != null) {
+            // need a volatile write to publish changes to unsynchronized readers
+            _modCounts.incrementAndGet(index);
+        }
+        _locks[index].unlock();
+    }
+
+    /**
+     * Method for doing lookup without locking the segment, recording hits in
+     * the read buffer. Since concurrent modifications may temporarily hide
+     * entries from unsynchronized lookups (for example, when entries are moved
+     * from old hash area to the new one during resizing), misses are
+     * only trusted if segment was not modified during lookup: if it was,
+     * lookup is redone with segment lock held.
+     */
+    protected final POJOCacheEntry<K,V> _findEntryBuffered(int index, long currentTime,
+            K key, int keyHash)
+    {
+        final POJOCacheElement<K,V> segment = _segments[index];
+        // volatile read, to see changes made by earlier modifications
+        final int modCount = _modCounts.get(index);
+        final int currTimeInQ = TimeUtil.timeToTimestamp(currentTime);
+        POJOCacheEntry<K,V> entry = segment._findEntryUnsynced(key, keyHash, currTimeInQ);
+        if (entry == null) {
+            if (((modCount & 1) != 0) || (_modCounts.get(index) != modCount)) {
+                _lockSegment(index);
+                try {
+                    return segment.findEntry(currentTime, key, keyHash);
+                } finally {
+                    _unlockSegment(index);
+                }
+            }
+            _bufferedMisses.increment();
+        } else {
+            _bufferedHits.increment();
+            if (_readBuffers[index].record(entry)) {
+                _tryDrain(index, currTimeInQ);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Method called when a read buffer is getting full: if segment lock can
+     * be acquired without blocking, buffered accesses are applied; otherwise
+     * nothing is done (as there is another thread that will drain buffers).
+     */
+    protected final void _tryDrain(int index, int currTimeInQ)
+    {
+        final ReentrantLock lock = _locks[index];
+        if (lock.tryLock()) {
+            _modCounts.incrementAndGet(index);
+            try {
+                final POJOCacheElement<K,V> segment = _segments[index];
+                _readBuffers[index].drainTo(segment);
+                // since lookups did not do it, let's also do some clean up
+                int count = segment.getConfigInvalidatePerGet();
+                while (count > 0 && segment._invalidateNextStale(currTimeInQ)) {
+                    --count;
+                }
+            } finally {
+                _unlockSegment(index);
+            }
+        }
+    }
+
+    /**
+     * Helper method for calculating hash codes of given keys, and grouping
+     * keys by segment (using counting sort, retaining relative order of keys
+     * within segment). Results are stored in per-thread scratch arrays
+     * that are only valid until the next call by the same thread.
+     */
+    protected final BatchScratch _groupBySegment(K[] keys, int count)
+    {
+        final BatchScratch scratch = _batchScratch.get();
+        scratch.ensureCapacity(count);
+        final int[] hashes = scratch.hashes;
+        final int[] segmentIndexes = scratch.segmentIndexes;
+        final int[] segmentEnds = scratch.segmentEnds;
+        final int segmentCount = segmentEnds.length;
+        for (int i = 0; i < segmentCount; ++i) {
+            segmentEnds[i] = 0;
+        }
+        for (int i = 0; i < count; ++i) {
+            int keyHash = _keyConverter.keyHash(keys[i]);
+            hashes[i] = keyHash;
+            int index = _segmentIndex(keyHash);
+            segmentIndexes[i] = index;
+            ++segmentEnds[index];
+        }
+        // convert counts to start offsets first; these become end offsets as keys are placed
+        for (int i = 0, offset = 0; i < segmentCount; ++i) {
+            int segmentKeys = segmentEnds[i];
+            segmentEnds[i] = offset;
+            offset += segmentKeys;
+        }
+        final int[] order = scratch.order;
+        for (int i = 0; i < count; ++i) {
+            order[segmentEnds[segmentIndexes[i]]++] = i;
+        }
+        return scratch;
+    }
+
+    /**
+     * Segment is selected using the highest bits of scrambled hash code;
+     * this is necessary since segments themselves use the lowest bits
+     * of the hash code for their hash areas.
+     */
+    protected final int _segmentIndex(int keyHash)
+    {
+        if (_segmentShift == 32) { // single segment; shift by 32 would be no-op
+            return 0;
+        }
+        return (keyHash * 0x9E3779B9) >>> _segmentShift;
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Container for per-thread scratch arrays used by batch operations;
+     * arrays are grown as needed, but never shrunk.
+     */
+    protected final static class BatchScratch
+    {
+        /**
+         * Hash codes of keys, in original order
+         */
+        protected int[] hashes;
+
+        /**
+         * Segment indexes of keys, in original order
+         */
+        protected int[] segmentIndexes;
+
+        /**
+         * Indexes of keys, ordered by segment
+         */
+        protected int[] order;
+
+        /**
+         * End offsets (exclusive) of keys of each segment within {@link #order};
+         * start offset is end offset of previous segment (or 0 for first)
+         */
+        protected final int[] segmentEnds;
+
+        public BatchScratch(int segmentCount)
+        {
+            hashes = new int[0];
+            segmentIndexes = hashes;
+            order = hashes;
+            segmentEnds = new int[segmentCount];
+        }
+
+        public void ensureCapacity(int count)
+        {
+            if (order.length < count) {
+                hashes = new int[count];
+                segmentIndexes = new int[count];
+                order = new int[count];
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.fasterxml.cachemate.pojo;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel used for indexing cache entries by their
+ * expiration time, so that expired entries can be found in amortized
+ * constant time regardless of mix of time-to-live values used.
+ *<p>
+ * Wheel has 4 levels of 64 buckets each; bucket of the lowest level
+ * spans a single time unit (~1/4 second), and each higher level spans 64 times
+ * as long as the level below it (so top level covers about 50 days,
+ * and entries with longer time-to-live are simply rescheduled as
+ * necessary). Entries are placed in a bucket based on how far in
+ * future their expiration is; and as time advances, buckets of higher levels
+ * are emptied and entries re-distributed into lower levels, until they
+ * expire and are moved to the list of expired entries.
+ *<p>
+ * Entries are linked using their wheel links ({@link POJOCacheEntryBase#_nextInWheel},
+ * {@link POJOCacheEntryBase#_prevInWheel}), so no additional objects are
+ * needed. Instances are not thread-safe; access must be synchronized
+ * by owning cache element.
+ */
+final class TimerWheel<E extends POJOCacheEntryBase<?,?,E>>
+{
+    protected final static int LEVELS = 4;
+
+    protected final static int BUCKET_BITS = 6;
+
+    protected final static int BUCKETS = (1 << BUCKET_BITS);
+
+    protected final static int BUCKET_MASK = BUCKETS - 1;
+
+    /**
+     * Index of the pseudo-bucket that contains entries that have expired
+     */
+    protected final static int EXPIRED_INDEX = LEVELS * BUCKETS;
+
+    /**
+     * Total number of buckets (including one for expired entries);
+     * used for memory usage estimation
+     */
+    protected final static int SLOT_COUNT = EXPIRED_INDEX + 1;
+
+    /**
+     * Marker value for {@link POJOCacheEntryBase#_wheelIndex} of
+     * entries not contained in wheel
+     */
+    protected final static int NOT_IN_WHEEL = -1;
+
+    /**
+     * Heads of bucket lists; last entry is for list of expired entries
+     */
+    private final E[] _heads;
+
+    /**
+     * Time (in units of 256 milliseconds) that wheel has been advanced to
+     */
+    private int _currentTime;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel()
+    {
+        _heads = (E[]) new POJOCacheEntryBase<?,?,?>[SLOT_COUNT];
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method for adding given entry in the wheel, based on its expiration time.
+     * Wheel should have been advanced to the current time before calling
+     * this method.
+     */
+    public void schedule(E entry)
+    {
+        final int expTime = entry._expirationTime;
+        final int delay = expTime - _currentTime;
+        int index;
+        if (delay <= 0) {
+            index = EXPIRED_INDEX;
+        } else if (delay < (1 << BUCKET_BITS)) {
+            index = (expTime & BUCKET_MASK);
+        } else if (delay < (1 << (2 * BUCKET_BITS))) {
+            index = BUCKETS + ((expTime >>> BUCKET_BITS) & BUCKET_MASK);
+        } else if (delay < (1 << (3 * BUCKET_BITS))) {
+            index = (2 * BUCKETS) + ((expTime >>> (2 * BUCKET_BITS)) & BUCKET_MASK);
+        } else { // may exceed range of top level; if so, will be rescheduled
+            index = (3 * BUCKETS) + ((expTime >>> (3 * BUCKET_BITS)) & BUCKET_MASK);
+        }
+        E head = _heads[index];
+        entry._nextInWheel = head;
+        entry._prevInWheel = null;
+        if (head != null) {
+            head._prevInWheel = entry;
+        }
+        _heads[index] = entry;
+        entry._wheelIndex = index;
+    }
+
+    /**
+     * Method for removing given entry from the wheel, if it is contained
+     * (no-op if not).
+     */
+    public void remove(E entry)
+    {
+        final int index = entry._wheelIndex;
+        if (index == NOT_IN_WHEEL) {
+            return;
+        }
+        E prev = entry._prevInWheel;
+        E next = entry._nextInWheel;
+        if (prev == null) {
+            _heads[index] = next;
+        } else {
+            prev._nextInWheel = next;
+        }
+        if (next != null) {
+            next._prevInWheel = prev;
+        }
+        entry._nextInWheel = null;
+        entry._prevInWheel = null;
+        entry._wheelIndex = NOT_IN_WHEEL;
+    }
+
+    /**
+     * Method for advancing wheel to given point in time: entries whose
+     * expiration time has been reached are moved to the list of expired entries
+     * (see {@link #firstExpired}), and others from processed buckets are
+     * moved to buckets of lower levels.
+     * If time given is not later than the current time of the wheel, nothing is done.
+     *
+     * @param currTimeInQ Current time in units of 256 milliseconds
+     */
+    public void advance(int currTimeInQ)
+    {
+        final int prevTime = _currentTime;
+        // timestamps are truncated so must compare using difference
+        if ((currTimeInQ - prevTime) <= 0) {
+            return;
+        }
+        _currentTime = currTimeInQ;
+        for (int level = 0; level < LEVELS; ++level) {
+            final int shift = level * BUCKET_BITS;
+            final int prevTicks = prevTime >>> shift;
+            final int currTicks = currTimeInQ >>> shift;
+            final int delta = currTicks - prevTicks;
+            if (delta <= 0) { // higher levels can not have changed either
+                break;
+            }
+            // note: bucket for previous tick also included, since it may contain entries
+            // that wrapped around
+            final int count = Math.min(delta + 1, BUCKETS);
+            final int base = level * BUCKETS;
+            for (int i = 0; i < count; ++i) {
+                _expireBucket(base + ((prevTicks + i) & BUCKET_MASK));
+            }
+        }
+    }
+
+    /**
+     * Accessor for getting one of entries that have expired (as of the
+     * time wheel was last advanced to), if any; entry is not removed
+     * from the wheel.
+     */
+    public E firstExpired() {
+        return _heads[EXPIRED_INDEX];
+    }
+
+    public void clear() {
+        Arrays.fill(_heads, null);
+    }
+
+    /**
+     * Method for counting number of entries in the wheel; only used for
+     * diagnostics, as it needs to traverse all entries.
+     */
+    public int countEntries()
+    {
+        int count = 0;
+        for (E entry : _heads) {
+            for (; entry != null; entry = entry._nextInWheel) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private void _expireBucket(int index)
+    {
+        E entry = _heads[index];
+        if (entry == null) {
+            return;
+        }
+        _heads[index] = null;
+        while (entry != null) {
+            E next = entry._nextInWheel;
+            schedule(entry);
+            entry = next;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.fasterxml.cachemate.pojo;
 
-import java.util.Arrays;
 
 import com.fasterxml.cachemate.*;
 import com.fasterxml.cachemate.converters.KeyConverter;
@@ -18,7 +17,8 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
     protected final static int IMPL_FIELD_COUNT = BASE_FIELD_COUNT + 3;
 
     private final static int BASE_MEM_USAGE = PlatformConstants.BASE_OBJECT_MEMORY_USAGE 
-        + (IMPL_FIELD_COUNT * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
+        + (IMPL_FIELD_COUNT * PlatformConstants.BASE_FIELD_MEMORY_USAGE)
+        + (TimerWheel.SLOT_COUNT * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
 
     /*
     /**********************************************************************
@@ -51,6 +51,13 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
      * Secondary hash area for entries, for primary key lookups
      */
     protected TwoKeyPOJOCacheEntry<K1,K2,V>[] _secondaryEntries;
+
+    /**
+     * Previous secondary hash area, when hash areas are being resized;
+     * null otherwise. Always of same size as {@link #_oldEntries}, and
+     * its buckets are moved at the same time as matching primary buckets.
+     */
+    protected TwoKeyPOJOCacheEntry<K1,K2,V>[] _oldSecondaryEntries;
     
     /*
     /**********************************************************************
@@ -62,16 +69,15 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
      * @param timeToLiveSecs Amount of time entries will remain fresh (non-stale) in
      *   cache; in seconds.
      */
-    @SuppressWarnings("unchecked")
     public TwoKeyPOJOCacheElement(KeyConverter<K1> keyConverter, KeyConverter<K2> secondaryKeyConverter,
             int maxEntries, long maxWeight,
             int timeToLiveSecs)
     {
         super(keyConverter, maxEntries, timeToLiveSecs,
-            (TwoKeyPOJOCacheEntry<K1,K2,V>[]) new TwoKeyPOJOCacheEntry<?,?,?>[calcHashAreaSize(maxEntries)]);
+                TwoKeyPOJOCacheElement.<K1,K2,V>_newHashArea(calcHashAreaSize(maxEntries)));
         _secondaryKeyConverter = secondaryKeyConverter;
         _resetOldestAndNewest(); // to set oldest/newest (head/tail) linked
-        _secondaryEntries = (TwoKeyPOJOCacheEntry<K1,K2,V>[]) new TwoKeyPOJOCacheEntry<?,?,?>[_entries.length];
+        _secondaryEntries = _newHashArea(_entries.length);
         // take into account base mem usage of the cache (crude, but...), including hash area
         _maxContentsWeight = maxWeight - BASE_MEM_USAGE
             - (_entries.length * PlatformConstants.BASE_FIELD_MEMORY_USAGE)
@@ -85,13 +91,6 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
     /**********************************************************************
      */
 
-    @Override
-    public void removeAll()
-    {
-        super.removeAll();
-        Arrays.fill(_secondaryEntries, null);
-    }
-
     /*
     /**********************************************************************
     /* Put/find/remove methods that use secondary key
@@ -144,6 +143,7 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
             K1 primaryKey, int primaryKeyHash, K2 secondaryKey, int secondaryKeyHash,
             V value, int weight)
     {
+        _rehashFor(primaryKeyHash);
         TwoKeyPOJOCacheEntry<K1, K2, V> existingEntry = _removeByPrimary(currentTime,
                 primaryKey, primaryKeyHash);
         // Either way, need to add the new entry next, as newest and MRU
@@ -187,6 +187,8 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
         if (secondaryKey == null) {
             return null;
         }
+        // both hash areas are resized together, so this works for secondary hash too:
+        _rehashFor(secondaryHash);
         int index = _secondaryHashIndex(secondaryHash);
         // First, locate the entry, but keep track of position within hash/collision chain:
         TwoKeyPOJOCacheEntry<K1, K2, V> prev = null;
@@ -198,34 +200,25 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
                 // And if match, verify it is not stale
                 if (_expired(entry, currTimeInQ)) {
                     _removeEntry(entry);
+                    ++_expirationCount;
                     entry = null;
                 } else { // if not stale, move as LRU
-                    // Also: make this the LRU entry (note: _newEntryHead and _oldEntryHead are placeholders)
-                    // first, unlink from previous chain
-                    prev = entry._lessRecentEntry;
-                    TwoKeyPOJOCacheEntry<K1, K2, V> next = entry._moreRecentEntry;
-                    prev._moreRecentEntry = next;
-                    next._lessRecentEntry = prev;
-                    // then add as new head (wrt LRU)
-                    next = _newEntryHead;
-                    prev = _newEntryHead._lessRecentEntry;
-                    prev._moreRecentEntry = entry;
-                    entry._lessRecentEntry = prev;
-                    next._lessRecentEntry = entry;
-                    entry._moreRecentEntry = next;
-
-                    // and finally, update match count; may be used to decide on promotion/demotion
-                    ++entry._timesReturned;
+                    _markAsMostRecent(entry);
                 }
                 break;
             }
             prev = entry;
             entry = entry._secondaryCollision;
         }
+        if (entry == null) {
+            ++_missCount;
+        } else {
+            ++_hitCount;
+        }
 
         // also: if aggressively cleaning up, remove stale entries
         int count = _configInvalidatePerGet;
-        while (count > 0 && _invalidateOldestIfStale(currTimeInQ)) {
+        while (count > 0 && _invalidateNextStale(currTimeInQ)) {
             --count;
         }
         return entry;
@@ -240,7 +233,7 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
     @Override
     public final long weight() {
         return BASE_MEM_USAGE + _currentContentsWeight
-            + (_entries.length * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
+            + (_hashAreaSlots() * PlatformConstants.BASE_FIELD_MEMORY_USAGE);
     }
 
     @Override
@@ -257,6 +250,7 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
     @Override
     protected final TwoKeyPOJOCacheEntry<K1,K2,V> _removeByPrimary(long currentTime, K1 key, int keyHash)
     {
+        _migrateBucketFor(keyHash);
         int index = (keyHash & (_entries.length - 1));
         // First, locate the entry
         TwoKeyPOJOCacheEntry<K1,K2,V> prev = null;
@@ -285,6 +279,7 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
         int secondaryHashIndex;
         TwoKeyPOJOCacheEntry<K1,K2,V> prevSecondary = null;
         if (entry.hasSecondaryKey()) {
+            _migrateBucketFor(entry._keyHash2);
             secondaryHashIndex = _secondaryHashIndex(entry._keyHash2);
             TwoKeyPOJOCacheEntry<K1,K2,V> currSecondary = _secondaryEntries[secondaryHashIndex];
             while (true) {
@@ -309,6 +304,10 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
     protected void _removeEntry(TwoKeyPOJOCacheEntry<K1,K2,V> entry)
     {
         // Ok, need to locate entry in primary hash first
+        _migrateBucketFor(entry._keyHash);
+        if (entry.hasSecondaryKey()) {
+            _migrateBucketFor(entry._keyHash2);
+        }
         int primaryIndex = _primaryHashIndex(entry._keyHash);
         TwoKeyPOJOCacheEntry<K1,K2,V> curr = _entries[primaryIndex];
         TwoKeyPOJOCacheEntry<K1,K2,V> prevPrimary = null;
@@ -357,6 +356,10 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
         // First, update counts
         --_currentEntries;
         _currentContentsWeight -= entry._weight;
+        if (entry._inWindow) {
+            --_windowEntries;
+        }
+        _timerWheel.remove(entry);
 
         // Unlink from hash area; first primary
         TwoKeyPOJOCacheEntry<K1,K2,V> next = entry._primaryCollision;
@@ -387,6 +390,87 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
         return new TwoKeyPOJOCacheEntry<K1,K2,V>();
     }
 
+    @Override
+    protected TwoKeyPOJOCacheEntry<K1,K2,V>[] _createHashArea(int size) {
+        return _newHashArea(size);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K1,K2,V> TwoKeyPOJOCacheEntry<K1,K2,V>[] _newHashArea(int size) {
+        return (TwoKeyPOJOCacheEntry<K1,K2,V>[]) new TwoKeyPOJOCacheEntry<?,?,?>[size];
+    }
+
+    /* Secondary hash area is resized along with the primary one, using
+     * same sizes; so we just need to handle secondary buckets
+     * with same indexes as primary ones.
+     */
+
+    @Override
+    protected void _startResize(int newSize)
+    {
+        super._startResize(newSize);
+        _oldSecondaryEntries = _secondaryEntries;
+        _secondaryEntries = _newHashArea(newSize);
+    }
+
+    @Override
+    protected void _finishResize()
+    {
+        super._finishResize();
+        _oldSecondaryEntries = null;
+    }
+
+    @Override
+    protected void _migrateBucket(int oldIndex)
+    {
+        super._migrateBucket(oldIndex);
+        TwoKeyPOJOCacheEntry<K1,K2,V> entry = _oldSecondaryEntries[oldIndex];
+        if (entry == null) {
+            return;
+        }
+        _oldSecondaryEntries[oldIndex] = null;
+        final TwoKeyPOJOCacheEntry<K1,K2,V>[] entries = _secondaryEntries;
+        final int mask = entries.length - 1;
+        // as with primary entries, need to retain ordering, so append
+        while (entry != null) {
+            TwoKeyPOJOCacheEntry<K1,K2,V> next = entry._secondaryCollision;
+            if (entry._generation != _generation) {
+                entry = next;
+                continue;
+            }
+            entry._secondaryCollision = null;
+            int index = entry._keyHash2 & mask;
+            TwoKeyPOJOCacheEntry<K1,K2,V> last = entries[index];
+            if (last == null) {
+                entries[index] = entry;
+            } else {
+                while (last._secondaryCollision != null) {
+                    last = last._secondaryCollision;
+                }
+                last._secondaryCollision = entry;
+            }
+            entry = next;
+        }
+    }
+
+    @Override
+    protected void _sweepBucket(int index)
+    {
+        super._sweepBucket(index);
+        // both hash areas have same size, so just sweep same bucket of secondary
+        TwoKeyPOJOCacheEntry<K1,K2,V> prev = null;
+        for (TwoKeyPOJOCacheEntry<K1,K2,V> entry = _secondaryEntries[index]; entry != null;
+                entry = entry._secondaryCollision) {
+            if (entry._generation == _generation) {
+                prev = entry;
+            } else if (prev == null) {
+                _secondaryEntries[index] = entry._secondaryCollision;
+            } else {
+                prev._secondaryCollision = entry._secondaryCollision;
+            }
+        }
+    }
+
     /**
      * This method can be called too, although it will then assume that no
      * secondary key is used.
@@ -424,10 +508,22 @@ public class TwoKeyPOJOCacheElement<K1,K2,V>
         int secondaryCount = 0;
         for (TwoKeyPOJOCacheEntry<K1,K2,V> entry : _secondaryEntries) {
             while (entry != null) {
-                ++secondaryCount;
+                if (entry._generation == _generation) {
+                    ++secondaryCount;
+                }
                 entry = entry._secondaryCollision;
             }
         }
+        if (_oldSecondaryEntries != null) {
+            for (TwoKeyPOJOCacheEntry<K1,K2,V> entry : _oldSecondaryEntries) {
+                while (entry != null) {
+                    if (entry._generation == _generation) {
+                        ++secondaryCount;
+                    }
+                    entry = entry._secondaryCollision;
+                }
+            }
+        }
         if (secondaryCount != expCount) {
             throw new IllegalStateException("Invalid count by secondary: actual "+secondaryCount+"; expected "+expCount);
         }
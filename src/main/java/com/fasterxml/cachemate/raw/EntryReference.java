@@ -5,16 +5,33 @@ import java.nio.ByteBuffer;
 /**
  * Each reference points to a chunk of bytes structured as follows:
  *<pre>
- * Timestamp (4-bytes): valid until
+ * Timestamp (4-bytes): valid until; high bit set for tombstones
  * VInt keyLength K
  * K bytes of key
  * (for multi-key entries, more VInt/byte[] pairs)
  * VInt valueLength V
  * V bytes of value
  *</pre>
+ *<p>
+ * Tombstones are entries that indicate removal of the key: they have no
+ * value (value length is 0), and their timestamp indicates the point until
+ * which they may shadow older entries with the same key.
+ *<p>
+ * Since the underlying buffer is shared by all threads, all access
+ * is done using absolute accessors (ones that do not change position
+ * of the buffer); this allows any number of threads to read entries
+ * concurrently, without synchronization.
  */
 public class EntryReference
 {
+    /**
+     * Flag set in the timestamp of tombstone entries; since timestamps
+     * never use the high bit, it can be used as a flag.
+     *
+     * @since 0.5.1
+     */
+    public final static int TOMBSTONE_FLAG = 0x80000000;
+
     /**
      * Underlying buffer in which entry is stored
      */
@@ -23,19 +40,41 @@ public class EntryReference
     protected final int _startOffset;
 
     protected final int _timestamp;
+
+    protected final boolean _tombstone;
 	
     protected final int _keyOffset;
     protected final int _keyLength;
-	
-    public EntryReference(ByteBuffer buf, int start)
+
+    /**
+     * Absolute end offset of the area (slab) entry is contained in; used
+     * for sanity checking lengths read, in case area is being recycled
+     * concurrently.
+     *
+     * @since 0.5.1
+     */
+    protected final int _endOffset;
+
+    public EntryReference(ByteBuffer buf, int start) {
+        this(buf, start, buf.capacity());
+    }
+
+    /**
+     * @param end Absolute end offset of the area that contains entry
+     *
+     * @since 0.5.1
+     */
+    public EntryReference(ByteBuffer buf, int start, int end)
     {
         _buffer = buf;
         _startOffset = start;
-        buf.position(start);
+        _endOffset = end;
         // decode basic info eagerly
-        _timestamp = buf.getInt();
-        _keyLength = _readVInt(buf);
-        _keyOffset = buf.position();
+        final int timestamp = buf.getInt(start);
+        _timestamp = timestamp & ~TOMBSTONE_FLAG;
+        _tombstone = (timestamp & TOMBSTONE_FLAG) != 0;
+        _keyLength = readVIntAt(buf, start+4);
+        _keyOffset = start + 4 + WritableSlab.vIntLength(_keyLength);
     }
 
     /*
@@ -50,9 +89,9 @@ public class EntryReference
             return false;
         }
         final ByteBuffer buf = _buffer;
-        buf.position(_keyOffset);
+        final int offset = _keyOffset;
         for (int i = 0, end = _keyLength; i < end; ++i) {
-            if (buf.get() != key[i]) {
+            if (buf.get(offset + i) != key[i]) {
                 return false;
             }
         }
@@ -61,32 +100,122 @@ public class EntryReference
 
     public int getTimestamp() { return _timestamp; }
 
-    public RawCacheEntry asCacheEntry(long currentTime)
+    /**
+     * @since 0.5.1
+     */
+    public boolean isTombstone() { return _tombstone; }
+
+    /**
+     * Method for constructing a {@link RawCacheEntry} with copy of the value
+     * this entry has.
+     *
+     * @param key Key of the entry; since caller has verified it matches,
+     *    it can be used as is
+     *
+     * @return Entry constructed, or null if entry data is not valid (which
+     *    may happen if slab is being recycled concurrently)
+     */
+    public RawCacheEntry asCacheEntry(byte[] key, int keyHash)
     {
-        // !!! TODO
-        throw new RuntimeException();
+        final ByteBuffer buf = _buffer;
+        int offset = _keyOffset + _keyLength;
+        final int valueLength = readVIntAt(buf, offset);
+        offset += WritableSlab.vIntLength(valueLength);
+        if (valueLength < 0 || valueLength > (_endOffset - offset)) {
+            return null;
+        }
+        // bulk copy requires changing position, so need a private view
+        ByteBuffer view = buf.duplicate();
+        view.position(offset);
+        byte[] value = new byte[valueLength];
+        view.get(value);
+        return new RawCacheEntry(keyHash, key, value, _timestamp);
     }
-    
+
+    /**
+     * Method for constructing a read-only view of the value bytes of this
+     * entry, without copying them. View shares content with the underlying
+     * buffer, and is only valid as long as slab that contains the entry
+     * is not recycled.
+     *
+     * @return View of the value, or null if entry data is not valid
+     *
+     * @since 0.5.1
+     */
+    public ByteBuffer asValueBuffer()
+    {
+        final ByteBuffer buf = _buffer;
+        int offset = _keyOffset + _keyLength;
+        final int valueLength = readVIntAt(buf, offset);
+        offset += WritableSlab.vIntLength(valueLength);
+        if (valueLength < 0 || valueLength > (_endOffset - offset)) {
+            return null;
+        }
+        ByteBuffer view = buf.asReadOnlyBuffer();
+        view.limit(offset + valueLength);
+        view.position(offset);
+        return view.slice();
+    }
+
     /*
     /**********************************************************************
-    /* Internal methods
+    /* Public API, static helpers for accessing entries without
+    /* constructing references; use absolute accessors only
     /**********************************************************************
      */
 
-    private final int _readVInt(ByteBuffer bbuf)
+    /**
+     * Helper method for checking whether entry at given absolute offset has
+     * specified key.
+     *
+     * @since 0.5.1
+     */
+    public static boolean hasKeyAt(ByteBuffer bbuf, int entryOffset, byte[] key)
     {
-        int value = bbuf.get();
+        int offset = entryOffset + 4; // skip timestamp
+        final int keyLength = readVIntAt(bbuf, offset);
+        if (keyLength != key.length) {
+            return false;
+        }
+        offset += WritableSlab.vIntLength(keyLength);
+        for (int i = 0; i < keyLength; ++i) {
+            if (bbuf.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Helper method for finding absolute offset of the value length
+     * of the entry at given absolute offset; value itself follows the length.
+     *
+     * @since 0.5.1
+     */
+    public static int valueLengthOffsetAt(ByteBuffer bbuf, int entryOffset)
+    {
+        int offset = entryOffset + 4; // skip timestamp
+        final int keyLength = readVIntAt(bbuf, offset);
+        return offset + WritableSlab.vIntLength(keyLength) + keyLength;
+    }
+
+    /**
+     * Helper method for decoding VInt at given absolute offset
+     *
+     * @since 0.5.1
+     */
+    public static int readVIntAt(ByteBuffer bbuf, int offset)
+    {
+        int value = bbuf.get(offset);
         // short-cut for common case:
         if (value >= 0) {
             return value;
         }
         value = value & 0x7F;
-
         int b;
-        while ((b = bbuf.get()) < 0) {
+        while ((b = bbuf.get(++offset)) < 0) {
             value = (value << 7) | (b & 0x7F);
         }
-        value = (value << 7) | b;
-        return value;
+        return (value << 7) | b;
     }
 }
@@ -0,0 +1,352 @@
+package com.fasterxml.cachemate.raw;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Alternative index for frozen slabs (see {@link ReadOnlySlab}): a minimal
+ * perfect hash function over key hashes, built using BBHash algorithm,
+ * maps each key hash to a distinct slot that contains offset of the entry.
+ *<p>
+ * Index consists of a sequence of levels, each of which is a bit array:
+ * key hash is mapped to one bit in each level in turn, until a set bit is
+ * found; and the number of set bits preceding it (over all levels) is the slot
+ * index. Keys that map to same bit as some other key at a level are deferred
+ * to the next level; and keys that can not be placed at any level (including
+ * all keys with identical hashes, which would collide on every level) are
+ * stored in a small overflow list of hash/offset pairs, scanned linearly.
+ *<p>
+ * Index is stored in the shared buffer as follows (starting at an 8-byte
+ * aligned offset):
+ *<ul>
+ * <li>Bit arrays of all levels, as longs
+ * <li>Rank table: number of set bits preceding each block of 8 longs, as ints
+ * <li>Slots: one int per entry, offset of the entry
+ * <li>Overflow list: hash and offset (ints) for each entry not in slots
+ *</ul>
+ * Level boundaries are retained in this (heap) object.
+ *<p>
+ * With 2 bits per key for the first level, bit arrays take about 3.5 bits
+ * per key; most lookups only need to access a single level.
+ *
+ * @since 0.5.1
+ */
+public final class PerfectHashIndex
+{
+    /**
+     * Number of bits per remaining key to use for each level
+     */
+    protected final static int BITS_PER_KEY = 2;
+
+    /**
+     * Maximum number of levels to build; remaining keys are put in
+     * the overflow list
+     */
+    protected final static int MAX_LEVELS = 16;
+
+    /**
+     * Number of longs covered by each rank table entry
+     */
+    protected final static int WORDS_PER_RANK = 8;
+
+    /*
+    /**********************************************************************
+    /* Layout
+    /**********************************************************************
+     */
+
+    /**
+     * Absolute offset of the first level bit array
+     */
+    protected final int _bitsStartOffset;
+
+    /**
+     * Index of the first long of each level
+     */
+    protected final int[] _levelStarts;
+
+    /**
+     * Number of longs in each level
+     */
+    protected final int[] _levelWords;
+
+    protected final int _rankStartOffset;
+
+    protected final int _slotsStartOffset;
+
+    protected final int _overflowStartOffset;
+
+    protected final int _overflowCount;
+
+    /**
+     * Absolute offset right after the last byte of the index
+     */
+    protected final int _endOffset;
+
+    protected PerfectHashIndex(int bitsStart, int[] levelStarts, int[] levelWords,
+            int rankStart, int slotsStart, int overflowStart, int overflowCount, int end)
+    {
+        _bitsStartOffset = bitsStart;
+        _levelStarts = levelStarts;
+        _levelWords = levelWords;
+        _rankStartOffset = rankStart;
+        _slotsStartOffset = slotsStart;
+        _overflowStartOffset = overflowStart;
+        _overflowCount = overflowCount;
+        _endOffset = end;
+    }
+
+    /**
+     * Factory method for re-creating index from layout information stored
+     * elsewhere (such as {@link SlabDirectory}): since information may be
+     * corrupt, layout is verified to be consistent with what
+     * {@link #build} would produce for given entry count.
+     *
+     * @param entryCount Number of entries indexed
+     *
+     * @return Index, if layout is consistent; null if not
+     */
+    public static PerfectHashIndex fromLayout(int bitsStart, int[] levelStarts, int[] levelWords,
+            int rankStart, int slotsStart, int overflowStart, int overflowCount, int end,
+            int entryCount)
+    {
+        if ((levelStarts.length != levelWords.length) || (levelStarts.length > MAX_LEVELS)
+                || (overflowCount < 0) || (overflowCount > entryCount)) {
+            return null;
+        }
+        // levels must be contiguous; use longs to avoid overflow with garbage
+        long totalWords = 0L;
+        for (int i = 0; i < levelStarts.length; ++i) {
+            if ((levelStarts[i] != totalWords) || (levelWords[i] < 1)) {
+                return null;
+            }
+            totalWords += levelWords[i];
+        }
+        final long rankCount = (totalWords + WORDS_PER_RANK - 1) / WORDS_PER_RANK;
+        final long expRankStart = bitsStart + (totalWords << 3);
+        final long expSlotsStart = expRankStart + (((rankCount << 2) + 7) & ~7L);
+        final long expOverflowStart = expSlotsStart + ((long) (entryCount - overflowCount) << 2);
+        final long expEnd = (expOverflowStart + ((long) overflowCount << 3) + 7) & ~7L;
+        if ((rankStart != expRankStart) || (slotsStart != expSlotsStart)
+                || (overflowStart != expOverflowStart) || (end != expEnd)) {
+            return null;
+        }
+        return new PerfectHashIndex(bitsStart, levelStarts, levelWords,
+                rankStart, slotsStart, overflowStart, overflowCount, end);
+    }
+
+    /*
+    /**********************************************************************
+    /* Building
+    /**********************************************************************
+     */
+
+    /**
+     * Method for building the index for given entries, and writing it in the
+     * shared buffer.
+     *
+     * @param start Absolute offset at which index is to be written; must be
+     *   8-byte aligned
+     * @param maxEnd Absolute offset index must not extend past
+     * @param entries Entries to index; key hash in upper 32 bits, absolute
+     *   entry offset in lower 32 bits
+     *
+     * @return Index built, if there was room for it; null if not (in which case
+     *   nothing is written)
+     */
+    public static PerfectHashIndex build(ByteBuffer bbuf, int start, int maxEnd, long[] entries)
+    {
+        final int count = entries.length;
+        int[] remaining = new int[count];
+        for (int i = 0; i < count; ++i) {
+            remaining[i] = i;
+        }
+        int remainingCount = count;
+        int[] levelOf = new int[count];
+        List<long[]> levels = new ArrayList<long[]>();
+        int totalWords = 0;
+
+        while ((remainingCount > 0) && (levels.size() < MAX_LEVELS)) {
+            final int level = levels.size();
+            final int words = Math.max(1, (remainingCount * BITS_PER_KEY + 63) >>> 6);
+            long[] bits = new long[words];
+            long[] collisions = new long[words];
+            for (int i = 0; i < remainingCount; ++i) {
+                final int pos = _position((int) (entries[remaining[i]] >> 32), level, words);
+                final long mask = 1L << pos;
+                if ((bits[pos >>> 6] & mask) != 0L) {
+                    collisions[pos >>> 6] |= mask;
+                } else {
+                    bits[pos >>> 6] |= mask;
+                }
+            }
+            int next = 0;
+            for (int i = 0; i < remainingCount; ++i) {
+                final int entry = remaining[i];
+                final int pos = _position((int) (entries[entry] >> 32), level, words);
+                if ((collisions[pos >>> 6] & (1L << pos)) != 0L) {
+                    remaining[next++] = entry;
+                } else {
+                    levelOf[entry] = level;
+                }
+            }
+            // if nothing could be placed, remaining keys go to overflow list
+            if (next == remainingCount) {
+                break;
+            }
+            for (int i = 0; i < words; ++i) {
+                bits[i] &= ~collisions[i];
+            }
+            levels.add(bits);
+            totalWords += words;
+            remainingCount = next;
+        }
+
+        // Calculate layout, see if it fits
+        final int levelCount = levels.size();
+        final int rankCount = (totalWords + WORDS_PER_RANK - 1) / WORDS_PER_RANK;
+        final int rankStart = start + (totalWords << 3);
+        final int slotsStart = rankStart + (((rankCount << 2) + 7) & ~7);
+        final int slotCount = count - remainingCount;
+        final int overflowStart = slotsStart + (slotCount << 2);
+        final int end = (overflowStart + (remainingCount << 3) + 7) & ~7;
+        if (end > maxEnd) {
+            return null;
+        }
+
+        // Then write levels, and build rank table, both in heap and buffer
+        long[] allBits = new long[totalWords];
+        int[] levelStarts = new int[levelCount];
+        int[] levelWords = new int[levelCount];
+        int wordIndex = 0;
+        for (int level = 0; level < levelCount; ++level) {
+            long[] bits = levels.get(level);
+            levelStarts[level] = wordIndex;
+            levelWords[level] = bits.length;
+            System.arraycopy(bits, 0, allBits, wordIndex, bits.length);
+            wordIndex += bits.length;
+        }
+        int[] ranks = new int[rankCount];
+        int ones = 0;
+        for (int i = 0; i < totalWords; ++i) {
+            if ((i % WORDS_PER_RANK) == 0) {
+                ranks[i / WORDS_PER_RANK] = ones;
+                bbuf.putInt(rankStart + ((i / WORDS_PER_RANK) << 2), ones);
+            }
+            bbuf.putLong(start + (i << 3), allBits[i]);
+            ones += Long.bitCount(allBits[i]);
+        }
+
+        // and finally slots and overflow list
+        for (int i = 0, overflow = 0; i < count; ++i) {
+            final int hash = (int) (entries[i] >> 32);
+            final int entryOffset = (int) entries[i];
+            if (overflow < remainingCount && remaining[overflow] == i) {
+                // note: remaining entries are in ascending order
+                bbuf.putInt(overflowStart + (overflow << 3), hash);
+                bbuf.putInt(overflowStart + (overflow << 3) + 4, entryOffset);
+                ++overflow;
+                continue;
+            }
+            final int level = levelOf[i];
+            final int bit = (levelStarts[level] << 6) + _position(hash, level, levelWords[level]);
+            final int word = bit >>> 6;
+            int slot = ranks[word / WORDS_PER_RANK];
+            for (int w = word - (word % WORDS_PER_RANK); w < word; ++w) {
+                slot += Long.bitCount(allBits[w]);
+            }
+            slot += Long.bitCount(allBits[word] & ((1L << bit) - 1));
+            bbuf.putInt(slotsStart + (slot << 2), entryOffset);
+        }
+        return new PerfectHashIndex(start, levelStarts, levelWords,
+                rankStart, slotsStart, overflowStart, remainingCount, end);
+    }
+
+    /*
+    /**********************************************************************
+    /* Accessors
+    /**********************************************************************
+     */
+
+    public int getStartOffset() { return _bitsStartOffset; }
+    public int getEndOffset() { return _endOffset; }
+    public int getLevelCount() { return _levelStarts.length; }
+    public int getOverflowCount() { return _overflowCount; }
+
+    /*
+    /**********************************************************************
+    /* Lookup
+    /**********************************************************************
+     */
+
+    /**
+     * @param entryStart Start offset of the entry area; used for validating
+     *   entry offsets
+     * @param entryEnd End offset of the entry area
+     *
+     * @return Absolute offset of the entry with given key, if one found; -1 if not
+     */
+    public int findEntryOffset(ByteBuffer bbuf, byte[] key, int keyHash,
+            int entryStart, int entryEnd)
+    {
+        for (int level = 0, levels = _levelStarts.length; level < levels; ++level) {
+            final int bit = (_levelStarts[level] << 6) + _position(keyHash, level, _levelWords[level]);
+            final int word = bit >>> 6;
+            final long bits = bbuf.getLong(_bitsStartOffset + (word << 3));
+            if ((bits & (1L << bit)) != 0L) {
+                final int rankIndex = word / WORDS_PER_RANK;
+                int slot = bbuf.getInt(_rankStartOffset + (rankIndex << 2));
+                for (int w = rankIndex * WORDS_PER_RANK; w < word; ++w) {
+                    slot += Long.bitCount(bbuf.getLong(_bitsStartOffset + (w << 3)));
+                }
+                slot += Long.bitCount(bits & ((1L << bit) - 1));
+                final int entryOffset = bbuf.getInt(_slotsStartOffset + (slot << 2));
+                if (_matches(bbuf, entryOffset, key, entryStart, entryEnd)) {
+                    return entryOffset;
+                }
+                // if not, key may still be in overflow list
+                break;
+            }
+        }
+        for (int i = 0; i < _overflowCount; ++i) {
+            final int offset = _overflowStartOffset + (i << 3);
+            if (bbuf.getInt(offset) == keyHash) {
+                final int entryOffset = bbuf.getInt(offset + 4);
+                if (_matches(bbuf, entryOffset, key, entryStart, entryEnd)) {
+                    return entryOffset;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private final static boolean _matches(ByteBuffer bbuf, int entryOffset, byte[] key,
+            int entryStart, int entryEnd)
+    {
+        // offset verified first, since slab may be recycled while it is being read
+        return (entryOffset >= entryStart) && (entryOffset < entryEnd)
+                && EntryReference.hasKeyAt(bbuf, entryOffset, key);
+    }
+
+    /**
+     * Method for calculating position of the bit for given key hash within
+     * given level; hash is remixed with level number so that positions at
+     * different levels are independent.
+     */
+    private final static int _position(int hash, int level, int words)
+    {
+        int h = hash ^ (level * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (int) (((h & 0xFFFFFFFFL) * (words << 6)) >>> 32);
+    }
+}
@@ -1,13 +1,83 @@
 package com.fasterxml.cachemate.raw;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.fasterxml.cachemate.CacheEntry;
 import com.fasterxml.cachemate.util.TimeUtil;
 
+/**
+ * Raw cache element that stores entries in a (usually direct)
+ * {@link ByteBuffer}, which is split into equal-sized slabs; or, for
+ * total sizes above 2 gigabytes, in multiple buffers (see {@link #allocateDirect}),
+ * each containing the same number of slabs. Slabs are identified by
+ * index of their slab area, which also determines buffer that contains the slab.
+ * At any given time one of slabs is writable (and entries are appended
+ * to it); and others are either frozen (read-only) or unused. When the
+ * writable slab fills up, it is frozen and linked at the head of the
+ * list of read-only slabs; and the area of the next slab is used for
+ * a new writable slab. Slab areas are used in round-robin fashion, so
+ * if the next area is in use, it contains the oldest read-only slab, which
+ * is dropped (along with all its entries). This means that eviction is
+ * FIFO, at the granularity of slabs.
+ *<p>
+ * Puts are done without locking, by appending to the writable slab
+ * (which allows concurrent appends); only rolling over of slabs
+ * requires exclusive access, using write lock.
+ * Lookups are likewise done without locking, starting from the writable slab, and
+ * proceeding from newest to oldest read-only slab; first entry found
+ * for the key is used.
+ *<p>
+ * In addition to regular lookups (which return copies of keys and values),
+ * {@link #findValueView} may be used for accessing values without copying.
+ * Returned views pin slab areas that contain values, and slab areas are not
+ * reused until all views to them are released.
+ * And {@link #findInto} may be used for copying values directly into
+ * caller-provided buffers, without constructing any objects.
+ *<p>
+ * Entries are removed by appending tombstones (see {@link EntryReference}):
+ * since lookups only use the newest entry found for the key, tombstones
+ * shadow all older entries. Tombstones are needed only as long as there
+ * are older slabs with (unexpired) entries they could shadow; ones that
+ * are no longer needed are dropped when slabs are frozen, and others along
+ * with their slab. Note that tombstones are included in entry counts.
+ *<p>
+ * Buffer may also be a memory-mapped file (see {@link #openMapped}), in which
+ * case read-only slabs are recorded in a {@link SlabDirectory} stored in
+ * the same file; and when the file is reopened (after restart), read-only
+ * slabs are reused as is, without re-populating them.
+ */
 public class RawCacheElement extends RawCacheElementBase
 {
+    /**
+     * Number of slabs buffer is split into, unless explicitly specified
+     */
+    public final static int DEFAULT_SLAB_COUNT = 16;
+
+    /**
+     * Default size of writable slab hash index is calculated by dividing
+     * slab size by this number.
+     */
+    public final static int DEFAULT_SLAB_BYTES_PER_INDEX_SLOT = 128;
+
+    /**
+     * Maximum size of buffers allocated (or mapped) by factory methods,
+     * when total size exceeds it
+     */
+    protected final static int MAX_BUFFER_SIZE = 1 << 30;
+
+    /**
+     * Alignment used for the start of slab areas in memory-mapped files
+     */
+    protected final static int MAPPED_PAGE_SIZE = 4096;
+
     /*
     /**********************************************************************
     /* Configuration
@@ -15,35 +85,334 @@ public class RawCacheElement extends RawCacheElementBase
      */
 
     /**
-     * Actual full {@link ByteBuffer}, split into slabs.
+     * Actual {@link ByteBuffer}s, split into slabs: each buffer contains
+     * the same number of slabs, and slabs never span buffers, so that
+     * offsets within buffers are ints even if total size of buffers exceeds
+     * maximum size of a single buffer (2 gigabytes).
+     */
+    protected final ByteBuffer[] _buffers;
+
+    /**
+     * Buffer that contains each slab area, indexed by slab area index
+     * (which is used as slab id)
+     */
+    protected final ByteBuffer[] _slabBuffers;
+
+    /**
+     * Number of slabs each buffer is split into
+     */
+    protected final int _slabsPerBuffer;
+
+    /**
+     * Size of each slab, in bytes
+     */
+    protected final int _slabSize;
+
+    /**
+     * Total number of slabs buffers are split into
+     */
+    protected final int _slabCount;
+
+    /**
+     * Number of slots writable slabs use for their hash index
+     */
+    protected final int _indexSlotsPerSlab;
+
+    /**
+     * Whether slabs are to be frozen using {@link PerfectHashIndex} instead
+     * of sorted hashes
+     */
+    protected volatile boolean _usePerfectHashIndex;
+
+    /**
+     * Persistent directory of read-only slabs, if slabs are stored in
+     * a memory-mapped file; null if not.
+     */
+    protected final SlabDirectory _directory;
+
+    /*
+    /**********************************************************************
+    /* State
+    /**********************************************************************
      */
-    protected final ByteBuffer _allData;
-    
+
     /**
-     * Currently actively read/write slab; if available. Note that it will
-     * be null for brief periods of time, when currently active slab is
-     * being frozen; so callers need to be able to handle this case by
-     * skipping to read-only slabs.
+     * Currently actively read/write slab. Note that when it is being frozen,
+     * the frozen copy is linked as the first read-only slab before this
+     * reference is changed, so readers may briefly see the same entries in
+     * both; but never in neither.
      */
     protected final AtomicReference<WritableSlab> _writableSlab = new AtomicReference<WritableSlab>();
 
     /**
      * Pointed to the first (and highest-priority) "frozen" slab. Access needs
-     * to be handled in this order. Reference will never be null.
+     * to be handled in this order. Will be null if there are no read-only
+     * slabs.
      */
     protected final AtomicReference<ReadOnlySlab> _firstReadOnlySlab = new AtomicReference<ReadOnlySlab>();
-	
+
+    /**
+     * Read-only slabs that occupy slab areas, indexed by slab area index;
+     * null for areas not used by read-only slabs. Only accessed while
+     * holding the write lock.
+     *<p>
+     * Note that {@link #_entryCount} only contains entries of these slabs;
+     * entries of the writable slab are counted separately.
+     */
+    protected final ReadOnlySlab[] _readOnlySlabs;
+
+    /**
+     * Index of the slab area used by the current writable slab. Only accessed
+     * while holding the write lock.
+     */
+    protected int _writableSlabIndex;
+
+    /**
+     * Generation of entries: incremented by {@link #removeAll}, which makes
+     * all existing slabs unreachable (but leaves their areas to be recycled
+     * in round-robin order, as usual). Only accessed while holding the
+     * write lock.
+     */
+    protected int _generation;
+
+    /**
+     * Generation during which the slab in each slab area was created; used
+     * to know whether slab dropped from an area is still counted in statistics.
+     * Only accessed while holding the write lock.
+     */
+    protected final int[] _slabGenerations;
+
+    /**
+     * Sequence number of the most recently frozen slab; used for ordering
+     * slabs recorded in {@link #_directory}. Only accessed while holding
+     * the write lock.
+     */
+    protected long _slabSequence;
+
+    /**
+     * Number of unreleased {@link RawValueView}s for each slab area
+     */
+    protected final AtomicIntegerArray _pinCounts;
+
+    /**
+     * Per-thread views of {@link #_buffers} (created as needed), used for
+     * bulk copies (which require changing position of the buffer)
+     */
+    protected final ThreadLocal<ByteBuffer[]> _copyViews;
+
     /*
     /**********************************************************************
     /* Construction
     /**********************************************************************
      */
-	
+
     public RawCacheElement(int timeToLiveSecs, Hasher keyHasher,
             ByteBuffer buffer)
+    {
+        this(timeToLiveSecs, keyHasher, buffer, buffer.capacity() / DEFAULT_SLAB_COUNT,
+                (buffer.capacity() / DEFAULT_SLAB_COUNT) / DEFAULT_SLAB_BYTES_PER_INDEX_SLOT);
+    }
+
+    /**
+     * @param slabSize Size of individual slabs, in bytes; buffer must be big
+     *   enough to contain at least two slabs
+     * @param indexSlotsPerSlab Number of hash index slots for writable slabs;
+     *   limits number of entries each slab can contain to 75% of this
+     *   number
+     */
+    public RawCacheElement(int timeToLiveSecs, Hasher keyHasher,
+            ByteBuffer buffer, int slabSize, int indexSlotsPerSlab)
+    {
+        this(timeToLiveSecs, keyHasher, new ByteBuffer[] { buffer }, slabSize, indexSlotsPerSlab,
+                null, 0L);
+    }
+
+    /**
+     * @param buffers Buffers to split into slabs; all buffers must contain the
+     *   same number of slabs (and all of them at least two, in total)
+     *
+     * @since 0.5.1
+     */
+    public RawCacheElement(int timeToLiveSecs, Hasher keyHasher,
+            ByteBuffer[] buffers, int slabSize, int indexSlotsPerSlab)
+    {
+        this(timeToLiveSecs, keyHasher, buffers, slabSize, indexSlotsPerSlab, null, 0L);
+    }
+
+    /**
+     * @param directory Persistent directory of read-only slabs, if slabs
+     *   are to be reused after restart (in which case buffer should be
+     *   memory-mapped); null if not. If directory contains slabs written
+     *   using same configuration, they are reused; otherwise directory is
+     *   initialized.
+     * @param currentTime Current time, used for excluding reused slabs
+     *   that only contain expired entries
+     *
+     * @since 0.5.1
+     */
+    public RawCacheElement(int timeToLiveSecs, Hasher keyHasher,
+            ByteBuffer[] buffers, int slabSize, int indexSlotsPerSlab,
+            SlabDirectory directory, long currentTime)
     {
         super(timeToLiveSecs, keyHasher);
-        _allData = buffer;
+        if (buffers.length == 0) {
+            throw new IllegalArgumentException("No buffers to split into slabs");
+        }
+        _buffers = buffers;
+        _slabSize = slabSize;
+        _slabsPerBuffer = buffers[0].capacity() / slabSize;
+        for (ByteBuffer buffer : buffers) {
+            if ((buffer.capacity() / slabSize) != _slabsPerBuffer) {
+                throw new IllegalArgumentException("All buffers must contain the same number of slabs ("
+                        +_slabsPerBuffer+"); buffer with capacity "+buffer.capacity()+" does not");
+            }
+        }
+        _slabCount = _slabsPerBuffer * buffers.length;
+        if (_slabCount < 2) {
+            throw new IllegalArgumentException("Buffer (capacity "+buffers[0].capacity()
+                    +") too small to contain two slabs of "+slabSize+" bytes");
+        }
+        _slabBuffers = new ByteBuffer[_slabCount];
+        for (int i = 0; i < _slabCount; ++i) {
+            _slabBuffers[i] = buffers[i / _slabsPerBuffer];
+        }
+        _indexSlotsPerSlab = indexSlotsPerSlab;
+        _readOnlySlabs = new ReadOnlySlab[_slabCount];
+        _slabGenerations = new int[_slabCount];
+        _pinCounts = new AtomicIntegerArray(_slabCount);
+        _copyViews = new ThreadLocal<ByteBuffer[]>() {
+            @Override
+            protected ByteBuffer[] initialValue() {
+                return new ByteBuffer[_buffers.length];
+            }
+        };
+        _directory = directory;
+        int writableIndex = 0;
+        if (directory != null) {
+            if (directory.getSlabCount() != _slabCount) {
+                throw new IllegalArgumentException("Slab directory for "+directory.getSlabCount()
+                        +" slabs, buffer contains "+_slabCount);
+            }
+            if (directory.isCompatible(slabSize, keyHasher)) {
+                writableIndex = _restoreSlabs(TimeUtil.timeToTimestamp(currentTime));
+            } else {
+                directory.initialize(slabSize, keyHasher);
+            }
+        }
+        _writableSlabIndex = writableIndex;
+        _writableSlab.set(_createWritableSlab(writableIndex));
+    }
+
+    /**
+     * Factory method for constructing an element with given total size, which
+     * may exceed maximum size of a single {@link ByteBuffer}: slabs are
+     * allocated in multiple direct buffers, each containing the same number
+     * of slabs. Total size may be rounded down slightly, so that this is possible.
+     *
+     * @since 0.5.1
+     */
+    public static RawCacheElement allocateDirect(int timeToLiveSecs, Hasher keyHasher,
+            long totalSize, int slabSize, int indexSlotsPerSlab)
+    {
+        final int slabCount = (int) Math.min(totalSize / slabSize, Integer.MAX_VALUE);
+        final int slabsPerBuffer = _slabsPerBuffer(slabCount, slabSize);
+        ByteBuffer[] buffers = new ByteBuffer[slabCount / slabsPerBuffer];
+        for (int i = 0; i < buffers.length; ++i) {
+            buffers[i] = ByteBuffer.allocateDirect(slabsPerBuffer * slabSize);
+        }
+        return new RawCacheElement(timeToLiveSecs, keyHasher, buffers, slabSize, indexSlotsPerSlab);
+    }
+
+    /**
+     * Factory method for constructing an element that stores slabs in given
+     * file, using memory-mapping: file starts with a {@link SlabDirectory},
+     * followed by slab areas (mapped as multiple buffers, if total size
+     * exceeds maximum size of a single buffer; in which case number of slabs
+     * may be rounded down slightly). If file already exists and was written
+     * with same slab size and count (and key hasher), its read-only slabs
+     * that still contain unexpired entries are reused. Note that entries
+     * of the writable slab are only persisted if {@link #flush} is
+     * called before the file is closed (or process exits).
+     *
+     * @since 0.5.1
+     */
+    public static RawCacheElement openMapped(File file, int timeToLiveSecs, Hasher keyHasher,
+            int slabSize, int slabCount, int indexSlotsPerSlab, long currentTime)
+        throws IOException
+    {
+        final int slabsPerBuffer = _slabsPerBuffer(slabCount, slabSize);
+        final int bufferCount = slabCount / slabsPerBuffer;
+        final long bufferSize = (long) slabsPerBuffer * slabSize;
+        final int headerSize = (SlabDirectory.calcSize(slabsPerBuffer * bufferCount) + MAPPED_PAGE_SIZE - 1)
+                & ~(MAPPED_PAGE_SIZE - 1);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // mappings remain valid after file is closed
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0L, headerSize);
+            ByteBuffer[] buffers = new ByteBuffer[bufferCount];
+            for (int i = 0; i < bufferCount; ++i) {
+                buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, headerSize + i * bufferSize, bufferSize);
+            }
+            return new RawCacheElement(timeToLiveSecs, keyHasher, buffers, slabSize, indexSlotsPerSlab,
+                    new SlabDirectory(header, slabsPerBuffer * bufferCount), currentTime);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Helper method for calculating number of slabs to put in each buffer,
+     * so that buffers are at most {@link #MAX_BUFFER_SIZE} bytes (unless
+     * slabs are bigger than that), and number of slabs is reduced as little
+     * as possible.
+     */
+    protected static int _slabsPerBuffer(int slabCount, int slabSize)
+    {
+        final int maxPerBuffer = Math.max(1, MAX_BUFFER_SIZE / slabSize);
+        final int bufferCount = (slabCount + maxPerBuffer - 1) / maxPerBuffer;
+        return Math.max(1, slabCount / Math.max(1, bufferCount));
+    }
+
+    /*
+    /**********************************************************************
+    /* Accessors
+    /**********************************************************************
+     */
+
+    public int getSlabSize() { return _slabSize; }
+
+    public int getSlabCount() { return _slabCount; }
+
+    /**
+     * @since 0.5.1
+     */
+    public int getBufferCount() { return _buffers.length; }
+
+    public boolean usesPerfectHashIndex() { return _usePerfectHashIndex; }
+
+    /**
+     * Method for making slabs use {@link PerfectHashIndex} when they are frozen,
+     * instead of sorted hashes: this reduces index size (including Bloom filter)
+     * from about 12 to about 6 bytes per entry, and typically makes lookups
+     * faster, but makes freezing of slabs slower.
+     * Only affects slabs frozen after the call.
+     *
+     * @since 0.5.1
+     */
+    public void enablePerfectHashIndex() {
+        _usePerfectHashIndex = true;
+    }
+
+    public boolean isPersistent() { return (_directory != null); }
+
+    /**
+     * Entry count is calculated by adding number of entries in the
+     * writable slab to the count of entries in read-only slabs.
+     */
+    @Override
+    public int size() {
+        return _entryCount.get() + _writableSlab.get().getEntryCount();
     }
 
     /*
@@ -56,79 +425,284 @@ public class RawCacheElement extends RawCacheElementBase
     public CacheEntry<byte[], byte[]> findEntry(long currentTime, byte[] key,
             int keyHash)
     {
-        // First: do we have writable slab (not during roll-over); does it have entry?
+        final int currTimestamp = TimeUtil.timeToTimestamp(currentTime);
+        // First: does writable slab have entry?
         WritableSlab ws = _writableSlab.get();
-        if (ws != null) {
-            EntryReference entry = ws.findEntry(_allData, key, keyHash);
-            // found?
-            if (entry != null) {
-                return _notStale(_allData, currentTime, entry);
-            }
-        }
-        // if not, maybe in readable slabs?
-        ReadOnlySlab slab = _firstReadOnlySlab.get();
-        // note: we always have at least one read-only slab
-        ReadOnlySlab next;
-        
-        // only last slab needs access sync, so:
-        for (; (next = slab.nextSlab()) != null; slab = next) {
-            EntryReference entry = slab.findEntry(_allData, key, keyHash);
-            // found?
+        EntryReference entry = ws.findEntry(_slabBuffers[ws.getSlabId()], key, keyHash);
+        if (entry != null) {
+            return _found(currTimestamp, entry, key, keyHash, ws, null);
+        }
+        /* if not, maybe in read-only slabs? Note that slabs that only have stale
+         * entries can not be skipped, since their entries still shadow
+         * older entries (Bloom filter makes checking cheap, however)
+         */
+        for (ReadOnlySlab slab = _firstReadOnlySlab.get(); slab != null; slab = slab.nextSlab()) {
+            try {
+                entry = slab.findEntry(_slabBuffers[slab.getSlabId()], key, keyHash);
+            } catch (RuntimeException e) {
+                // may get garbage, if slab was recycled during read; if so, just a miss
+                if (!slab.isRecycled()) {
+                    throw e;
+                }
+                break;
+            }
             if (entry != null) {
-                return _notStale(_allData, currentTime, entry);
+                return _found(currTimestamp, entry, key, keyHash, null, slab);
+            }
+        }
+        _missCount.increment();
+        return null;
+    }
+
+    /**
+     * Helper method called when the most recent entry for a key is found:
+     * if it is not stale, and data read is valid, it is returned; otherwise
+     * null is returned (since older entries, if any, are not to be used).
+     * Slab (either writable or read-only one) is verified not to have been
+     * recycled after copying.
+     */
+    private final CacheEntry<byte[], byte[]> _found(int currTimestamp,
+            EntryReference entry, byte[] key, int keyHash, WritableSlab ws, ReadOnlySlab slab)
+    {
+        // timestamp stored is expiry time; which should be in future (and tombstones hide older entries)
+        if (entry.isTombstone() || (entry.getTimestamp() < currTimestamp)) {
+            _missCount.increment();
+            return null;
+        }
+        CacheEntry<byte[], byte[]> result;
+        try {
+            result = entry.asCacheEntry(key, keyHash);
+        } catch (RuntimeException e) { // garbage lengths may point outside of buffer
+            if (!_isRecycled(ws, slab)) {
+                throw e;
             }
+            result = null;
+        }
+        // and if slab was recycled while reading, data may be garbage
+        if ((result == null) || _isRecycled(ws, slab)) {
+            _missCount.increment();
+            return null;
         }
-        // Ok; nothing found, need extra sync for last one
-        // TODO: extra sync
-        EntryReference entry = slab.findEntry(_allData, key, keyHash);
-        // found?
+        _hitCount.increment();
+        return result;
+    }
+
+    /**
+     * Method for finding value of the entry with given key, without copying it:
+     * if entry is found, a view to the value bytes is returned.
+     * Caller must call {@link RawValueView#release} when done with the view.
+     *
+     * @return View to value of the entry with given key, if one found; null if not
+     *
+     * @since 0.5.1
+     */
+    public RawValueView findValueView(long currentTime, byte[] key) {
+        return findValueView(currentTime, key, _keyHasher.calcHash(key, 0, key.length));
+    }
+
+    /**
+     * Method for finding value of the entry with given key, without copying it:
+     * if entry is found, a view to the value bytes is returned.
+     * Caller must call {@link RawValueView#release} when done with the view.
+     *
+     * @return View to value of the entry with given key, if one found; null if not
+     *
+     * @since 0.5.1
+     */
+    public RawValueView findValueView(long currentTime, byte[] key, int keyHash)
+    {
+        final int currTimestamp = TimeUtil.timeToTimestamp(currentTime);
+        WritableSlab ws = _writableSlab.get();
+        EntryReference entry = ws.findEntry(_slabBuffers[ws.getSlabId()], key, keyHash);
         if (entry != null) {
-            return _notStale(_allData, currentTime, entry);
+            return _pinned(currTimestamp, entry, ws.getSlabId(), ws, null);
         }
-        
-    	return null;
+        for (ReadOnlySlab slab = _firstReadOnlySlab.get(); slab != null; slab = slab.nextSlab()) {
+            try {
+                entry = slab.findEntry(_slabBuffers[slab.getSlabId()], key, keyHash);
+            } catch (RuntimeException e) {
+                if (!slab.isRecycled()) {
+                    throw e;
+                }
+                break;
+            }
+            if (entry != null) {
+                return _pinned(currTimestamp, entry, slab.getSlabId(), null, slab);
+            }
+        }
+        _missCount.increment();
+        return null;
     }
 
-    private final CacheEntry<byte[], byte[]> _notStale(ByteBuffer data,
-            long currentTime, EntryReference entry)
+    /**
+     * Helper method called to pin slab area that contains the most recent entry
+     * for the key, and construct view to its value, if entry is valid.
+     * Note that it is necessary to verify that slab was not recycled after pinning,
+     * since area may have been reused before pin was added.
+     */
+    private final RawValueView _pinned(int currTimestamp, EntryReference entry,
+            int slabIndex, WritableSlab ws, ReadOnlySlab slab)
     {
-        // stale? Compare current time (converted to timestamp) to expiry time
-        int currTimestamp = TimeUtil.timeToTimestamp(currentTime);
-        // timestamp stored is expiry time; which should be in future
-        int timeLeft = entry.getTimestamp() - currTimestamp;
-        if (timeLeft < 0) { // stale; return null to indicate no match
-            return null;
+        if (!entry.isTombstone() && (entry.getTimestamp() >= currTimestamp)) {
+            _pinCounts.incrementAndGet(slabIndex);
+            ByteBuffer value = null;
+            try {
+                if (!_isRecycled(ws, slab)) {
+                    value = entry.asValueBuffer();
+                }
+            } catch (RuntimeException e) { // garbage lengths may point outside of buffer
+                if (!_isRecycled(ws, slab)) {
+                    _pinCounts.decrementAndGet(slabIndex);
+                    throw e;
+                }
+            }
+            if (value != null) {
+                _hitCount.increment();
+                return new RawValueView(_pinCounts, slabIndex, value, entry.getTimestamp());
+            }
+            _pinCounts.decrementAndGet(slabIndex);
         }
-        // TODO: maybe reuse key caller gave?
-        return entry.asCacheEntry(currentTime);
+        _missCount.increment();
+        return null;
+    }
+
+    /**
+     * Method for finding value of the entry with given key, and copying it
+     * into given buffer (starting at its current position, which is
+     * advanced past copied value).
+     * No objects are constructed during the lookup.
+     *
+     * @param dst Buffer to copy value to
+     *
+     * @return Length of the value, if entry was found; -1 if not
+     *
+     * @throws BufferOverflowException If entry was found, but there is not enough
+     *   room in <code>dst</code> for its value (in which case nothing is copied)
+     *
+     * @since 0.5.1
+     */
+    public int findInto(long currentTime, byte[] key, int keyHash, ByteBuffer dst)
+        throws BufferOverflowException
+    {
+        final int currTimestamp = TimeUtil.timeToTimestamp(currentTime);
+        WritableSlab ws = _writableSlab.get();
+        int offset = ws.findEntryOffset(_slabBuffers[ws.getSlabId()], key, keyHash);
+        if (offset >= 0) {
+            return _copyValue(currTimestamp, offset, dst, ws, null);
+        }
+        for (ReadOnlySlab slab = _firstReadOnlySlab.get(); slab != null; slab = slab.nextSlab()) {
+            try {
+                offset = slab.findEntryOffset(_slabBuffers[slab.getSlabId()], key, keyHash);
+            } catch (RuntimeException e) {
+                if (!slab.isRecycled()) {
+                    throw e;
+                }
+                break;
+            }
+            if (offset >= 0) {
+                return _copyValue(currTimestamp, offset, dst, null, slab);
+            }
+        }
+        _missCount.increment();
+        return -1;
+    }
+
+    /**
+     * Helper method for copying value of the most recent entry for the key into
+     * given buffer, if entry is valid. Slab is verified not to have been
+     * recycled after copying.
+     */
+    private final int _copyValue(int currTimestamp, int entryOffset, ByteBuffer dst,
+            WritableSlab ws, ReadOnlySlab slab)
+    {
+        final int slabId = (slab == null) ? ws.getSlabId() : slab.getSlabId();
+        final int slabEnd = (slab == null) ? ws.getSlabEndOffset() : slab.getSlabEndOffset();
+        final ByteBuffer bbuf = _slabBuffers[slabId];
+        int origPosition = -1;
+        try {
+            // note: tombstones have high bit of timestamp set, so they never pass this check
+            if (bbuf.getInt(entryOffset) >= currTimestamp) {
+                int offset = EntryReference.valueLengthOffsetAt(bbuf, entryOffset);
+                final int valueLength = EntryReference.readVIntAt(bbuf, offset);
+                offset += WritableSlab.vIntLength(valueLength);
+                // sanity check, in case slab was recycled; if so, garbage
+                if (valueLength >= 0 && valueLength <= (slabEnd - offset)) {
+                    if (valueLength > dst.remaining()) {
+                        if (!_isRecycled(ws, slab)) {
+                            _hitCount.increment();
+                            throw new BufferOverflowException();
+                        }
+                    } else {
+                        origPosition = dst.position();
+                        ByteBuffer view = _copyView(slabId);
+                        view.limit(offset + valueLength);
+                        view.position(offset);
+                        dst.put(view);
+                        if (!_isRecycled(ws, slab)) {
+                            _hitCount.increment();
+                            return valueLength;
+                        }
+                        dst.position(origPosition);
+                    }
+                }
+            }
+        } catch (BufferOverflowException e) {
+            throw e;
+        } catch (RuntimeException e) { // garbage lengths may point outside of buffer
+            if (!_isRecycled(ws, slab)) {
+                throw e;
+            }
+            if (origPosition >= 0) {
+                dst.position(origPosition);
+            }
+        }
+        _missCount.increment();
+        return -1;
+    }
+
+    /**
+     * Helper method for checking whether slab (either writable or read-only
+     * one) has been recycled, in which case data read from it may be garbage.
+     */
+    private final static boolean _isRecycled(WritableSlab ws, ReadOnlySlab slab) {
+        return (slab == null) ? ws.isRecycled() : slab.isRecycled();
     }
-    
+
     /*
     /**********************************************************************
     /* Put method(s)
     /**********************************************************************
      */
-	
+
+    /**
+     * Since entries are simply appended, without checking for existing entries,
+     * this method always returns null.
+     * Entries that are too big to fit in a slab are not stored; instead, put
+     * is handled as removal of the key (see {@link #removeEntry}), so that
+     * the previous value is not left visible; but it is not counted as
+     * a removal.
+     */
     @Override
     protected CacheEntry<byte[], byte[]> _putEntry(long currentTime, int timeToLiveQ,
     		byte[] key, int keyHash, byte[] value, int weight)
-    {    
-        /* To keep things simple, we will use a simple global (within context
-         * of raw cache element) write lock; this guards appends to sequential
-         * entry area, as well as roll overs.
-         * Further locking may be used for individual sub-components, to handle
-         * reader/writer race conditions.
+    {
+        final int length = WritableSlab.calcEntryLength(key, value);
+        WritableSlab ws = _writableSlab.get();
+        if (length > ws.getMaxEntryLength()) {
+            _remove(currentTime, key, keyHash);
+            return null;
+        }
+        final int expirationTime = TimeUtil.timeToTimestamp(currentTime) + timeToLiveQ;
+        /* No locking needed for appends, since writable slab allows concurrent
+         * appends; but if it is full, need to roll over, which does require
+         * exclusive access
          */
-    	try {
-    	    _writeLock.acquire();
-    	} catch (InterruptedException e) {
-    	    throw new RuntimeException(e);
-    	}
-    	try {
-    	    // !!! TODO -- implement
-    	} finally {
-    	    _writeLock.release();
-    	}
+        while (ws.appendEntry(_slabBuffers[ws.getSlabId()], key, keyHash, value, expirationTime) < 0) {
+            ws = _rollOver(ws, expirationTime - timeToLiveQ);
+        }
+        _insertCount.increment();
+        _weightContent.addAndGet(key.length + value.length);
+        _weightTotal.addAndGet(length);
     	return null;
     }
 
@@ -138,23 +712,396 @@ public class RawCacheElement extends RawCacheElementBase
     /**********************************************************************
      */
 
+    /**
+     * Removal is done by appending a tombstone for the key, if there is an
+     * unexpired entry for it; so it does not require access to older entries
+     * beyond regular lookup. Tombstone does use space in the writable slab,
+     * and may cause it to be rolled over.
+     */
     @Override
     public CacheEntry<byte[], byte[]> removeEntry(long currentTime, byte[] key,
             int keyHash)
     {
-    	return null;
+        CacheEntry<byte[], byte[]> removed = _remove(currentTime, key, keyHash);
+        if (removed != null) {
+            _removalCount.increment();
+        }
+        return removed;
     }
 
+    /**
+     * Method that does actual removal for {@link #removeEntry}, without
+     * updating removal count.
+     */
+    protected CacheEntry<byte[], byte[]> _remove(long currentTime, byte[] key,
+            int keyHash)
+    {
+        final int currTimestamp = TimeUtil.timeToTimestamp(currentTime);
+        WritableSlab ws = _writableSlab.get();
+        EntryReference entry = ws.findEntry(_slabBuffers[ws.getSlabId()], key, keyHash);
+        for (ReadOnlySlab slab = _firstReadOnlySlab.get(); (entry == null) && (slab != null);
+                slab = slab.nextSlab()) {
+            try {
+                entry = slab.findEntry(_slabBuffers[slab.getSlabId()], key, keyHash);
+            } catch (RuntimeException e) { // recycled during read, similar to a miss
+                if (!slab.isRecycled()) {
+                    throw e;
+                }
+                break;
+            }
+        }
+        // nothing to remove?
+        if ((entry == null) || entry.isTombstone() || (entry.getTimestamp() < currTimestamp)) {
+            return null;
+        }
+        CacheEntry<byte[], byte[]> removed = entry.asCacheEntry(key, keyHash);
+        /* Tombstone must shadow all entries that may still be valid; writable
+         * slab determines expiration time for it when appending, since entries
+         * may be appended concurrently
+         */
+        while (ws.appendTombstone(_slabBuffers[ws.getSlabId()], key, keyHash, currTimestamp) < 0) {
+            ws = _rollOver(ws, currTimestamp);
+        }
+        _weightContent.addAndGet(key.length);
+        _weightTotal.addAndGet(WritableSlab.calcEntryLength(key, WritableSlab.NO_BYTES));
+        return removed;
+    }
+
+    /**
+     * Removal of all entries is done without touching any entries: a new
+     * generation is started by unlinking all read-only slabs and discarding
+     * the writable slab, and creating a new writable slab in the next slab
+     * area. Areas of slabs of earlier generations are then recycled
+     * in round-robin order, as usual.
+     *
+     * @throws IllegalStateException If all other slab areas are pinned by
+     *   unreleased {@link RawValueView}s (in which case nothing is removed)
+     */
     @Override
     public void removeAll()
     {
-    	// !!! TODO
+        try {
+            _writeLock.acquire();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            final WritableSlab old = _writableSlab.get();
+            final int oldIndex = _writableSlabIndex;
+            // need to verify there is an area to use before discarding anything
+            _findUnpinnedArea(oldIndex, 1);
+            // note: will wait for in-progress appends to complete
+            ReadOnlySlab discarded = old.discard();
+            _weightContent.addAndGet(-old.getContentsWeight());
+            _weightTotal.addAndGet(-old.getEntryAreaSize());
+            for (ReadOnlySlab slab = _firstReadOnlySlab.get(); slab != null; slab = slab.nextSlab()) {
+                _entryCount.addAndGet(-slab.getEntryCount());
+                _weightContent.addAndGet(-slab.getContentsWeight());
+                _weightTotal.addAndGet(-slab.getUsedSize());
+            }
+            _readOnlySlabs[oldIndex] = discarded;
+            _firstReadOnlySlab.set(null);
+            ++_generation;
+            if (_directory != null) {
+                for (int i = 0; i < _slabCount; ++i) {
+                    _directory.clearSlab(i);
+                }
+            }
+
+            // slabs dropped are of earlier generations, so time is not needed for statistics
+            final int newIndex = _nextWritableIndex(oldIndex, 0);
+            _writableSlabIndex = newIndex;
+            _writableSlab.set(_createWritableSlab(newIndex));
+        } finally {
+            _writeLock.release();
+        }
+    }
+
+    /**
+     * Method for making current contents of this element persistent, if
+     * slabs are stored in a memory-mapped file (see {@link #openMapped}):
+     * writable slab is frozen, so that its entries (and removals) are
+     * recorded in the slab directory, and changes to memory-mapped buffers
+     * are forced to the storage device. Should be called before shutting
+     * down; note that freezing writable slab may drop the oldest read-only
+     * slab, as usual. For elements that are not persistent, does nothing.
+     *
+     * @since 0.5.1
+     */
+    public void flush(long currentTime)
+    {
+        if (_directory == null) {
+            return;
+        }
+        WritableSlab ws = _writableSlab.get();
+        if (ws.getEntryCount() > 0) {
+            _rollOver(ws, TimeUtil.timeToTimestamp(currentTime));
+        }
+        for (ByteBuffer buffer : _buffers) {
+            if (buffer instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) buffer).force();
+            }
+        }
+        _directory.flush();
     }
-    
-    
+
     /*
     /**********************************************************************
     /* Internal methods
     /**********************************************************************
      */
+
+    /**
+     * Method called during construction to recreate read-only slabs recorded
+     * in the slab directory. Starting from the most recently frozen slab,
+     * preceding slab areas (in round-robin order) are included as long as
+     * they contain slabs frozen earlier; oldest slabs that only contain
+     * expired entries are left out, as are any other slabs recorded.
+     *
+     * @return Index of the slab area to use for the writable slab
+     */
+    protected int _restoreSlabs(int currTimestamp)
+    {
+        int newest = -1;
+        long newestSeq = -1L;
+        for (int i = 0; i < _slabCount; ++i) {
+            long seq = _directory.getSequence(i);
+            if (seq > newestSeq) {
+                newest = i;
+                newestSeq = seq;
+            }
+        }
+        if (newest < 0) {
+            return 0;
+        }
+        _slabSequence = newestSeq;
+        // area after the newest slab is needed for the writable slab
+        ReadOnlySlab[] slabs = new ReadOnlySlab[_slabCount - 1];
+        int count = 0;
+        long prevSeq = Long.MAX_VALUE;
+        for (int ix = newest; count < slabs.length; ix = (ix + _slabCount - 1) % _slabCount) {
+            long seq = _directory.getSequence(ix);
+            if ((seq < 0L) || (seq >= prevSeq)) {
+                break;
+            }
+            final int start = (ix % _slabsPerBuffer) * _slabSize;
+            ReadOnlySlab slab = _directory.readSlab(ix, start, start + _slabSize);
+            if (slab == null) {
+                break;
+            }
+            slabs[count++] = slab;
+            prevSeq = seq;
+        }
+        // dropping oldest slabs is safe, since newer ones shadow their entries
+        while ((count > 0) && (slabs[count-1].getMaxExpirationTime() < currTimestamp)) {
+            --count;
+        }
+        for (int i = 0; i < count; ++i) {
+            ReadOnlySlab slab = slabs[i];
+            _readOnlySlabs[slab.getSlabId()] = slab;
+            if (i == 0) {
+                _firstReadOnlySlab.set(slab);
+            } else {
+                slabs[i-1].setNextSlab(slab);
+            }
+            _entryCount.addAndGet(slab.getEntryCount());
+            _weightContent.addAndGet(slab.getContentsWeight());
+            _weightTotal.addAndGet(slab.getUsedSize());
+        }
+        for (int i = 0; i < _slabCount; ++i) {
+            if (_readOnlySlabs[i] == null) {
+                _directory.clearSlab(i);
+            }
+        }
+        return (newest + 1) % _slabCount;
+    }
+
+    /**
+     * Method called when given writable slab is full: unless some other thread
+     * has already done it, slab is frozen and linked as the first read-only
+     * slab, and a new writable slab is created in the next slab area. If the next area
+     * is in use, oldest read-only slab in it is dropped first (see
+     * {@link #_nextWritableIndex}).
+     *
+     * @param currTimestamp Current time as timestamp; tombstones that expire
+     *   before it are dropped from the frozen slab
+     *
+     * @return Current writable slab after roll over
+     */
+    protected WritableSlab _rollOver(WritableSlab old, int currTimestamp)
+    {
+        try {
+            _writeLock.acquire();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            WritableSlab ws = _writableSlab.get();
+            if (ws != old) { // someone else already rolled over
+                return ws;
+            }
+            final int oldIndex = _writableSlabIndex;
+            // choose area first, so that failure leaves old slab in use
+            final int newIndex = _nextWritableIndex(oldIndex, currTimestamp);
+            // note: will wait for in-progress appends to complete
+            ReadOnlySlab first = _firstReadOnlySlab.get();
+            // if there are no older slabs, tombstones have nothing to shadow
+            ReadOnlySlab frozen = old.freeze(_slabBuffers[oldIndex], _usePerfectHashIndex,
+                    (first == null) ? Integer.MAX_VALUE : currTimestamp);
+            frozen.setNextSlab(first);
+            _readOnlySlabs[oldIndex] = frozen;
+            _firstReadOnlySlab.set(frozen);
+            if (_directory != null) {
+                _directory.writeSlab(oldIndex, ++_slabSequence, frozen);
+            }
+            _entryCount.addAndGet(frozen.getEntryCount());
+            // index area of the writable slab is not retained; only entries and frozen index
+            _weightTotal.addAndGet(frozen.getUsedSize() - old.getEntryAreaSize());
+
+            _writableSlabIndex = newIndex;
+            ws = _createWritableSlab(newIndex);
+            _writableSlab.set(ws);
+            return ws;
+        } finally {
+            _writeLock.release();
+        }
+    }
+
+    /**
+     * Method for choosing slab area for the next writable slab, starting from
+     * the area after given one. If there are unreleased {@link RawValueView}s
+     * to the area, it can not be reused yet, and the area after it is tried
+     * next: once an unpinned area is found, oldest read-only slabs in it and in
+     * the skipped areas are dropped. Since write lock is held, views are
+     * never waited for.
+     *
+     * @param currTimestamp Current time as timestamp, used for classifying
+     *   entries of dropped slabs as expired or evicted
+     *
+     * @throws IllegalStateException If all other slab areas are pinned by
+     *   unreleased views (in which case no slabs are dropped)
+     */
+    protected int _nextWritableIndex(int currIndex, int currTimestamp)
+    {
+        int target = _findUnpinnedArea(currIndex, 1);
+        int i = 1;
+        while (true) {
+            for (; i <= target; ++i) {
+                final int index = (currIndex + i) % _slabCount;
+                ReadOnlySlab oldest = _readOnlySlabs[index];
+                if (oldest != null) {
+                    _dropOldest(index, oldest, currTimestamp);
+                }
+            }
+            /* Need to re-check, since a reader may have pinned area before slab
+             * was marked recycled; after that, readers will not use the area.
+             * If so (rarely), need to move on (and may then fail after all)
+             */
+            if (_pinCounts.get((currIndex + target) % _slabCount) == 0) {
+                return (currIndex + target) % _slabCount;
+            }
+            target = _findUnpinnedArea(currIndex, target+1);
+        }
+    }
+
+    /**
+     * @return Distance (1 or above) from given area to the first unpinned area
+     *   starting at given distance
+     *
+     * @throws IllegalStateException If there are no unpinned areas
+     */
+    protected int _findUnpinnedArea(int currIndex, int firstDistance)
+    {
+        for (int i = firstDistance; i < _slabCount; ++i) {
+            if (_pinCounts.get((currIndex + i) % _slabCount) == 0) {
+                return i;
+            }
+        }
+        throw _pinnedAreasException();
+    }
+
+    protected IllegalStateException _pinnedAreasException() {
+        return new IllegalStateException("Can not roll over slabs: all other "+(_slabCount-1)
+                +" slab areas are pinned by unreleased RawValueViews");
+    }
+
+    /**
+     * Method for dropping the oldest read-only slab (last in the list),
+     * which occupies given slab area. Note that area may still be pinned by
+     * {@link RawValueView}s, in which case it must not be reused until they
+     * are released.
+     * Entries (other than tombstones) of the dropped slab are counted as
+     * expirations if all of them have expired; otherwise as evictions.
+     */
+    protected void _dropOldest(int slabIndex, ReadOnlySlab oldest, int currTimestamp)
+    {
+        _readOnlySlabs[slabIndex] = null;
+        // area may be left unused for a while, so must not be restored either
+        if (_directory != null) {
+            _directory.clearSlab(slabIndex);
+        }
+        // slabs of earlier generations are neither linked nor included in statistics
+        if (_slabGenerations[slabIndex] != _generation) {
+            oldest.markRecycled();
+            return;
+        }
+        /* Slab in the next used area is the second-oldest one, which links to
+         * the oldest (areas in between may be unused, if they were pinned
+         * when writable slab was to be created in them)
+         */
+        ReadOnlySlab prev = null;
+        for (int i = 1; (prev == null) && (i < _slabCount); ++i) {
+            prev = _readOnlySlabs[(slabIndex + i) % _slabCount];
+        }
+        if (prev == null) {
+            _firstReadOnlySlab.compareAndSet(oldest, null);
+        } else {
+            prev.setNextSlab(null);
+        }
+        oldest.markRecycled();
+        _entryCount.addAndGet(-oldest.getEntryCount());
+        final int live = oldest.getEntryCount() - oldest.getTombstoneCount();
+        if (oldest.getMaxExpirationTime() < currTimestamp) {
+            _expirationCount.add(live);
+        } else {
+            _evictionCount.add(live);
+        }
+        _weightContent.addAndGet(-oldest.getContentsWeight());
+        _weightTotal.addAndGet(-oldest.getUsedSize());
+    }
+
+    /**
+     * Method for accessing per-thread view of the buffer that contains
+     * given slab area
+     */
+    protected final ByteBuffer _copyView(int slabId)
+    {
+        ByteBuffer[] views = _copyViews.get();
+        final int index = slabId / _slabsPerBuffer;
+        ByteBuffer view = views[index];
+        if (view == null) {
+            view = _buffers[index].duplicate();
+            views[index] = view;
+        }
+        return view;
+    }
+
+    protected WritableSlab _createWritableSlab(int slabIndex)
+    {
+        int start = (slabIndex % _slabsPerBuffer) * _slabSize;
+        _slabGenerations[slabIndex] = _generation;
+        // directory must not refer to area once it is overwritten
+        if (_directory != null) {
+            _directory.clearSlab(slabIndex);
+        }
+        WritableSlab ws = new WritableSlab(_slabBuffers[slabIndex], slabIndex, start, start + _slabSize,
+                _indexSlotsPerSlab);
+        // tombstones appended need to shadow all entries of older slabs
+        int maxExpiration = 0;
+        for (ReadOnlySlab slab = _firstReadOnlySlab.get(); slab != null; slab = slab.nextSlab()) {
+            maxExpiration = Math.max(maxExpiration, slab.getMaxExpirationTime());
+        }
+        ws.setOlderMaxExpirationTime(maxExpiration);
+        return ws;
+    }
 }
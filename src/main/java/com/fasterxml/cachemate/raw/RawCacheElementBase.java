@@ -7,6 +7,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import com.fasterxml.cachemate.CacheElement;
 import com.fasterxml.cachemate.CacheEntry;
 import com.fasterxml.cachemate.CacheStats;
+import com.fasterxml.cachemate.util.StripedCounter;
 import com.fasterxml.cachemate.util.TimeUtil;
 
 /**
@@ -43,7 +44,8 @@ public abstract class RawCacheElementBase
 
 	/**
 	 * We will use a fair binary semaphore for mutual exclusion of
-	 * all writes.
+	 * writes that need exclusive access (such as rolling over of slabs);
+	 * regular appends do not need to lock.
 	 */
 	protected final Semaphore _writeLock = new Semaphore(1, true);
 	
@@ -84,17 +86,32 @@ public abstract class RawCacheElementBase
     /**
      * Number of times an entry has been found within cache
      */
-    protected final AtomicInteger _hitCount = new AtomicInteger();
+    protected final StripedCounter _hitCount = new StripedCounter();
     
     /**
-     * Number of times an entry has been found within cache
+     * Number of times an entry has not been found within cache
      */
-    protected final AtomicInteger _missCount = new AtomicInteger();
+    protected final StripedCounter _missCount = new StripedCounter();
 
     /**
      * Number of times entries have been inserted in the cache
      */
-    protected final AtomicInteger _insertCount = new AtomicInteger();
+    protected final StripedCounter _insertCount = new StripedCounter();
+
+    /**
+     * Number of entries dropped to make room for new entries
+     */
+    protected final StripedCounter _evictionCount = new StripedCounter();
+
+    /**
+     * Number of entries dropped because they had expired
+     */
+    protected final StripedCounter _expirationCount = new StripedCounter();
+
+    /**
+     * Number of entries removed explicitly
+     */
+    protected final StripedCounter _removalCount = new StripedCounter();
     
     /*
     /**********************************************************************
@@ -173,6 +190,18 @@ public abstract class RawCacheElementBase
     protected abstract CacheEntry<byte[], byte[]> _putEntry(long currentTime, int timeToLiveQ,
     		byte[] key, int keyHash, byte[] value, int weight);
 
+    @Override
+    public int putEntries(long currentTime, byte[][] keys, byte[][] values, int[] weights, int count)
+    {
+        int replaced = 0;
+        for (int i = 0; i < count; ++i) {
+            if (putEntry(currentTime, keys[i], values[i], weights[i]) != null) {
+                ++replaced;
+            }
+        }
+        return replaced;
+    }
+
     /*
     /**********************************************************************
     /* Get methods
@@ -188,6 +217,24 @@ public abstract class RawCacheElementBase
     public abstract CacheEntry<byte[], byte[]> findEntry(long currentTime, byte[] key,
             int keyHash);
 
+    /**
+     * Since there is no per-lookup maintenance to do, this is simply
+     * equivalent to calling {@link #findEntry(long, byte[])} for each key.
+     */
+    @Override
+    public int findEntries(long currentTime, byte[][] keys, CacheEntry<byte[], byte[]>[] results, int count)
+    {
+        int found = 0;
+        for (int i = 0; i < count; ++i) {
+            CacheEntry<byte[], byte[]> entry = findEntry(currentTime, keys[i]);
+            results[i] = entry;
+            if (entry != null) {
+                ++found;
+            }
+        }
+        return found;
+    }
+
     /*
     /**********************************************************************
     /* Removals
@@ -236,7 +283,8 @@ public abstract class RawCacheElementBase
     public CacheStats getStats()
     {
     	return new CacheStats(_hitCount.get(), _missCount.get(), _insertCount.get(),
-                size(), weight(), contentsWeight(),
+    	        _evictionCount.get(), _expirationCount.get(), _removalCount.get(),
+                size(), contentsWeight(), weight(),
                 -1, // no entry count limit
                 // TODO: maxTotalWeight?
                 -1L);
@@ -245,16 +293,22 @@ public abstract class RawCacheElementBase
     @Override
     public void clearStats()
     {
-    	_hitCount.set(0);
-    	_missCount.set(0);
-    	_insertCount.set(0);
+    	_hitCount.reset();
+    	_missCount.reset();
+    	_insertCount.reset();
+    	_evictionCount.reset();
+    	_expirationCount.reset();
+    	_removalCount.reset();
     }
 
     @Override
     public void decayStats(double ratio)
     {
-        _hitCount.set((int) (_hitCount.get() * ratio));
-        _missCount.set((int) (_missCount.get() * ratio));
-        _insertCount.set((int) (_insertCount.get() * ratio));
+        _hitCount.decay(ratio);
+        _missCount.decay(ratio);
+        _insertCount.decay(ratio);
+        _evictionCount.decay(ratio);
+        _expirationCount.decay(ratio);
+        _removalCount.decay(ratio);
     }
 }
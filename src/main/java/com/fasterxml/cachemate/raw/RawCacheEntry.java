@@ -48,4 +48,10 @@ public class RawCacheEntry implements CacheEntry<byte[], byte[]>
     public long getExpirationInMilliSeconds(long currentTime) {
         return TimeUtil.getExpirationInMilliSeconds(currentTime, _expirationTime);
     }
+
+    // raw entries do not keep track of accesses
+    @Override
+    public int getTimesReturned() {
+        return 0;
+    }
 }
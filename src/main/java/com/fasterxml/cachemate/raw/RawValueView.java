@@ -0,0 +1,96 @@
+package com.fasterxml.cachemate.raw;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Read-only view of a value stored in a {@link RawCacheElement}, returned
+ * by {@link RawCacheElement#findValueView}. Unlike {@link RawCacheEntry},
+ * value is not copied: view shares content with buffer that cache element
+ * uses, which allows, for example, writing value directly to a channel.
+ *<p>
+ * View "pins" slab area that contains the value, so that it will not be
+ * reused until view is released; caller MUST call {@link #release} when
+ * it is done with the value, and should do that promptly, since
+ * pinned slab area can not be used for new entries: if all other
+ * slab areas are pinned as well, putting entries in the cache element
+ * fails.
+ *
+ * @since 0.5.1
+ */
+public final class RawValueView
+{
+    /**
+     * Pin counts of the owning cache element
+     */
+    private final AtomicIntegerArray _pinCounts;
+
+    /**
+     * Index of slab area this view pins
+     */
+    private final int _slabIndex;
+
+    private final ByteBuffer _value;
+
+    private final int _expirationTime;
+
+    /**
+     * Flag set when view is released; atomic, so that concurrent calls to
+     * {@link #release} can not release pin more than once
+     */
+    private final AtomicBoolean _released = new AtomicBoolean(false);
+
+    protected RawValueView(AtomicIntegerArray pinCounts, int slabIndex,
+            ByteBuffer value, int expirationTime)
+    {
+        _pinCounts = pinCounts;
+        _slabIndex = slabIndex;
+        _value = value;
+        _expirationTime = expirationTime;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Accessor for the value bytes, from position 0 (inclusive) up to limit
+     * (exclusive). Returned buffer is read-only; caller may change its
+     * position and limit, but needs to make sure not to use it after
+     * releasing the view.
+     */
+    public ByteBuffer getValue() {
+        return _value;
+    }
+
+    public int getValueLength() {
+        return _value.limit();
+    }
+
+    /**
+     * Accessor for the expiration time of the entry, as internal timestamp
+     * (see {@link com.fasterxml.cachemate.util.TimeUtil}).
+     */
+    public int getExpirationTime() {
+        return _expirationTime;
+    }
+
+    public boolean isReleased() {
+        return _released.get();
+    }
+
+    /**
+     * Method that must be called when caller no longer needs access to the value,
+     * to allow slab area that contains the value to be reused.
+     * Calling this method more than once has no effect.
+     */
+    public void release()
+    {
+        if (_released.compareAndSet(false, true)) {
+            _pinCounts.decrementAndGet(_slabIndex);
+        }
+    }
+}
@@ -26,9 +26,44 @@ import java.util.concurrent.atomic.AtomicReference;
  * call that 'I'): first one contains set of I ints (4 bytes), consisting
  * of 32-bit hash, ordered for binary search; and second matching set with
  * offsets for that hash to an entry in entry area.
+ * These are followed by a directory, keyed by the top D bits of hash
+ * (where 2^D is about the number of entries): for each D-bit prefix,
+ * directory contains index of the first hash with that prefix (or higher),
+ * so that lookup only needs to scan a short range of hashes.
+ * And finally there is a blocked Bloom filter over key hashes, consisting
+ * of 64-byte blocks: a single block is selected for a key, and a set
+ * of bits in that block is set. Filter is checked before searching for
+ * the hash, so that most lookups for keys not contained in the slab only need
+ * to access a single block.
+ *<p>
+ * Alternatively, index may be a {@link PerfectHashIndex} (followed by
+ * the Bloom filter), which is more compact and only needs a single
+ * probe for most lookups.
+ *<p>
+ * Instances are created by freezing a {@link WritableSlab} (see
+ * {@link WritableSlab#freeze}); and once the oldest slab is dropped to make
+ * room for new entries, it is marked as recycled, since its buffer area
+ * will be overwritten. Readers need to check this after reading
+ * entry data, and discard the data if slab was recycled.
  */
 public final class ReadOnlySlab
 {
+    /**
+     * Size of a single Bloom filter block, in bytes
+     */
+    protected final static int BLOOM_BLOCK_BYTES = 64;
+
+    /**
+     * Number of Bloom filter bits to use per entry; 10 bits with 4 hash
+     * functions gives false positive rate of about 2%.
+     */
+    protected final static int BLOOM_BITS_PER_ENTRY = 10;
+
+    /**
+     * Number of bits set in Bloom filter per entry
+     */
+    protected final static int BLOOM_HASHES = 4;
+
     /*
     /**********************************************************************
     /* Config, data
@@ -36,7 +71,12 @@ public final class ReadOnlySlab
      */
 
     // note: we do NOT hold on to a ByteBuffer, since copies are needed
-	
+
+    /**
+     * Identifier of the slab area this slab uses (see {@link WritableSlab#getSlabId})
+     */
+    protected final int _slabId;
+
     /**
      * Absolute offset within shared {@link ByteBuffer} where this slab starts.
      * This is also where the entry (data) area starts.
@@ -59,10 +99,42 @@ public final class ReadOnlySlab
 	
     /**
      * Number of entries contained in the index. Size of the index area is
-     * 8 times this (2 ints, hash, entry offset).
+     * 8 times this (2 ints, hash, entry offset), plus size of the Bloom filter.
      */
     protected final int _entryCount;
 
+    /**
+     * Number of tombstones included in {@link #_entryCount}
+     */
+    protected final int _tombstoneCount;
+
+    /**
+     * Absolute offset within shared {@link ByteBuffer} where the hash prefix
+     * directory starts
+     */
+    protected final int _directoryStartOffset;
+
+    /**
+     * Number of hash bits directory is keyed by
+     */
+    protected final int _directoryBits;
+
+    /**
+     * Perfect hash index used instead of sorted hashes and directory, if any
+     */
+    protected final PerfectHashIndex _perfectHashIndex;
+
+    /**
+     * Absolute offset within shared {@link ByteBuffer} where the Bloom filter
+     * starts
+     */
+    protected final int _bloomStartOffset;
+
+    /**
+     * Number of blocks in the Bloom filter
+     */
+    protected final int _bloomBlocks;
+
     /**
      * Flag to indicate that there is at least one hash collision in this
      * slab; since this should be uncommon occurence, knowledge can be used
@@ -70,6 +142,17 @@ public final class ReadOnlySlab
      */
     protected final boolean _hashCollisions;
 
+    /**
+     * Highest expiration timestamp of entries in this slab; if lower than
+     * current timestamp, all entries are stale.
+     */
+    protected final int _maxExpirationTime;
+
+    /**
+     * Approximate weight of entries (keys and values) of this slab
+     */
+    protected final long _contentsWeight;
+
     /*
     /**********************************************************************
     /* Config, other
@@ -81,7 +164,12 @@ public final class ReadOnlySlab
      * be cleared to null when slabs expire.
      */
     protected final AtomicReference<ReadOnlySlab> _nextSlab = new AtomicReference<ReadOnlySlab>();
-	
+
+    /**
+     * Flag set when slab is dropped and its buffer area may be reused.
+     */
+    protected volatile boolean _recycled;
+
     /*
     /**********************************************************************
     /* Construction
@@ -90,19 +178,246 @@ public final class ReadOnlySlab
 
     public ReadOnlySlab(int slabStart, int slabEnd,
             int indexStart, int entryCount,
-            boolean hashCollisions)
+            boolean hashCollisions, int maxExpirationTime, long contentsWeight)
+    {
+        this(0, slabStart, slabEnd, indexStart, entryCount, 0, hashCollisions,
+                maxExpirationTime, contentsWeight);
+    }
+
+    /**
+     * @since 0.5.1
+     */
+    public ReadOnlySlab(int slabId, int slabStart, int slabEnd,
+            int indexStart, int entryCount, int tombstoneCount,
+            boolean hashCollisions, int maxExpirationTime, long contentsWeight)
     {
+        _slabId = slabId;
         _slabStartOffset = slabStart;
         _slabEndOffset = slabEnd;
         _indexStartOffset = indexStart;
         _entryCount = entryCount;
+        _tombstoneCount = tombstoneCount;
+        _directoryStartOffset = indexStart + (entryCount << 3);
+        _directoryBits = calcDirectoryBits(entryCount);
+        _perfectHashIndex = null;
+        _bloomStartOffset = _directoryStartOffset + calcDirectorySize(entryCount);
+        _bloomBlocks = calcBloomBlocks(entryCount);
+        _hashCollisions = hashCollisions;
+        _maxExpirationTime = maxExpirationTime;
+        _contentsWeight = contentsWeight;
+    }
+
+    /**
+     * Constructor used for slabs that use perfect hash index (instead
+     * of sorted hashes); Bloom filter follows the index.
+     *
+     * @since 0.5.1
+     */
+    public ReadOnlySlab(int slabId, int slabStart, int slabEnd, PerfectHashIndex index,
+            int entryCount, int tombstoneCount, boolean hashCollisions, int maxExpirationTime, long contentsWeight)
+    {
+        _slabId = slabId;
+        _slabStartOffset = slabStart;
+        _slabEndOffset = slabEnd;
+        _indexStartOffset = index.getStartOffset();
+        _entryCount = entryCount;
+        _tombstoneCount = tombstoneCount;
+        _directoryStartOffset = -1;
+        _directoryBits = 0;
+        _perfectHashIndex = index;
+        _bloomStartOffset = index.getEndOffset();
+        _bloomBlocks = calcBloomBlocks(entryCount);
         _hashCollisions = hashCollisions;
+        _maxExpirationTime = maxExpirationTime;
+        _contentsWeight = contentsWeight;
+    }
+
+    /**
+     * Method for calculating size of the index area needed for given number of
+     * entries (including hash prefix directory and Bloom filter).
+     */
+    public static int calcIndexAreaSize(int entryCount) {
+        return (entryCount << 3) + calcDirectorySize(entryCount)
+                + (calcBloomBlocks(entryCount) * BLOOM_BLOCK_BYTES);
+    }
+
+    /**
+     * Directory is keyed by as many bits as needed for the number of prefixes
+     * to be at most the number of entries (but at least 1 bit); meaning
+     * that on average there are 1 to 2 entries per prefix.
+     */
+    protected static int calcDirectoryBits(int entryCount) {
+        return Math.max(1, 31 - Integer.numberOfLeadingZeros(entryCount));
+    }
+
+    /**
+     * Size of directory in bytes: one int per prefix, plus one for the end marker;
+     * padded to multiple of 8 bytes
+     */
+    protected static int calcDirectorySize(int entryCount) {
+        return ((((1 << calcDirectoryBits(entryCount)) + 1) << 2) + 7) & ~7;
+    }
+
+    /**
+     * Since hashes are sorted as signed ints, sign bit needs to be flipped
+     * to get prefixes in the same order.
+     */
+    private final static int _prefix(int hash, int bits) {
+        return (hash ^ 0x80000000) >>> (32 - bits);
+    }
+
+    /**
+     * Method called when freezing a slab, after hashes and offsets of the
+     * index have been written, to build the hash prefix directory that
+     * follows them.
+     */
+    protected static void writeDirectory(ByteBuffer bbuf, int indexStart, int entryCount)
+    {
+        final int dirStart = indexStart + (entryCount << 3);
+        final int bits = calcDirectoryBits(entryCount);
+        final int prefixes = 1 << bits;
+        int ix = 0;
+        for (int prefix = 0; prefix < prefixes; ++prefix) {
+            // skip hashes with lower prefixes
+            while ((ix < entryCount) && (_prefix(bbuf.getInt(indexStart + (ix << 2)), bits) < prefix)) {
+                ++ix;
+            }
+            bbuf.putInt(dirStart + (prefix << 2), ix);
+        }
+        bbuf.putInt(dirStart + (prefixes << 2), entryCount);
+    }
+
+    protected static int calcBloomBlocks(int entryCount) {
+        final int blockBits = BLOOM_BLOCK_BYTES * 8;
+        return (entryCount * BLOOM_BITS_PER_ENTRY + blockBits - 1) / blockBits;
+    }
+
+    /**
+     * Method for calculating size of the Bloom filter for given number of entries
+     */
+    public static int calcBloomFilterSize(int entryCount) {
+        return calcBloomBlocks(entryCount) * BLOOM_BLOCK_BYTES;
+    }
+
+    /**
+     * Method called when freezing a slab, after index has been written,
+     * to build the Bloom filter that follows it.
+     *
+     * @param entries Entries of the slab, with key hash in upper 32 bits
+     */
+    protected static void writeBloomFilter(ByteBuffer bbuf, int bloomStart, long[] entries)
+    {
+        final int entryCount = entries.length;
+        final int blocks = calcBloomBlocks(entryCount);
+        // need to clear first, since buffer area may be reused
+        for (int i = 0, end = blocks * BLOOM_BLOCK_BYTES; i < end; i += 8) {
+            bbuf.putLong(bloomStart + i, 0L);
+        }
+        for (int i = 0; i < entryCount; ++i) {
+            final int hash = (int) (entries[i] >> 32);
+            final int blockStart = bloomStart + _bloomBlock(hash, blocks) * BLOOM_BLOCK_BYTES;
+            final int h2 = _bloomHash(hash);
+            for (int j = 0; j < BLOOM_HASHES; ++j) {
+                final int bit = (h2 + j * ((h2 >>> 16) | 1)) & 511;
+                final int offset = blockStart + ((bit >> 6) << 3);
+                bbuf.putLong(offset, bbuf.getLong(offset) | (1L << bit));
+            }
+        }
+    }
+
+    /**
+     * Method for checking whether this slab may contain an entry with given
+     * key hash; if false is returned, it definitely does not; if true,
+     * it may or may not.
+     *
+     * @since 0.5.1
+     */
+    public boolean mightContain(ByteBuffer bbuf, int keyHash)
+    {
+        if (_bloomBlocks == 0) {
+            return false;
+        }
+        final int blockStart = _bloomStartOffset + _bloomBlock(keyHash, _bloomBlocks) * BLOOM_BLOCK_BYTES;
+        final int h2 = _bloomHash(keyHash);
+        for (int j = 0; j < BLOOM_HASHES; ++j) {
+            final int bit = (h2 + j * ((h2 >>> 16) | 1)) & 511;
+            if ((bbuf.getLong(blockStart + ((bit >> 6) << 3)) & (1L << bit)) == 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Block is selected using the full hash (scaled to block count), and bits
+     * within block using a remixed hash, to keep them independent.
+     */
+    private final static int _bloomBlock(int hash, int blocks) {
+        return (int) (((hash & 0xFFFFFFFFL) * blocks) >>> 32);
+    }
+
+    private final static int _bloomHash(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 15);
     }
 
     public ReadOnlySlab nextSlab() {
         return _nextSlab.get();
     }
-    
+
+    public void setNextSlab(ReadOnlySlab next) {
+        _nextSlab.set(next);
+    }
+
+    public int getSlabId() { return _slabId; }
+    public int getSlabStartOffset() { return _slabStartOffset; }
+    public int getSlabEndOffset() { return _slabEndOffset; }
+    public int getIndexStartOffset() { return _indexStartOffset; }
+    public int getEntryCount() { return _entryCount; }
+
+    /**
+     * Accessor for number of tombstones (included in entry count)
+     *
+     * @since 0.5.1
+     */
+    public int getTombstoneCount() { return _tombstoneCount; }
+
+    public int getMaxExpirationTime() { return _maxExpirationTime; }
+    public long getContentsWeight() { return _contentsWeight; }
+
+    /**
+     * Accessor for number of bytes actually used by entries and index
+     */
+    public int getUsedSize() {
+        return _bloomStartOffset + (_bloomBlocks * BLOOM_BLOCK_BYTES) - _slabStartOffset;
+    }
+
+    /**
+     * @since 0.5.1
+     */
+    public boolean usesPerfectHashIndex() {
+        return (_perfectHashIndex != null);
+    }
+
+    /**
+     * @since 0.5.1
+     */
+    public PerfectHashIndex getPerfectHashIndex() { return _perfectHashIndex; }
+
+    /**
+     * @since 0.5.1
+     */
+    public boolean hasHashCollisions() { return _hashCollisions; }
+
+    public boolean isRecycled() { return _recycled; }
+
+    /**
+     * Method called when slab is dropped, before its buffer area is reused.
+     */
+    public void markRecycled() {
+        _recycled = true;
+    }
+
     /*
     /**********************************************************************
     /* Public API
@@ -117,37 +432,52 @@ public final class ReadOnlySlab
      */
     public EntryReference findEntry(ByteBuffer bbuf, byte[] key, int keyHash)
     {
-        int min = 0;
-        int max = _entryCount-1;
-        int offset;
-        int mid;
-
-        // First, let's see if we do find a matching hash
-        // (let's see -- can I still code binary search?)
-        while (true) {
-            mid = (min + max) >> 1;
-            offset = _indexStartOffset + (mid << 2);
-            int currHash = bbuf.getInt(offset);
-            if (currHash > keyHash) { // key is in lower subset
-                max = mid-1;
-            } else if (currHash != keyHash) { // upper
-                min = mid+1;
-            } else {
+        int offset = findEntryOffset(bbuf, key, keyHash);
+        return (offset < 0) ? null : new EntryReference(bbuf, offset, _slabEndOffset);
+    }
+
+    /**
+     * Method for finding entry with given key, without constructing
+     * any objects.
+     *
+     * @param key Primary key of the entry to find
+     * @param keyHash Full hash code of the entry
+     * 
+     * @return Absolute offset of the entry with specified primary key, if any
+     *   contained; -1 if not
+     *
+     * @since 0.5.1
+     */
+    public int findEntryOffset(ByteBuffer bbuf, byte[] key, int keyHash)
+    {
+        // quick check first, to avoid index access for most misses
+        if (!mightContain(bbuf, keyHash)) {
+            return -1;
+        }
+        if (_perfectHashIndex != null) {
+            return _perfectHashIndex.findEntryOffset(bbuf, key, keyHash, _slabStartOffset, _indexStartOffset);
+        }
+        // then find range of hashes with same prefix
+        final int dirOffset = _directoryStartOffset + (_prefix(keyHash, _directoryBits) << 2);
+        int ix = bbuf.getInt(dirOffset);
+        final int end = bbuf.getInt(dirOffset + 4);
+        if (ix < 0 || end > _entryCount) { // garbage, if recycled concurrently
+            return -1;
+        }
+        // and scan it; hashes are sorted, and entries with same hash adjacent
+        for (; ix < end; ++ix) {
+            final int currHash = bbuf.getInt(_indexStartOffset + (ix << 2));
+            if (currHash == keyHash) {
+                int entryOffset = _matchAt(bbuf, bbuf.getInt(_indexStartOffset + ((_entryCount + ix) << 2)), key);
+                // if no collisions, no need to look further
+                if (entryOffset >= 0 || !_hashCollisions) {
+                    return entryOffset;
+                }
+            } else if (currHash > keyHash) {
                 break;
             }
-            if (max > min) { // no match!
-                return null;
-            }
         }
-
-        // if we have collisions, need more delicate handling, so:
-        if (_hashCollisions)  {
-            return _findEntryWithDups(bbuf, key, keyHash, mid);
-        }
-        // otherwise we simply need to verify that key matches
-        int entryOffset = bbuf.getInt(offset + (_entryCount << 2));
-        EntryReference ref = new EntryReference(bbuf, entryOffset);
-        return ref.hasKey(key) ? ref : null;
+        return -1;
     }
 	
     /*
@@ -157,33 +487,18 @@ public final class ReadOnlySlab
      */
 
     /**
-     * Helper method called to find the match, in case where at least two
-     * entries have same hash value (collision). If so, we are still guaranteed
-     * that all same-hash-valued entries are adjacent; but we need to scan through
-     * them all.
+     * Helper method for checking whether entry at given offset has given key;
+     * offset is verified to be within entry area first, since contents of
+     * a slab that is being recycled may be overwritten while it is being read.
+     *
+     * @return Entry offset, if entry has the key; -1 if not
      */
-    private final EntryReference _findEntryWithDups(ByteBuffer bbuf,
-            byte[] key, int keyHash, final int matchIndex)
-    {      
-        // assume entries are ordered from most to least recent; hence, find first one first:
-        int ix = matchIndex;
-
-        while (--ix > 0 && bbuf.getInt(_indexStartOffset + (ix << 2)) == keyHash) {
-            ;
-        }
-        ++ix; // to compensate for the last speculative reduction
-
-        // and see if we can find a match...
-        while (true) {
-            int entryOffset = bbuf.getInt(_indexStartOffset + (ix << 2) + (_entryCount << 2));
-            EntryReference ref = new EntryReference(bbuf, entryOffset);
-            if (ref.hasKey(key)) {
-                return ref;
-            }
-            // if not, does the next entry have same hash code still?
-            if (++ix >=_entryCount || bbuf.getInt(_indexStartOffset + (ix << 2)) != keyHash) {
-                return null;
-            }
+    private final int _matchAt(ByteBuffer bbuf, int entryOffset, byte[] key)
+    {
+        if (entryOffset < _slabStartOffset || entryOffset >= _indexStartOffset
+                || !EntryReference.hasKeyAt(bbuf, entryOffset, key)) {
+            return -1;
         }
+        return entryOffset;
     }
 }
@@ -0,0 +1,279 @@
+package com.fasterxml.cachemate.raw;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Persistent directory of read-only slabs of a {@link RawCacheElement},
+ * stored in a small header buffer (usually the start of the memory-mapped
+ * file that also contains slab areas; see {@link RawCacheElement#openMapped}).
+ * Directory contains enough information to recreate {@link ReadOnlySlab}
+ * instances for slab areas, so that after restart, frozen slabs can be
+ * used without re-populating them.
+ *<p>
+ * Directory consists of a fixed-size header, followed by one fixed-size
+ * record per slab area:
+ *<ul>
+ * <li>Header: magic number, format version, slab size, slab count and
+ *   key hash of a check key (to detect change of hash function)
+ * <li>Slab record: type (none, sorted index or perfect hash index),
+ *   entry count, sequence number (order in which slabs were frozen),
+ *   index start offset, maximum expiration time, contents weight,
+ *   collision flag, layout of perfect hash index (if any) and
+ *   tombstone count
+ *</ul>
+ * Type of the record is written last, and record is cleared before
+ * slab area is reused, so that directory never refers to partially
+ * written slab areas (as long as process, not the whole system, fails).
+ *<p>
+ * Directory is only modified while holding the write lock of the owning
+ * cache element.
+ *
+ * @since 0.5.1
+ */
+public final class SlabDirectory
+{
+    protected final static int MAGIC = 0xCAC4E5AB;
+
+    protected final static int VERSION = 1;
+
+    protected final static int HEADER_SIZE = 64;
+
+    protected final static int RECORD_SIZE = 192;
+
+    protected final static int TYPE_NONE = 0;
+    protected final static int TYPE_SORTED = 1;
+    protected final static int TYPE_PERFECT_HASH = 2;
+
+    /**
+     * Key used for verifying that key hashes are calculated the same way
+     * as when directory was written
+     */
+    protected final static byte[] CHECK_KEY = "cachemate-check".getBytes();
+
+    // Offsets within header
+    private final static int OFFSET_MAGIC = 0;
+    private final static int OFFSET_VERSION = 4;
+    private final static int OFFSET_SLAB_SIZE = 8;
+    private final static int OFFSET_SLAB_COUNT = 12;
+    private final static int OFFSET_HASH_CHECK = 16;
+
+    // Offsets within slab record
+    private final static int REC_TYPE = 0;
+    private final static int REC_ENTRY_COUNT = 4;
+    private final static int REC_SEQUENCE = 8;
+    private final static int REC_INDEX_START = 16;
+    private final static int REC_MAX_EXPIRATION = 20;
+    private final static int REC_CONTENTS_WEIGHT = 24;
+    private final static int REC_COLLISIONS = 32;
+    private final static int REC_RANK_START = 36;
+    private final static int REC_SLOTS_START = 40;
+    private final static int REC_OVERFLOW_START = 44;
+    private final static int REC_OVERFLOW_COUNT = 48;
+    private final static int REC_INDEX_END = 52;
+    private final static int REC_LEVEL_COUNT = 56;
+    private final static int REC_LEVEL_STARTS = 60;
+    private final static int REC_LEVEL_WORDS = REC_LEVEL_STARTS + (PerfectHashIndex.MAX_LEVELS << 2);
+    private final static int REC_TOMBSTONE_COUNT = REC_LEVEL_WORDS + (PerfectHashIndex.MAX_LEVELS << 2);
+
+    protected final ByteBuffer _header;
+
+    protected final int _slabCount;
+
+    public SlabDirectory(ByteBuffer header, int slabCount)
+    {
+        if (header.capacity() < calcSize(slabCount)) {
+            throw new IllegalArgumentException("Header buffer (capacity "+header.capacity()
+                    +") too small for directory of "+slabCount+" slabs");
+        }
+        _header = header;
+        _slabCount = slabCount;
+    }
+
+    /**
+     * Method for calculating size of directory for given number of slabs.
+     */
+    public static int calcSize(int slabCount) {
+        return HEADER_SIZE + slabCount * RECORD_SIZE;
+    }
+
+    public int getSlabCount() { return _slabCount; }
+
+    /*
+    /**********************************************************************
+    /* Header
+    /**********************************************************************
+     */
+
+    /**
+     * Method for checking whether directory was written for slab areas
+     * with given configuration; if not, its contents can not be used.
+     */
+    public boolean isCompatible(int slabSize, Hasher keyHasher)
+    {
+        return (_header.getInt(OFFSET_MAGIC) == MAGIC)
+                && (_header.getInt(OFFSET_VERSION) == VERSION)
+                && (_header.getInt(OFFSET_SLAB_SIZE) == slabSize)
+                && (_header.getInt(OFFSET_SLAB_COUNT) == _slabCount)
+                && (_header.getInt(OFFSET_HASH_CHECK) == _hashCheck(keyHasher));
+    }
+
+    /**
+     * Method for clearing all slab records and writing header for
+     * given configuration.
+     */
+    public void initialize(int slabSize, Hasher keyHasher)
+    {
+        // clear magic first, in case we fail half-way
+        _header.putInt(OFFSET_MAGIC, 0);
+        for (int i = 0; i < _slabCount; ++i) {
+            clearSlab(i);
+        }
+        _header.putInt(OFFSET_VERSION, VERSION);
+        _header.putInt(OFFSET_SLAB_SIZE, slabSize);
+        _header.putInt(OFFSET_SLAB_COUNT, _slabCount);
+        _header.putInt(OFFSET_HASH_CHECK, _hashCheck(keyHasher));
+        _header.putInt(OFFSET_MAGIC, MAGIC);
+    }
+
+    /**
+     * Method for forcing changes to be written to the storage device,
+     * if directory is memory-mapped.
+     */
+    public void flush()
+    {
+        if (_header instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) _header).force();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Slab records
+    /**********************************************************************
+     */
+
+    /**
+     * Method for writing record for given (just frozen) slab.
+     *
+     * @param sequence Sequence number of the slab; must be higher than those
+     *    of slabs frozen earlier
+     */
+    public void writeSlab(int slabIndex, long sequence, ReadOnlySlab slab)
+    {
+        final int rec = _recordOffset(slabIndex);
+        _header.putInt(rec + REC_TYPE, TYPE_NONE);
+        _header.putInt(rec + REC_ENTRY_COUNT, slab.getEntryCount());
+        _header.putInt(rec + REC_TOMBSTONE_COUNT, slab.getTombstoneCount());
+        _header.putLong(rec + REC_SEQUENCE, sequence);
+        _header.putInt(rec + REC_INDEX_START, slab.getIndexStartOffset());
+        _header.putInt(rec + REC_MAX_EXPIRATION, slab.getMaxExpirationTime());
+        _header.putLong(rec + REC_CONTENTS_WEIGHT, slab.getContentsWeight());
+        _header.putInt(rec + REC_COLLISIONS, slab.hasHashCollisions() ? 1 : 0);
+        PerfectHashIndex index = slab.getPerfectHashIndex();
+        if (index == null) {
+            _header.putInt(rec + REC_TYPE, TYPE_SORTED);
+            return;
+        }
+        _header.putInt(rec + REC_RANK_START, index._rankStartOffset);
+        _header.putInt(rec + REC_SLOTS_START, index._slotsStartOffset);
+        _header.putInt(rec + REC_OVERFLOW_START, index._overflowStartOffset);
+        _header.putInt(rec + REC_OVERFLOW_COUNT, index._overflowCount);
+        _header.putInt(rec + REC_INDEX_END, index._endOffset);
+        final int levels = index._levelStarts.length;
+        _header.putInt(rec + REC_LEVEL_COUNT, levels);
+        for (int i = 0; i < levels; ++i) {
+            _header.putInt(rec + REC_LEVEL_STARTS + (i << 2), index._levelStarts[i]);
+            _header.putInt(rec + REC_LEVEL_WORDS + (i << 2), index._levelWords[i]);
+        }
+        _header.putInt(rec + REC_TYPE, TYPE_PERFECT_HASH);
+    }
+
+    /**
+     * Method called before area of given slab is reused (or its contents
+     * are otherwise dropped).
+     */
+    public void clearSlab(int slabIndex) {
+        _header.putInt(_recordOffset(slabIndex) + REC_TYPE, TYPE_NONE);
+    }
+
+    /**
+     * @return Sequence number of slab in given area, if any; -1 if none
+     */
+    public long getSequence(int slabIndex)
+    {
+        final int rec = _recordOffset(slabIndex);
+        if (_header.getInt(rec + REC_TYPE) == TYPE_NONE) {
+            return -1L;
+        }
+        return _header.getLong(rec + REC_SEQUENCE);
+    }
+
+    /**
+     * Method for recreating read-only slab for given slab area, based on
+     * the record of the area.
+     *
+     * @param start Start offset of the slab area, within buffer that contains it
+     * @param end End offset of the slab area
+     *
+     * @return Slab recreated; null if there is no (valid) record for the area
+     */
+    public ReadOnlySlab readSlab(int slabIndex, int start, int end)
+    {
+        final int rec = _recordOffset(slabIndex);
+        final int type = _header.getInt(rec + REC_TYPE);
+        final int count = _header.getInt(rec + REC_ENTRY_COUNT);
+        final int tombstones = _header.getInt(rec + REC_TOMBSTONE_COUNT);
+        final int indexStart = _header.getInt(rec + REC_INDEX_START);
+        final int maxExpiration = _header.getInt(rec + REC_MAX_EXPIRATION);
+        final long weight = _header.getLong(rec + REC_CONTENTS_WEIGHT);
+        final boolean collisions = (_header.getInt(rec + REC_COLLISIONS) != 0);
+        if ((count < 0) || (tombstones < 0) || (tombstones > count) || (indexStart < start) || (indexStart > end)) {
+            return null;
+        }
+        if (type == TYPE_SORTED) {
+            if (indexStart + ReadOnlySlab.calcIndexAreaSize(count) > end) {
+                return null;
+            }
+            return new ReadOnlySlab(slabIndex, start, end, indexStart, count, tombstones, collisions, maxExpiration, weight);
+        }
+        if (type != TYPE_PERFECT_HASH) {
+            return null;
+        }
+        final int levels = _header.getInt(rec + REC_LEVEL_COUNT);
+        final int indexEnd = _header.getInt(rec + REC_INDEX_END);
+        if ((levels < 0) || (levels > PerfectHashIndex.MAX_LEVELS)
+                || (indexEnd < indexStart) || (indexEnd + ReadOnlySlab.calcBloomFilterSize(count) > end)) {
+            return null;
+        }
+        int[] levelStarts = new int[levels];
+        int[] levelWords = new int[levels];
+        for (int i = 0; i < levels; ++i) {
+            levelStarts[i] = _header.getInt(rec + REC_LEVEL_STARTS + (i << 2));
+            levelWords[i] = _header.getInt(rec + REC_LEVEL_WORDS + (i << 2));
+        }
+        // offsets of all index parts must match layout (so they are within index area)
+        PerfectHashIndex index = PerfectHashIndex.fromLayout(indexStart, levelStarts, levelWords,
+                _header.getInt(rec + REC_RANK_START), _header.getInt(rec + REC_SLOTS_START),
+                _header.getInt(rec + REC_OVERFLOW_START), _header.getInt(rec + REC_OVERFLOW_COUNT),
+                indexEnd, count);
+        if (index == null) {
+            return null;
+        }
+        return new ReadOnlySlab(slabIndex, start, end, index, count, tombstones, collisions, maxExpiration, weight);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private final int _recordOffset(int slabIndex) {
+        return HEADER_SIZE + slabIndex * RECORD_SIZE;
+    }
+
+    private final static int _hashCheck(Hasher keyHasher) {
+        return keyHasher.calcHash(CHECK_KEY, 0, CHECK_KEY.length);
+    }
+}
@@ -1,6 +1,9 @@
 package com.fasterxml.cachemate.raw;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Lowest level "raw" storage entity, backed by a slice of a physical
@@ -10,34 +13,902 @@ import java.nio.ByteBuffer;
  * At any given point, only one such instance should ever be active;
  * and once slab fills (or time quota it is used for expires),
  * instance will be converted into a {@link ReadOnlySlab}.
+ *<p>
+ * Slab consists of two areas: entry area at the beginning, where entries
+ * (in format described by {@link EntryReference}) are appended sequentially;
+ * and index area at the end, which is a fixed-size bucketized cuckoo hash
+ * table. Each bucket is 64 bytes (aligned so that it fits in one cache line),
+ * and has 10 slots: 16-bit fingerprints (derived from the key hash) of all
+ * slots first, followed by offsets of the entries relative to the start of
+ * the slab, plus one (so that zero can indicate an empty slot).
+ * Each key may be in one of two buckets: primary one determined by the key hash,
+ * and alternate one by primary bucket and fingerprint; so lookups need to
+ * access at most two cache lines of the index before comparing keys.
+ * Since index does not retain full key hashes (needed for freezing), they
+ * are kept in a separate (heap-allocated) log of committed entries.
+ *<p>
+ * Appends may be done concurrently by multiple threads, without locking:
+ * each appending thread first reserves space for its entry (along with an
+ * index slot) using a single compare-and-set on the reservation state, and
+ * then copies entry contents into its reserved area. Reservations are then
+ * committed in order of reservation: appending thread waits until all
+ * earlier reservations are committed, publishes the end of the entry area
+ * using a volatile write, adds the entry to the index, and finally
+ * marks its reservation committed. Since copying of entry contents is
+ * the only part that takes time, waiting is short.
+ *<p>
+ * Lookups may be done concurrently with appends, without locking.
+ * Readers verify that entries they find through the index are within
+ * published area (re-reading the volatile end offset if not) before
+ * accessing entry data. Since index insertions may need to move existing
+ * entries to their alternate buckets, moves are guarded by a sequence
+ * counter (similar to a seqlock): lookup that misses while entries were
+ * being moved is retried.
+ *<p>
+ * When slab is full, it is converted into a {@link ReadOnlySlab} by
+ * building its (sorted) index in the space between the entry area and
+ * the hash index; space needed for this is reserved when appending entries.
  */
 public class WritableSlab
 {
+    /**
+     * Number of bytes of index space allocated per (nominal) index slot
+     * requested; buckets have more slots than that, to keep cuckoo table
+     * load low enough for insertions to (nearly) always succeed.
+     */
+    protected final static int BYTES_PER_INDEX_SLOT = 8;
+
+    /**
+     * Size of a single bucket of the cuckoo index, in bytes; same as
+     * typical cache line size.
+     */
+    protected final static int BYTES_PER_BUCKET = 64;
+
+    protected final static int SLOTS_PER_BUCKET = 10;
+
+    /**
+     * Offset of the entry offsets within bucket (fingerprints start at 0)
+     */
+    protected final static int BUCKET_OFFSETS_START = 24;
+
+    /**
+     * Maximum length of the path of entries to move to alternate buckets,
+     * when inserting an entry into index with both buckets full
+     */
+    protected final static int MAX_CUCKOO_PATH = 64;
+
+    protected final static byte[] NO_BYTES = new byte[0];
+
+    /**
+     * Maximum fill ratio for index, as percentage of slots: past this point
+     * slab is considered full.
+     */
+    protected final static int MAX_INDEX_FILL_PERCENT = 75;
+
+    /*
+    /**********************************************************************
+    /* Configuration
+    /**********************************************************************
+     */
+
+    /**
+     * Identifier of the slab area this slab uses, assigned by the owning
+     * cache element; used for locating the buffer that contains the slab,
+     * when cache element uses multiple buffers.
+     */
+    protected final int _slabId;
+
+    /**
+     * Absolute offset within shared {@link ByteBuffer} where this slab starts.
+     * This is also where the entry area starts.
+     */
+    protected final int _slabStartOffset;
+
+    /**
+     * Absolute offset within shared {@link ByteBuffer} that points to the
+     * offset right after last byte that is part of this slab (exclusive end).
+     */
+    protected final int _slabEndOffset;
+
+    /**
+     * Absolute offset within shared {@link ByteBuffer} where the index area
+     * starts; also the maximum end offset of the entry area.
+     */
+    protected final int _indexStartOffset;
+
+    /**
+     * Number of buckets in the index, minus one; number of buckets
+     * is always a power of two
+     */
+    protected final int _bucketMask;
+
+    /**
+     * Maximum number of entries slab may contain, based on index size
+     */
+    protected final int _maxEntries;
+
+    /*
+    /**********************************************************************
+    /* State
+    /**********************************************************************
+     */
+
+    /**
+     * Reservation state: number of entries reserved (in upper 32 bits)
+     * and absolute offset at which next entry is to be appended (lower 32 bits).
+     * Sign bit is set when slab is closed, and no more reservations may be made.
+     */
+    protected final AtomicLong _reservation;
+
+    /**
+     * Absolute end offset of the part of entry area that is visible to
+     * readers: written after entry contents, but before index changes.
+     */
+    protected volatile int _publishedEnd;
+
+    /**
+     * Absolute end offset of the part of entry area for which all
+     * reservations have been committed (entries added to the index).
+     */
+    protected volatile int _committedEnd;
+
+    /**
+     * Number of index entries (distinct keys); only modified by the committing thread.
+     */
+    protected volatile int _entryCount;
+
+    /**
+     * Log of committed entries, in commit order: key hash in upper 32 bits,
+     * absolute entry offset in lower 32 bits. Needed for freezing, since index
+     * only contains fingerprints; only modified by the committing thread.
+     */
+    protected final long[] _commitLog;
+
+    protected int _commitCount;
+
+    /**
+     * Counter used for choosing entries to move when inserting into the index;
+     * only modified by the committing thread.
+     */
+    protected int _kickCounter;
+
+    /**
+     * Counter of index entry moves: incremented before and after moving
+     * entries (so it is odd while moves are in progress); only modified
+     * by the committing thread.
+     */
+    protected final AtomicInteger _moveCount = new AtomicInteger();
+
+    /**
+     * Highest expiration timestamp of entries in this slab; only modified
+     * by the committing thread.
+     */
+    protected int _maxExpirationTime;
+
+    /**
+     * Combined length of keys and values appended (including ones that
+     * have since been replaced); only modified by the committing thread.
+     */
+    protected long _contentsWeight;
+
+    /**
+     * Highest expiration timestamp of entries in older slabs that tombstones
+     * of this slab may shadow; set before slab is used.
+     */
+    protected int _olderMaxExpirationTime;
+
+    /**
+     * Read-only slab this slab was frozen as, if any; needed to know
+     * whether buffer area of this slab has been recycled.
+     */
+    protected volatile ReadOnlySlab _frozen;
+
     /*
     /**********************************************************************
     /* Construction
     /**********************************************************************
      */
 
-    public WritableSlab()
+    /**
+     * @param bbuf Shared buffer that contains the slab; needed for clearing
+     *   index area
+     * @param indexSlots Number of slots index should have; will be rounded up
+     *   to the next power of two
+     */
+    public WritableSlab(ByteBuffer bbuf, int slabStart, int slabEnd, int indexSlots)
     {
+        this(bbuf, 0, slabStart, slabEnd, indexSlots);
     }
-    
+
+    /**
+     * @param slabId Identifier of the slab area, retained by read-only slab
+     *   this slab is frozen as
+     *
+     * @since 0.5.1
+     */
+    public WritableSlab(ByteBuffer bbuf, int slabId, int slabStart, int slabEnd, int indexSlots)
+    {
+        int slots = 16;
+        while (slots < indexSlots) {
+            slots += slots;
+        }
+        final int buckets = (slots * BYTES_PER_INDEX_SLOT) / BYTES_PER_BUCKET;
+        final int indexEnd = slabEnd & ~(BYTES_PER_BUCKET-1);
+        final int indexStart = indexEnd - (buckets * BYTES_PER_BUCKET);
+        if (indexStart <= slabStart) {
+            throw new IllegalArgumentException("Slab size ("+(slabEnd-slabStart)+") too small for index with "
+                    +slots+" slots");
+        }
+        _slabId = slabId;
+        _slabStartOffset = slabStart;
+        _slabEndOffset = slabEnd;
+        _indexStartOffset = indexStart;
+        _bucketMask = buckets - 1;
+        _maxEntries = (int) ((slots * (long) MAX_INDEX_FILL_PERCENT) / 100);
+        _commitLog = new long[_maxEntries];
+        _reservation = new AtomicLong(slabStart);
+        _publishedEnd = slabStart;
+        _committedEnd = slabStart;
+        // need to clear the index, since buffer area may be reused
+        for (int offset = indexStart; offset < indexEnd; offset += 8) {
+            bbuf.putLong(offset, 0L);
+        }
+    }
+
     /*
     /**********************************************************************
-    /* Public API
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public int getSlabId() { return _slabId; }
+    public int getSlabStartOffset() { return _slabStartOffset; }
+    public int getSlabEndOffset() { return _slabEndOffset; }
+    public int getEntryCount() { return _entryCount; }
+    public int getMaxExpirationTime() { return _maxExpirationTime; }
+    public long getContentsWeight() { return _contentsWeight; }
+
+    /**
+     * Method for setting highest expiration timestamp of entries in older
+     * slabs, which tombstones appended need to shadow. Must be called before
+     * slab is made accessible to other threads.
+     *
+     * @since 0.5.1
+     */
+    public void setOlderMaxExpirationTime(int timestamp) {
+        _olderMaxExpirationTime = timestamp;
+    }
+
+    /**
+     * Method for checking whether buffer area of this slab has been recycled
+     * (which is only possible after slab has been frozen).
+     */
+    public boolean isRecycled() {
+        ReadOnlySlab frozen = _frozen;
+        return (frozen != null) && frozen.isRecycled();
+    }
+
+    /**
+     * Accessor for number of bytes used by entries appended (and committed) so far
+     */
+    public int getEntryAreaSize() { return _committedEnd - _slabStartOffset; }
+
+    /**
+     * Accessor for the maximum length of an entry that can be appended in
+     * an empty slab of this size.
+     */
+    public int getMaxEntryLength() {
+        return _indexStartOffset - _slabStartOffset - 7 - ReadOnlySlab.calcIndexAreaSize(1);
+    }
+
+    /**
+     * Method for calculating length of the serialized entry with given key and value.
+     */
+    public static int calcEntryLength(byte[] key, byte[] value) {
+        return 4 + vIntLength(key.length) + key.length + vIntLength(value.length) + value.length;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, find
     /**********************************************************************
      */
 
     /**
      * @param key Primary key of the entry to find
      * @param keyHash Full hash code of the entry
-     * 
+     *
      * @return Entry with specified primary key, if any contained; null if not
      */
     public EntryReference findEntry(ByteBuffer bbuf, byte[] key, int keyHash)
     {
-        // !!! TODO
-        return null;
+        int offset = findEntryOffset(bbuf, key, keyHash);
+        return (offset < 0) ? null : new EntryReference(bbuf, offset, _slabEndOffset);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, append
+    /**********************************************************************
+     */
+
+    /**
+     * Method for appending given entry in this slab, if there is room; if there is
+     * an existing entry with the same key, it will be replaced (in the sense that
+     * lookups will find the new entry).
+     * May be called concurrently by multiple threads; if so, entries are
+     * added in order in which space was reserved for them.
+     *
+     * @param expirationTime Expiration timestamp for the entry
+     *
+     * @return Absolute offset of the appended entry, if there was room;
+     *    -1 if not (or if slab has been closed, or entry could not be
+     *    added to the index, in which case slab is closed)
+     */
+    public int appendEntry(ByteBuffer bbuf, byte[] key, int keyHash, byte[] value,
+            int expirationTime)
+    {
+        return _append(bbuf, key, keyHash, value, expirationTime, expirationTime);
+    }
+
+    /**
+     * Method for appending a tombstone for given key in this slab, if there is room:
+     * tombstone replaces existing entry with the same key (if any), and
+     * shadows entries with the same key in older slabs.
+     * Since tombstone is needed as long as any entry it may shadow is valid,
+     * its expiration time is determined when it is committed: it is the highest
+     * expiration time of entries committed before it, in this slab and in older
+     * slabs (see {@link #setOlderMaxExpirationTime}), or given minimum, if higher.
+     *
+     * @param expirationTime Minimum timestamp until which tombstone is needed
+     *
+     * @return Absolute offset of the appended tombstone, if there was room;
+     *    -1 if not
+     *
+     * @since 0.5.1
+     */
+    public int appendTombstone(ByteBuffer bbuf, byte[] key, int keyHash, int expirationTime)
+    {
+        return _append(bbuf, key, keyHash, NO_BYTES, EntryReference.TOMBSTONE_FLAG, expirationTime);
+    }
+
+    /**
+     * @param timestamp Timestamp to write for the entry; for tombstones, just the
+     *    tombstone flag, since expiration time is added when committing
+     */
+    protected final int _append(ByteBuffer bbuf, byte[] key, int keyHash, byte[] value,
+            int timestamp, int expirationTime)
+    {
+        final int length = calcEntryLength(key, value);
+        final int start = _reserve(length);
+        if (start < 0) {
+            return -1;
+        }
+        final int end = start + length;
+        boolean added = false;
+        try {
+            // First: entry contents, which can be copied without coordination
+            int offset = start;
+            bbuf.putInt(offset, timestamp);
+            // note: only absolute writes, since buffer is shared by concurrent appenders
+            offset = _putBytes(bbuf, _putVInt(bbuf, offset+4, key.length), key);
+            _putBytes(bbuf, _putVInt(bbuf, offset, value.length), value);
+
+            // but then must wait for earlier reservations to complete
+            _awaitCommitted(start);
+            // tombstones need to shadow entries committed so far
+            if (timestamp < 0) {
+                expirationTime = Math.max(expirationTime, Math.max(_maxExpirationTime, _olderMaxExpirationTime));
+                bbuf.putInt(start, timestamp | expirationTime);
+            }
+            // then make visible to readers
+            _publishedEnd = end;
+            // and only then add to index
+            if (_addToIndex(bbuf, key, keyHash, start)) {
+                _commitLog[_commitCount++] = (((long) keyHash) << 32) | start;
+                _contentsWeight += key.length + value.length;
+                if (expirationTime > _maxExpirationTime) {
+                    _maxExpirationTime = expirationTime;
+                }
+                added = true;
+            }
+        } finally {
+            /* If index is too full (or append failed), entry is left unindexed,
+             * and no more appends are allowed. Either way, must let the next
+             * appender proceed: otherwise it would wait forever. Unindexed
+             * entries (even partially written ones) are never seen by readers.
+             */
+            if (!added) {
+                _closeReservations();
+                _awaitCommitted(start);
+            }
+            _committedEnd = end;
+        }
+        return added ? start : -1;
+    }
+
+    /**
+     * Helper method for waiting until all entries before given offset have
+     * been committed.
+     */
+    private final void _awaitCommitted(int offset)
+    {
+        while (_committedEnd != offset) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Method for preventing further appends to this slab; will also wait
+     * until all appends for which space was already reserved have completed.
+     *
+     * @return Absolute end offset of the entry area
+     */
+    public int close()
+    {
+        final int end = _closeReservations();
+        while (_committedEnd != end) {
+            Thread.yield();
+        }
+        return end;
+    }
+
+    /**
+     * Method for discarding contents of this slab, instead of freezing it:
+     * slab is closed, and an empty {@link ReadOnlySlab} is created to
+     * represent its buffer area (so that it can be recycled like other
+     * read-only slabs).
+     *
+     * @since 0.5.1
+     */
+    public ReadOnlySlab discard()
+    {
+        close();
+        ReadOnlySlab empty = new ReadOnlySlab(_slabId, _slabStartOffset, _slabEndOffset,
+                _slabStartOffset, 0, 0, false, 0, 0L);
+        _frozen = empty;
+        return empty;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, freezing
+    /**********************************************************************
+     */
+
+    /**
+     * Method for converting contents of this slab into a {@link ReadOnlySlab},
+     * by building index of entries sorted by hash code (followed by a hash
+     * prefix directory, and a Bloom filter over hash codes).
+     * Index is built in the area between entries and hash index, so that
+     * this slab may still be read while freezing occurs; but no more
+     * entries may be appended (slab is closed first, if not yet closed).
+     */
+    public ReadOnlySlab freeze(ByteBuffer bbuf) {
+        return freeze(bbuf, false);
+    }
+
+    /**
+     * Method for converting contents of this slab into a {@link ReadOnlySlab},
+     * optionally using a {@link PerfectHashIndex} instead of sorted hashes.
+     * If perfect hash index does not fit in the space reserved for the index
+     * (which is rare, and only possible for slabs with very few entries),
+     * sorted index is used instead.
+     *
+     * @since 0.5.1
+     */
+    public ReadOnlySlab freeze(ByteBuffer bbuf, boolean perfectHash) {
+        return freeze(bbuf, perfectHash, 0);
+    }
+
+    /**
+     * Method for converting contents of this slab into a {@link ReadOnlySlab},
+     * optionally using a {@link PerfectHashIndex} instead of sorted hashes,
+     * and dropping tombstones that are no longer needed.
+     *
+     * @param tombstoneCutoff Tombstones with expiration time lower than
+     *   this timestamp are not included in the index of the frozen slab;
+     *   <code>Integer.MAX_VALUE</code> to drop all tombstones (when there
+     *   are no older slabs they could shadow entries of)
+     *
+     * @since 0.5.1
+     */
+    public ReadOnlySlab freeze(ByteBuffer bbuf, boolean perfectHash, int tombstoneCutoff)
+    {
+        final int entryEnd = close();
+        // First, gather live (not replaced) entries, sort by hash (and offset, for stable ordering)
+        long[] entries = new long[_entryCount];
+        int i = 0;
+        int tombstones = 0;
+        for (int ix = 0; ix < _commitCount; ++ix) {
+            final long l = _commitLog[ix];
+            if (_isIndexed(bbuf, (int) (l >> 32), (int) l)) {
+                final int timestamp = bbuf.getInt((int) l);
+                if (timestamp >= 0) {
+                    entries[i++] = l;
+                } else if ((timestamp & ~EntryReference.TOMBSTONE_FLAG) >= tombstoneCutoff) {
+                    entries[i++] = l;
+                    ++tombstones;
+                }
+            }
+        }
+        final int count = i;
+        if (count < entries.length) {
+            entries = Arrays.copyOf(entries, count);
+        }
+        Arrays.sort(entries);
+        boolean collisions = false;
+        for (i = 1; i < count; ++i) {
+            if ((entries[i] >> 32) == (entries[i-1] >> 32)) {
+                collisions = true;
+                break;
+            }
+        }
+        final int indexStart = (entryEnd + 7) & ~7;
+        ReadOnlySlab frozen = null;
+
+        if (perfectHash) {
+            PerfectHashIndex index = PerfectHashIndex.build(bbuf, indexStart,
+                    _indexStartOffset - ReadOnlySlab.calcBloomFilterSize(count), entries);
+            if (index != null) {
+                ReadOnlySlab.writeBloomFilter(bbuf, index.getEndOffset(), entries);
+                frozen = new ReadOnlySlab(_slabId, _slabStartOffset, _slabEndOffset, index, count,
+                        tombstones, collisions, _maxExpirationTime, _contentsWeight);
+            }
+        }
+        if (frozen == null) {
+            // write index: first hashes, then entry offsets
+            for (i = 0; i < count; ++i) {
+                long l = entries[i];
+                bbuf.putInt(indexStart + (i << 2), (int) (l >> 32));
+                bbuf.putInt(indexStart + ((count + i) << 2), (int) l);
+            }
+            ReadOnlySlab.writeDirectory(bbuf, indexStart, count);
+            ReadOnlySlab.writeBloomFilter(bbuf, indexStart + (count << 3) + ReadOnlySlab.calcDirectorySize(count),
+                    entries);
+            frozen = new ReadOnlySlab(_slabId, _slabStartOffset, _slabEndOffset, indexStart, count,
+                    tombstones, collisions, _maxExpirationTime, _contentsWeight);
+        }
+        _frozen = frozen;
+        return frozen;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, reservation
+    /**********************************************************************
+     */
+
+    /**
+     * Method for reserving space for an entry of given length (as well as
+     * for its index entry).
+     *
+     * @return Absolute offset of the reserved area, if there was room; -1 if not
+     */
+    protected final int _reserve(int length)
+    {
+        while (true) {
+            final long state = _reservation.get();
+            if (state < 0L) { // closed
+                return -1;
+            }
+            final int count = (int) (state >>> 32);
+            final int start = (int) state;
+            final int end = start + length;
+            // need to leave room for index of the frozen slab too (plus alignment padding)
+            if ((end < 0) || (count >= _maxEntries)
+                    || ((end + 7 + ReadOnlySlab.calcIndexAreaSize(count+1)) > _indexStartOffset)) {
+                return -1;
+            }
+            if (_reservation.compareAndSet(state, (((long) (count+1)) << 32) | end)) {
+                return start;
+            }
+        }
+    }
+
+    /**
+     * Method for preventing further reservations, without waiting for
+     * reserved appends to complete.
+     *
+     * @return Absolute end offset of the reserved entry area
+     */
+    protected final int _closeReservations()
+    {
+        long state;
+        do {
+            state = _reservation.get();
+        } while ((state >= 0L) && !_reservation.compareAndSet(state, state | Long.MIN_VALUE));
+        return (int) state;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, index access
+    /**********************************************************************
+     */
+
+    /**
+     * Method for finding entry with given key, without constructing
+     * any objects.
+     *
+     * @return Absolute offset of the entry with given key, if one found; -1 if not
+     *
+     * @since 0.5.1
+     */
+    public final int findEntryOffset(ByteBuffer bbuf, byte[] key, int keyHash)
+    {
+        final int fp = _fingerprint(keyHash);
+        final int bucket = keyHash & _bucketMask;
+        final int alt = _altBucket(bucket, fp);
+        while (true) {
+            final int moves = _moveCount.get();
+            int offset = _findInBucket(bbuf, bucket, fp, key);
+            if ((offset < 0) && (alt != bucket)) {
+                offset = _findInBucket(bbuf, alt, fp, key);
+            }
+            // miss is only reliable if no entries were moved during lookup
+            if ((offset >= 0) || (((moves & 1) == 0) && (moves == _moveCount.get()))) {
+                return offset;
+            }
+            Thread.yield();
+        }
+    }
+
+    private final int _findInBucket(ByteBuffer bbuf, int bucket, int fp, byte[] key)
+    {
+        int published = _publishedEnd;
+        final int bucketStart = _indexStartOffset + (bucket * BYTES_PER_BUCKET);
+        final short fpValue = (short) fp;
+        for (int i = 0; i < SLOTS_PER_BUCKET; ++i) {
+            if (bbuf.getShort(bucketStart + (i << 1)) != fpValue) {
+                continue;
+            }
+            final int relOffset = bbuf.getInt(bucketStart + BUCKET_OFFSETS_START + (i << 2));
+            if (relOffset == 0) {
+                continue;
+            }
+            int entryOffset = _slabStartOffset + relOffset - 1;
+            // entry appended after we read end offset? Need to re-read, to see entry contents
+            if (entryOffset >= published) {
+                published = _publishedEnd;
+            }
+            if ((entryOffset < published) && EntryReference.hasKeyAt(bbuf, entryOffset, key)) {
+                return entryOffset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Method called by the committing thread to add given entry in the index.
+     * If both buckets for the key are full, entries on a path of alternate
+     * buckets are moved to make room, last one first: so each moved entry is
+     * copied to its new slot before its old one is overwritten. Concurrent
+     * readers may still miss an entry being moved, but they will notice
+     * the change of move counter, and retry.
+     *
+     * @return True if entry was added; false if index is too full
+     */
+    protected final boolean _addToIndex(ByteBuffer bbuf, byte[] key, int keyHash, int entryOffset)
+    {
+        final int fp = _fingerprint(keyHash);
+        final int bucket = keyHash & _bucketMask;
+        final int alt = _altBucket(bucket, fp);
+        final int relOffset = entryOffset - _slabStartOffset + 1;
+
+        // existing key? If so, just point to the new entry
+        int slot = _findSlot(bbuf, bucket, fp, key);
+        if ((slot < 0) && (alt != bucket)) {
+            slot = _findSlot(bbuf, alt, fp, key);
+        }
+        if (slot >= 0) {
+            bbuf.putInt(_slotEntryOffset(slot), relOffset);
+            return true;
+        }
+        slot = _findEmptySlot(bbuf, bucket);
+        if (slot < 0) {
+            slot = _findEmptySlot(bbuf, alt);
+            if (slot < 0) {
+                slot = _makeRoom(bbuf, ((++_kickCounter & 1) == 0) ? bucket : alt);
+                if (slot < 0) {
+                    return false;
+                }
+            }
+        }
+        _putSlot(bbuf, slot, fp, relOffset);
+        ++_entryCount;
+        return true;
+    }
+
+    /**
+     * Method for finding a path of entries to move, starting from given
+     * (full) bucket, that ends in a bucket with an empty slot; and moving
+     * entries along the path.
+     *
+     * @return Slot freed in the starting bucket, if path was found; -1 if not
+     */
+    private final int _makeRoom(ByteBuffer bbuf, int bucket)
+    {
+        int[] path = new int[MAX_CUCKOO_PATH];
+        for (int depth = 0; depth < MAX_CUCKOO_PATH; ++depth) {
+            // choose an entry to move, but never one already on the path
+            int slot = -1;
+            for (int i = 0, first = (++_kickCounter & 0x7FFFFFFF) % SLOTS_PER_BUCKET;
+                    (slot < 0) && (i < SLOTS_PER_BUCKET); ++i) {
+                int candidate = (bucket << 4) | ((first + i) % SLOTS_PER_BUCKET);
+                if (!_contains(path, depth, candidate)) {
+                    slot = candidate;
+                }
+            }
+            if (slot < 0) {
+                return -1;
+            }
+            path[depth] = slot;
+            bucket = _altBucket(bucket, bbuf.getShort(_slotFingerprintOffset(slot)) & 0xFFFF);
+            int empty = _findEmptySlot(bbuf, bucket);
+            if (empty >= 0) {
+                _moveCount.incrementAndGet();
+                try {
+                    for (int i = depth; i >= 0; --i) {
+                        final int from = path[i];
+                        _putSlot(bbuf, empty, bbuf.getShort(_slotFingerprintOffset(from)) & 0xFFFF,
+                                bbuf.getInt(_slotEntryOffset(from)));
+                        empty = from;
+                    }
+                } finally { // must never leave readers spinning
+                    _moveCount.incrementAndGet();
+                }
+                return empty;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Method for finding slot that contains given key, if any; only to be
+     * called by the committing thread.
+     */
+    private final int _findSlot(ByteBuffer bbuf, int bucket, int fp, byte[] key)
+    {
+        final short fpValue = (short) fp;
+        for (int i = 0; i < SLOTS_PER_BUCKET; ++i) {
+            final int slot = (bucket << 4) | i;
+            if (bbuf.getShort(_slotFingerprintOffset(slot)) == fpValue) {
+                final int relOffset = bbuf.getInt(_slotEntryOffset(slot));
+                if ((relOffset != 0)
+                        && EntryReference.hasKeyAt(bbuf, _slabStartOffset + relOffset - 1, key)) {
+                    return slot;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private final int _findEmptySlot(ByteBuffer bbuf, int bucket)
+    {
+        for (int i = 0; i < SLOTS_PER_BUCKET; ++i) {
+            final int slot = (bucket << 4) | i;
+            if (bbuf.getShort(_slotFingerprintOffset(slot)) == 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Method for checking whether given entry (from the commit log) is still
+     * indexed; that is, has not been replaced by a later entry with same key.
+     */
+    private final boolean _isIndexed(ByteBuffer bbuf, int keyHash, int entryOffset)
+    {
+        final int fp = _fingerprint(keyHash);
+        final int relOffset = entryOffset - _slabStartOffset + 1;
+        int bucket = keyHash & _bucketMask;
+        for (int round = 0; round < 2; ++round) {
+            for (int i = 0; i < SLOTS_PER_BUCKET; ++i) {
+                final int slot = (bucket << 4) | i;
+                if ((bbuf.getShort(_slotFingerprintOffset(slot)) == (short) fp)
+                        && (bbuf.getInt(_slotEntryOffset(slot)) == relOffset)) {
+                    return true;
+                }
+            }
+            bucket = _altBucket(bucket, fp);
+        }
+        return false;
+    }
+
+    private final void _putSlot(ByteBuffer bbuf, int slot, int fp, int relOffset)
+    {
+        // offset first, fingerprint last, as it marks slot used
+        bbuf.putInt(_slotEntryOffset(slot), relOffset);
+        bbuf.putShort(_slotFingerprintOffset(slot), (short) fp);
+    }
+
+    private final static boolean _contains(int[] slots, int count, int slot)
+    {
+        for (int i = 0; i < count; ++i) {
+            if (slots[i] == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, index layout
+    /**********************************************************************
+     */
+
+    /**
+     * Slots are identified by bucket index (shifted left by 4) and
+     * index within bucket (in lowest 4 bits)
+     */
+    private final int _slotFingerprintOffset(int slot) {
+        return _indexStartOffset + ((slot >> 4) * BYTES_PER_BUCKET) + ((slot & 0xF) << 1);
+    }
+
+    private final int _slotEntryOffset(int slot) {
+        return _indexStartOffset + ((slot >> 4) * BYTES_PER_BUCKET) + BUCKET_OFFSETS_START + ((slot & 0xF) << 2);
+    }
+
+    /**
+     * Fingerprint is taken from the upper 16 bits of the hash (primary
+     * bucket being determined by lower bits); zero is reserved for
+     * empty slots.
+     */
+    protected final static int _fingerprint(int keyHash) {
+        int fp = keyHash >>> 16;
+        return (fp == 0) ? 1 : fp;
+    }
+
+    /**
+     * Alternate bucket only depends on the other bucket and fingerprint,
+     * so that entries can be moved without knowing the full hash.
+     */
+    protected final int _altBucket(int bucket, int fp) {
+        return (bucket ^ (fp * 0x5BD1E995)) & _bucketMask;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, entry access
+    /**********************************************************************
+     */
+
+    private final static int _putVInt(ByteBuffer bbuf, int offset, int value)
+    {
+        // 7 bits per byte, most significant first; all but last byte have high bit set
+        for (int shift = (vIntLength(value) - 1) * 7; shift > 0; shift -= 7) {
+            bbuf.put(offset++, (byte) (0x80 | ((value >>> shift) & 0x7F)));
+        }
+        bbuf.put(offset++, (byte) (value & 0x7F));
+        return offset;
+    }
+
+    /**
+     * Method for copying given bytes using absolute writes: bulk copy would
+     * need a private view (to change position), and entries are usually
+     * short enough for byte-by-byte copying to be cheaper than allocating
+     * a view for every append.
+     */
+    private final static int _putBytes(ByteBuffer bbuf, int offset, byte[] data)
+    {
+        for (int i = 0, len = data.length; i < len; ++i) {
+            bbuf.put(offset++, data[i]);
+        }
+        return offset;
+    }
+
+    protected final static int vIntLength(int value)
+    {
+        if (value < 0) {
+            return 5;
+        }
+        int len = 1;
+        while ((value >>>= 7) != 0) {
+            ++len;
+        }
+        return len;
     }
 }
@@ -0,0 +1,188 @@
+package com.fasterxml.cachemate.util;
+
+import java.util.Arrays;
+
+/**
+ * Compact probabilistic data structure for estimating how often given
+ * keys (as represented by their hash codes) have been accessed
+ * recently. Implemented as a Count-Min sketch with four 4-bit counters
+ * per key, packed 16 to a <code>long</code>; estimation is the minimum
+ * of the four counters.
+ *<p>
+ * To keep estimations focused on recent history, all counters are halved
+ * ("aged") once number of increments reaches sample size, which is
+ * 10 times the number of counter groups.
+ *<p>
+ * Instances are not thread-safe; caller must synchronize access.
+ */
+public final class FrequencySketch
+{
+    /**
+     * Maximum value for 4-bit counters
+     */
+    private final static int MAX_COUNT = 15;
+
+    /**
+     * Seeds used for calculating table indexes for the 4 counters of a key
+     */
+    private final static long[] SEEDS = new long[] {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final static long RESET_MASK = 0x7777777777777777L;
+
+    private final static long ONE_MASK = 0x1111111111111111L;
+
+    /**
+     * Counters, each long containing 16 4-bit counters
+     */
+    private long[] _table;
+
+    private int _tableMask;
+
+    /**
+     * Number of increments after which counters are aged
+     */
+    private int _sampleSize;
+
+    /**
+     * Number of increments since last aging
+     */
+    private int _additions;
+
+    /*
+    /**********************************************************************
+    /* Life-cycle
+    /**********************************************************************
+     */
+
+    /**
+     * @param maxEntries Maximum number of entries in the cache that sketch is
+     *    used with; used for sizing the sketch
+     */
+    public FrequencySketch(int maxEntries)
+    {
+        ensureCapacity(maxEntries);
+    }
+
+    /**
+     * Method for ensuring that sketch is big enough for tracking given number
+     * of entries with reasonable accuracy. If sketch needs to be grown, all
+     * accumulated frequency information is lost.
+     */
+    public void ensureCapacity(int maxEntries)
+    {
+        int size = 16;
+        while (size < maxEntries && size < (1 << 30)) {
+            size += size;
+        }
+        if (_table == null || _table.length < size) {
+            _table = new long[size];
+            _tableMask = size - 1;
+            _sampleSize = (size >= (Integer.MAX_VALUE / 10)) ? Integer.MAX_VALUE : (10 * size);
+            _additions = 0;
+        }
+    }
+
+    /**
+     * Method for clearing all frequency information.
+     */
+    public void clear()
+    {
+        Arrays.fill(_table, 0L);
+        _additions = 0;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method for getting estimated frequency of key with given hash code;
+     * value between 0 and 15.
+     */
+    public int frequency(int keyHash)
+    {
+        final int hash = _spread(keyHash);
+        final int start = (hash & 3) << 2;
+        int min = MAX_COUNT;
+        for (int i = 0; i < 4; ++i) {
+            int index = _indexOf(hash, i);
+            int count = (int) ((_table[index] >>> ((start + i) << 2)) & 0xFL);
+            if (count < min) {
+                min = count;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Method for incrementing estimated frequency of key with given hash code,
+     * unless it is already at maximum value.
+     */
+    public void increment(int keyHash)
+    {
+        final int hash = _spread(keyHash);
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; ++i) {
+            added |= _incrementAt(_indexOf(hash, i), start + i);
+        }
+        if (added && (++_additions >= _sampleSize)) {
+            _reset();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private boolean _incrementAt(int index, int counter)
+    {
+        final int offset = counter << 2;
+        final long mask = (0xFL << offset);
+        if ((_table[index] & mask) != mask) {
+            _table[index] += (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Method that halves all counters; also accounts for truncation of odd counts
+     * when updating number of additions.
+     */
+    private void _reset()
+    {
+        int oddCount = 0;
+        final long[] table = _table;
+        for (int i = 0, end = table.length; i < end; ++i) {
+            oddCount += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        _additions = (_additions - (oddCount >>> 2)) >>> 1;
+    }
+
+    private int _indexOf(int hash, int i)
+    {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += (h >>> 32);
+        return ((int) h) & _tableMask;
+    }
+
+    /**
+     * Additional scrambling of key hash codes, since they may have poor
+     * distribution (sequential values, for example)
+     */
+    private static int _spread(int h)
+    {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
@@ -0,0 +1,84 @@
+package com.fasterxml.cachemate.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that may be incremented by multiple threads concurrently with
+ * little contention: count is split into a set of cells (chosen based on
+ * calling thread), each on its own cache line, and cells are only
+ * summed up when value is read.
+ * Reads are not atomic snapshots with respect to concurrent increments,
+ * which is fine for statistics.
+ */
+public final class StripedCounter
+{
+    /**
+     * Number of longs between adjacent cells; 8 longs is 64 bytes, which
+     * is the most common cache line size.
+     */
+    private final static int CELL_SPACING = 8;
+
+    private final AtomicLongArray _cells;
+
+    private final int _cellMask;
+
+    public StripedCounter()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedCounter(int concurrency)
+    {
+        int count = 1;
+        while (count < concurrency && count < 256) {
+            count += count;
+        }
+        _cellMask = count - 1;
+        _cells = new AtomicLongArray(count * CELL_SPACING);
+    }
+
+    public void increment() {
+        _cells.getAndIncrement(_cellIndex());
+    }
+
+    public void add(long amount) {
+        _cells.getAndAdd(_cellIndex(), amount);
+    }
+
+    /**
+     * Method for calculating the current value; sum of all cells
+     */
+    public long get()
+    {
+        long total = 0L;
+        for (int i = 0, end = _cells.length(); i < end; i += CELL_SPACING) {
+            total += _cells.get(i);
+        }
+        return total;
+    }
+
+    public void reset()
+    {
+        for (int i = 0, end = _cells.length(); i < end; i += CELL_SPACING) {
+            _cells.set(i, 0L);
+        }
+    }
+
+    /**
+     * Method for multiplying value of the counter by given ratio (usually between
+     * 0.0 and 1.0); increments made concurrently may be lost.
+     */
+    public void decay(double ratio)
+    {
+        for (int i = 0, end = _cells.length(); i < end; i += CELL_SPACING) {
+            _cells.set(i, (long) (_cells.get(i) * ratio));
+        }
+    }
+
+    private int _cellIndex()
+    {
+        // scramble thread id, to spread sequential ids
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return ((h >>> 16) & _cellMask) * CELL_SPACING;
+    }
+}
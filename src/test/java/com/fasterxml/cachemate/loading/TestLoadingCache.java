@@ -0,0 +1,308 @@
+package com.fasterxml.cachemate.loading;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.cachemate.converters.StringKeyConverter;
+import com.fasterxml.cachemate.pojo.StripedPOJOCacheElement;
+
+public class TestLoadingCache extends TestCase
+{
+    /**
+     * Loader that counts calls, optionally blocks until released, and
+     * fails for keys that start with "fail".
+     */
+    static class TestLoader extends CacheLoader<String,String>
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release;
+
+        public TestLoader(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public String load(String key) throws Exception
+        {
+            calls.incrementAndGet();
+            if (release != null) {
+                release.await();
+            }
+            if (key.startsWith("fail")) {
+                throw new IllegalStateException("Failed to load '"+key+"'");
+            }
+            return key.toUpperCase();
+        }
+
+        @Override
+        public int weightOf(String key, String value) {
+            return key.length() + value.length();
+        }
+    }
+
+    /**
+     * Time source for logical time, used by tests
+     */
+    static class LogicalTime extends TimeSource
+    {
+        final AtomicLong now;
+
+        public LogicalTime(long time) {
+            now = new AtomicLong(time);
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now.get();
+        }
+    }
+
+    /**
+     * Executor that just collects tasks, to run them explicitly
+     */
+    static class CollectingExecutor implements Executor
+    {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable r) {
+            tasks.add(r);
+        }
+    }
+
+    private LoadingCache<String,String> _cache(long failureTTL, TimeSource timeSource) {
+        return new LoadingCache<String,String>(new StripedPOJOCacheElement<String,String>(StringKeyConverter.instance,
+                100, 64 * 1024, 4), StringKeyConverter.instance, failureTTL, timeSource);
+    }
+
+    public void testSimpleLoad() throws Exception
+    {
+        final long time = 3000L;
+        LogicalTime clock = new LogicalTime(time);
+        LoadingCache<String,String> cache = _cache(0L, clock);
+        TestLoader loader = new TestLoader(null);
+        assertEquals("ABC", cache.getOrLoad(time, "abc", loader));
+        assertEquals(1, loader.calls.get());
+        assertEquals(1, cache.getCacheElement().size());
+        assertEquals(6L, cache.getCacheElement().contentsWeight());
+        // second call is served from cache
+        assertEquals("ABC", cache.getOrLoad(time, "abc", loader));
+        assertEquals(1, loader.calls.get());
+        // until entry expires
+        clock.now.set(time + 5000L);
+        assertEquals("ABC", cache.getOrLoad(time + 5000L, "abc", loader));
+        assertEquals(2, loader.calls.get());
+        assertEquals(0, cache.getLoadsInFlight());
+    }
+
+    /**
+     * Test to verify that loaded entries are inserted using time at which
+     * load completed, not time of the lookup that started it.
+     */
+    public void testSlowLoad() throws Exception
+    {
+        final long time = 3000L;
+        final LogicalTime clock = new LogicalTime(time);
+        LoadingCache<String,String> cache = _cache(1000L, clock);
+        TestLoader loader = new TestLoader(null) {
+            @Override
+            public String load(String key) throws Exception {
+                // takes 3 seconds to load
+                clock.now.addAndGet(3000L);
+                return super.load(key);
+            }
+        };
+        assertEquals("ABC", cache.getOrLoad(time, "abc", loader));
+        // with 4 second TTL, would have expired if inserted at time of lookup
+        assertEquals("ABC", cache.getOrLoad(time + 5000L, "abc", loader));
+        assertEquals(1, loader.calls.get());
+
+        // and similarly, failures are cached from time of completion
+        try {
+            cache.getOrLoad(time, "failing", loader);
+            fail("Should not pass");
+        } catch (ExecutionException e) { }
+        try {
+            cache.getOrLoad(clock.currentTimeMillis() + 500L, "failing", loader);
+            fail("Should not pass");
+        } catch (ExecutionException e) { }
+        assertEquals(2, loader.calls.get());
+    }
+
+    public void testConcurrentMisses() throws Exception
+    {
+        final LoadingCache<String,String> cache = _cache(0L, new LogicalTime(3000L));
+        final CountDownLatch release = new CountDownLatch(1);
+        final TestLoader loader = new TestLoader(release);
+        final int THREADS = 8;
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicReference<Throwable> fail = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if ("KEY".equals(cache.getOrLoad(3000L, "key", loader))) {
+                            successes.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        fail.compareAndSet(null, t);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        // wait until load is in progress, then let a bit of time for others to queue up
+        while (loader.calls.get() == 0) {
+            Thread.sleep(5L);
+        }
+        Thread.sleep(50L);
+        release.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (fail.get() != null) {
+            fail("Failure: "+fail.get());
+        }
+        assertEquals(THREADS, successes.get());
+        assertEquals(1, loader.calls.get());
+    }
+
+    public void testFailuresNotCached() throws Exception
+    {
+        LoadingCache<String,String> cache = _cache(0L, new LogicalTime(3000L));
+        TestLoader loader = new TestLoader(null);
+        for (int i = 0; i < 2; ++i) {
+            try {
+                cache.getOrLoad(3000L, "failing", loader);
+                fail("Should not pass");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        assertEquals(2, loader.calls.get());
+        assertEquals(0, cache.getCacheElement().size());
+    }
+
+    public void testFailuresCached() throws Exception
+    {
+        final long time = 3000L;
+        LogicalTime clock = new LogicalTime(time);
+        LoadingCache<String,String> cache = _cache(1000L, clock);
+        TestLoader loader = new TestLoader(null);
+        for (int i = 0; i < 2; ++i) {
+            try {
+                cache.getOrLoad(time, "failing", loader);
+                fail("Should not pass");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        assertEquals(1, loader.calls.get());
+        // but once cached failure expires, will try again
+        clock.now.set(time + 1000L);
+        try {
+            cache.getOrLoad(time + 1000L, "failing", loader);
+            fail("Should not pass");
+        } catch (ExecutionException e) { }
+        assertEquals(2, loader.calls.get());
+    }
+
+    public void testRefreshAhead() throws Exception
+    {
+        final long time = 3000L;
+        // logical time used when loads complete
+        LogicalTime clock = new LogicalTime(time);
+        LoadingCache<String,String> cache = _cache(0L, clock);
+        CollectingExecutor executor = new CollectingExecutor();
+        final List<Runnable> tasks = executor.tasks;
+        // refresh during last quarter of 4 second TTL, if returned at least twice
+        cache.enableRefreshAhead(executor, 4, 0.25, 2);
+        final AtomicInteger version = new AtomicInteger();
+        CacheLoader<String,String> loader = new CacheLoader<String,String>() {
+            @Override
+            public String load(String key) {
+                return key+version.incrementAndGet();
+            }
+
+            @Override
+            public int weightOf(String key, String value) {
+                return 1;
+            }
+        };
+        assertEquals("a1", cache.getOrLoad(time, "a", loader));
+        assertEquals("b2", cache.getOrLoad(time, "b", loader));
+        assertEquals("a1", cache.getOrLoad(time, "a", loader));
+        assertEquals("a1", cache.getOrLoad(time, "a", loader));
+        // not yet close enough to expiration
+        assertEquals(0, tasks.size());
+
+        // but now "a" is, and is hot enough; "b" is not
+        final long later = time + 3500L;
+        assertEquals("a1", cache.getOrLoad(later, "a", loader));
+        assertEquals("b2", cache.getOrLoad(later, "b", loader));
+        assertEquals(1, tasks.size());
+        // and only one reload is started
+        assertEquals("a1", cache.getOrLoad(later, "a", loader));
+        assertEquals(1, tasks.size());
+        assertEquals(1, cache.getLoadsInFlight());
+
+        // reload completes later than it was triggered
+        final long reloaded = time + 4500L;
+        clock.now.set(reloaded);
+        tasks.remove(0).run();
+        assertEquals(0, cache.getLoadsInFlight());
+        assertEquals("a3", cache.getOrLoad(reloaded, "a", loader));
+        // and new value lives longer than original one did
+        final long muchLater = time + 5000L;
+        clock.now.set(muchLater);
+        assertEquals("a3", cache.getOrLoad(muchLater, "a", loader));
+        assertEquals("b4", cache.getOrLoad(muchLater, "b", loader));
+        assertEquals(0, tasks.size());
+        // counting from completion of reload, not the hit that triggered it
+        // (although close enough to expiration to be refreshed again)
+        assertEquals("a3", cache.getOrLoad(time + 8000L, "a", loader));
+        assertEquals(1, tasks.size());
+    }
+
+    /**
+     * Test to verify that entries are inserted with time-to-live given to
+     * refresh-ahead, and not default TTL of the cache element, so that
+     * refresh window is relative to actual expiration.
+     */
+    public void testRefreshAheadTimeToLive() throws Exception
+    {
+        final long time = 3000L;
+        LogicalTime clock = new LogicalTime(time);
+        LoadingCache<String,String> cache = _cache(0L, clock); // default TTL 4 seconds
+        CollectingExecutor executor = new CollectingExecutor();
+        final List<Runnable> tasks = executor.tasks;
+        // 8 second TTL, refresh during last quarter (2 seconds)
+        cache.enableRefreshAhead(executor, 8, 0.25, 0);
+        TestLoader loader = new TestLoader(null);
+        assertEquals("A", cache.getOrLoad(time, "a", loader));
+        // would have expired with default TTL; but not yet within refresh window
+        assertEquals("A", cache.getOrLoad(time + 5000L, "a", loader));
+        assertEquals(1, loader.calls.get());
+        assertEquals(0, tasks.size());
+        // and now it is
+        assertEquals("A", cache.getOrLoad(time + 6500L, "a", loader));
+        assertEquals(1, tasks.size());
+        clock.now.set(time + 7000L);
+        tasks.remove(0).run();
+        assertEquals(2, loader.calls.get());
+        // reloaded entry also uses the same TTL
+        assertEquals("A", cache.getOrLoad(time + 12000L, "a", loader));
+        assertEquals(2, loader.calls.get());
+        assertEquals(0, tasks.size());
+    }
+}
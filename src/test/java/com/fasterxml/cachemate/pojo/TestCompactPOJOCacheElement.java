@@ -0,0 +1,159 @@
+package com.fasterxml.cachemate.pojo;
+
+import com.fasterxml.cachemate.CacheEntry;
+import com.fasterxml.cachemate.converters.StringKeyConverter;
+
+/**
+ * Unit tests verifying correct functioning of {@link CompactPOJOCacheElement}.
+ */
+public class TestCompactPOJOCacheElement extends POJOTestBase
+{
+    public void testInitialState() throws Exception
+    {
+        CompactPOJOCacheElement<String,String> cache = new CompactPOJOCacheElement<String,String>(StringKeyConverter.instance,
+                64, 64 * 1024, /* ttl */ 4);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.contentsWeight());
+        assertEquals(16, cache.getCapacity());
+        long time = 3000L;
+        assertNull(cache.findEntry(time, "a"));
+        assertNull(cache.removeEntry(time, "a"));
+        assertEquals(1, cache.getStats().getMisses());
+        cache.checkSanity();
+    }
+
+    public void testZeroCapacity() throws Exception
+    {
+        CompactPOJOCacheElement<String,String> cache = new CompactPOJOCacheElement<String,String>(StringKeyConverter.instance,
+                0, 64 * 1024, 4);
+        long time = 3000L;
+        assertNull(cache.putEntry(time, "abc", "def", 3));
+        assertEquals(0, cache.size());
+        assertNull(cache.findEntry(time, "abc"));
+        assertEquals(1L, cache.getStats().getEvictions());
+        cache.checkSanity();
+    }
+
+    public void testSimpleAccess() throws Exception
+    {
+        CompactPOJOCacheElement<String,String> cache = new CompactPOJOCacheElement<String,String>(StringKeyConverter.instance,
+                64, 64 * 1024, 4);
+        long time = 3000L;
+        assertNull(cache.putEntry(time, "abc", "def", 3));
+        assertNull(cache.putEntry(time, "12", "34", 4));
+        assertNull(cache.putEntry(time, "xxx", "y", 5));
+        assertEquals(3, cache.size());
+        assertEquals(12, cache.contentsWeight());
+        assertEquals("[abc, 12, xxx]", cache.keysFromLeastToMostRecent().toString());
+
+        CacheEntry<String,String> entry = cache.findEntry(time, "abc");
+        assertEquals("def", entry.getValue());
+        assertEquals(3, entry.getWeight());
+        assertEquals("[12, xxx, abc]", cache.keysFromLeastToMostRecent().toString());
+        assertEquals("[abc, 12, xxx]", cache.keysFromOldestToNewest().toString());
+
+        CacheEntry<String,String> old = cache.putEntry(time, "12", "56", 2);
+        assertEquals("34", old.getValue());
+        assertEquals("56", cache.findEntry(time, "12").getValue());
+        assertEquals(3, cache.size());
+        assertEquals(10, cache.contentsWeight());
+        assertEquals("[abc, xxx, 12]", cache.keysFromOldestToNewest().toString());
+        cache.checkSanity();
+
+        assertEquals("y", cache.removeEntry(time, "xxx").getValue());
+        assertNull(cache.findEntry(time, "xxx"));
+        assertEquals(2, cache.size());
+        cache.checkSanity();
+
+        assertEquals(2, cache.invalidateStale(time + 5000L));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.contentsWeight());
+        cache.checkSanity();
+    }
+
+    public void testLimitsAndGrowth() throws Exception
+    {
+        CompactPOJOCacheElement<String,Integer> cache = new CompactPOJOCacheElement<String,Integer>(StringKeyConverter.instance,
+                500, 1024 * 1024, 4);
+        long time = 3000L;
+        for (int i = 0; i < 2000; ++i) {
+            cache.putEntry(time, String.valueOf(i), i, 1);
+            // keep one entry as MRU
+            assertNotNull(cache.findEntry(time, "0"));
+            if ((i % 99) == 0) {
+                cache.checkSanity();
+            }
+        }
+        assertEquals(500, cache.size());
+        assertEquals(500, cache.getCapacity());
+        assertEquals(0, cache.findEntry(time, "0").getValue().intValue());
+        assertNull(cache.findEntry(time, "1500"));
+        assertEquals(1999, cache.findEntry(time, "1999").getValue().intValue());
+        cache.checkSanity();
+
+        // slots are reused after removal
+        for (int i = 1600; i < 1700; ++i) {
+            assertNotNull(cache.removeEntry(time, String.valueOf(i)));
+        }
+        assertEquals(400, cache.size());
+        for (int i = 0; i < 100; ++i) {
+            cache.putEntry(time, "x"+i, i, 1);
+        }
+        assertEquals(500, cache.size());
+        assertEquals(500, cache.getCapacity());
+        cache.checkSanity();
+
+        cache.removeAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.findEntry(time, "x1"));
+        cache.checkSanity();
+    }
+
+    /**
+     * Test to verify that entries removed by (constant-time) removeAll
+     * are not visible, and that their slots are reused, even before
+     * they have been swept.
+     */
+    public void testRemoveAll() throws Exception
+    {
+        CompactPOJOCacheElement<String,Integer> cache = new CompactPOJOCacheElement<String,Integer>(StringKeyConverter.instance,
+                500, 1024 * 1024, 4);
+        final long time = 3000L;
+        for (int i = 0; i < 500; ++i) {
+            cache.putEntry(time, String.valueOf(i), i, 1);
+        }
+        cache.removeAll();
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.contentsWeight());
+        cache.checkSanity();
+        for (int i = 0; i < 500; i += 7) {
+            assertNull(cache.findEntry(time, String.valueOf(i)));
+        }
+        assertNull(cache.removeEntry(time, "3"));
+        cache.checkSanity();
+
+        // entries can be added back, without growing or evicting anything
+        for (int i = 0; i < 1000; i += 2) {
+            assertNull(cache.putEntry(time, String.valueOf(i), -i, 1));
+        }
+        assertEquals(500, cache.size());
+        assertEquals(500, cache.getCapacity());
+        assertEquals(0L, cache.getStats().getEvictions());
+        cache.checkSanity();
+        for (int i = 0; i < 1000; ++i) {
+            CacheEntry<String,Integer> entry = cache.findEntry(time, String.valueOf(i));
+            if ((i & 1) == 0) {
+                assertNotNull(entry);
+                assertEquals(-i, entry.getValue().intValue());
+            } else {
+                assertNull(entry);
+            }
+        }
+        assertEquals("0", cache.keysFromOldestToNewest().get(0));
+        // and second removal works same way
+        cache.removeAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.findEntry(time, "0"));
+        cache.checkSanity();
+    }
+}
@@ -0,0 +1,140 @@
+package com.fasterxml.cachemate.pojo;
+
+import com.fasterxml.cachemate.CacheStats;
+
+/**
+ * Unit tests verifying correct functioning of {@link IntKeyPOJOCacheElement}.
+ */
+public class TestIntKeyPOJOCacheElement extends POJOTestBase
+{
+    public void testSimpleAccess() throws Exception
+    {
+        IntKeyPOJOCacheElement<String> cache = new IntKeyPOJOCacheElement<String>(64, 64 * 1024, 4);
+        long time = 3000L;
+        assertNull(cache.findEntryForKey(time, 1));
+        assertNull(cache.putEntryForKey(time, 1, "a", 3));
+        assertNull(cache.putEntryForKey(time, 65, "b", 4));
+        assertNull(cache.putEntryForKey(time, -1, "c", 5));
+        assertEquals(3, cache.size());
+        assertEquals(12, cache.contentsWeight());
+
+        // keys in same hash bucket
+        assertEquals("a", cache.findEntryForKey(time, 1).getValue());
+        assertEquals("b", cache.findEntryForKey(time, 65).getValue());
+        assertEquals(65, cache.findEntryForKey(time, 65).getIntKey());
+        assertNull(cache.findEntryForKey(time, 2));
+
+        // and boxed keys work the same way
+        assertEquals("c", cache.findEntry(time, Integer.valueOf(-1)).getValue());
+        assertEquals(Integer.valueOf(-1), cache.findEntryForKey(time, -1).getKey());
+        IntKeyPOJOCacheEntry<String> old = cache.putEntry(time, Integer.valueOf(1), "a2", 2);
+        assertNotNull(old);
+        assertEquals("a", old.getValue());
+        assertEquals("a2", cache.findEntryForKey(time, 1).getValue());
+        cache.checkSanity();
+
+        assertEquals("b", cache.removeEntryForKey(time, 65).getValue());
+        assertNull(cache.removeEntryForKey(time, 65));
+        assertEquals(2, cache.size());
+
+        // and with per-entry TTL
+        assertNull(cache.putEntryForKey(time, 60, 7, "long", 1));
+        assertEquals(2, cache.invalidateStale(time + 5000L));
+        assertEquals("long", cache.findEntryForKey(time + 5000L, 7).getValue());
+        cache.checkSanity();
+    }
+
+    /**
+     * Primitive-key methods must not make generic methods ambiguous
+     * when values are of a numeric type.
+     */
+    public void testBoxedValues() throws Exception
+    {
+        IntKeyPOJOCacheElement<Integer> cache = new IntKeyPOJOCacheElement<Integer>(64, 64 * 1024, 4);
+        long time = 3000L;
+        assertNull(cache.putEntry(time, 5, 7, 1));
+        assertNull(cache.putEntryForKey(time, 60, 6, 8, 1));
+        assertEquals(Integer.valueOf(7), cache.findEntryForKey(time, 5).getValue());
+        assertEquals(Integer.valueOf(8), cache.findEntry(time, 6).getValue());
+        assertEquals(Integer.valueOf(7), cache.removeEntry(time, 5).getValue());
+        assertEquals(1, cache.size());
+        cache.checkSanity();
+    }
+
+    public void testLimits() throws Exception
+    {
+        IntKeyPOJOCacheElement<Integer> cache = new IntKeyPOJOCacheElement<Integer>(100, 64 * 1024, 4);
+        long time = 3000L;
+        for (int i = 0; i < 1000; ++i) {
+            cache.putEntryForKey(time, i << 8, Integer.valueOf(i), 1);
+        }
+        assertEquals(100, cache.size());
+        for (int i = 900; i < 1000; ++i) {
+            assertEquals(i, cache.findEntryForKey(time, i << 8).getValue().intValue());
+        }
+        assertNull(cache.findEntryForKey(time, 899 << 8));
+        cache.checkSanity();
+    }
+
+    public void testResizing() throws Exception
+    {
+        IntKeyPOJOCacheElement<Integer> cache = new IntKeyPOJOCacheElement<Integer>(64, 64 * 1024, 4);
+        assertEquals(64, cache.getHashAreaSize());
+        cache.setMaxEntries(1000);
+        final long time = 9000L;
+        for (int i = 0; i < 1000; ++i) {
+            cache.putEntryForKey(time, i, i, 1);
+            if ((i % 37) == 0) {
+                cache.checkSanity();
+            }
+        }
+        assertEquals(1000, cache.size());
+        assertTrue(cache.getHashAreaSize() >= 512);
+        for (int i = 0; i < 1000; ++i) {
+            IntKeyPOJOCacheEntry<Integer> entry = cache.findEntryForKey(time, i);
+            assertNotNull(entry);
+            assertEquals(i, entry.getValue().intValue());
+        }
+        cache.checkSanity();
+
+        // and then shrink back
+        for (int i = 0; i < 990; ++i) {
+            assertNotNull(cache.removeEntryForKey(time, i));
+        }
+        assertEquals(10, cache.size());
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 990; i < 1000; ++i) {
+                assertNotNull(cache.findEntryForKey(time, i));
+            }
+        }
+        cache.checkSanity();
+        assertTrue("Should have shrunk, size "+cache.getHashAreaSize(), cache.getHashAreaSize() < 512);
+        assertNull(cache.findEntryForKey(time, 0));
+    }
+
+    public void testExpirationAndStats() throws Exception
+    {
+        IntKeyPOJOCacheElement<String> cache = new IntKeyPOJOCacheElement<String>(64, 64 * 1024, 4);
+        assertNull(cache.putEntryForKey(3000L, 1, "a", 1)); // stale at about 7 seconds
+        assertNull(cache.putEntryForKey(5000L, 2, "b", 1));
+        assertNull(cache.putEntryForKey(5000L, 60, 3, "c", 1));
+
+        // lookup of stale entry removes it, and counts as a miss
+        assertNull(cache.findEntryForKey(7500L, 1));
+        assertEquals(2, cache.size());
+        assertEquals("b", cache.findEntryForKey(7500L, 2).getValue());
+        assertNull(cache.findEntryForKey(9500L, 2));
+        // but one with longer time-to-live is still there
+        assertEquals("c", cache.findEntryForKey(9500L, 3).getValue());
+        assertEquals(1, cache.size());
+        assertEquals("c", cache.removeEntryForKey(9500L, 3).getValue());
+        assertEquals(0, cache.size());
+        cache.checkSanity();
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2L, stats.getHits());
+        assertEquals(2L, stats.getMisses());
+        assertEquals(2L, stats.getExpirations());
+        assertEquals(1L, stats.getRemovals());
+    }
+}
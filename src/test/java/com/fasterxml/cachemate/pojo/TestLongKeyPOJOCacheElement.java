@@ -0,0 +1,143 @@
+package com.fasterxml.cachemate.pojo;
+
+import com.fasterxml.cachemate.CacheStats;
+
+/**
+ * Unit tests verifying correct functioning of {@link LongKeyPOJOCacheElement}.
+ */
+public class TestLongKeyPOJOCacheElement extends POJOTestBase
+{
+    public void testSimpleAccess() throws Exception
+    {
+        LongKeyPOJOCacheElement<String> cache = new LongKeyPOJOCacheElement<String>(64, 64 * 1024, 4);
+        long time = 3000L;
+        assertNull(cache.findEntryForKey(time, 1L));
+        assertNull(cache.putEntryForKey(time, 1L, "a", 3));
+        assertNull(cache.putEntryForKey(time, 0x100000001L, "b", 4));
+        assertNull(cache.putEntryForKey(time, -1L, "c", 5));
+        assertEquals(3, cache.size());
+        assertEquals(12, cache.contentsWeight());
+
+        // keys with same hash code must still be distinguished
+        assertEquals("a", cache.findEntryForKey(time, 1L).getValue());
+        assertEquals("b", cache.findEntryForKey(time, 0x100000001L).getValue());
+        assertEquals(0x100000001L, cache.findEntryForKey(time, 0x100000001L).getLongKey());
+        assertNull(cache.findEntryForKey(time, 2L));
+
+        // and boxed keys work the same way
+        assertEquals("c", cache.findEntry(time, Long.valueOf(-1L)).getValue());
+        assertEquals(Long.valueOf(-1L), cache.findEntryForKey(time, -1L).getKey());
+        LongKeyPOJOCacheEntry<String> old = cache.putEntry(time, Long.valueOf(1L), "a2", 2);
+        assertNotNull(old);
+        assertEquals("a", old.getValue());
+        assertEquals("a2", cache.findEntryForKey(time, 1L).getValue());
+        assertEquals(3, cache.size());
+        cache.checkSanity();
+
+        assertEquals("b", cache.removeEntryForKey(time, 0x100000001L).getValue());
+        assertNull(cache.removeEntryForKey(time, 0x100000001L));
+        assertEquals(2, cache.size());
+        assertEquals(7, cache.contentsWeight());
+
+        // and expiration
+        assertEquals(2, cache.invalidateStale(time + 5000L));
+        assertNull(cache.findEntryForKey(time + 5000L, 1L));
+        assertEquals(0, cache.size());
+        cache.checkSanity();
+    }
+
+    /**
+     * Primitive-key methods must not make generic methods ambiguous
+     * when values are of a numeric type.
+     */
+    public void testBoxedValues() throws Exception
+    {
+        LongKeyPOJOCacheElement<Long> cache = new LongKeyPOJOCacheElement<Long>(64, 64 * 1024, 4);
+        long time = 3000L;
+        assertNull(cache.putEntry(time, 5L, 7L, 1));
+        assertNull(cache.putEntry(time, 60, 6L, 8L, 1));
+        assertEquals(Long.valueOf(7L), cache.findEntryForKey(time, 5L).getValue());
+        assertEquals(Long.valueOf(8L), cache.findEntry(time, 6L).getValue());
+        assertEquals(Long.valueOf(7L), cache.removeEntry(time, 5L).getValue());
+        assertEquals(1, cache.size());
+        cache.checkSanity();
+    }
+
+    public void testLimits() throws Exception
+    {
+        LongKeyPOJOCacheElement<Integer> cache = new LongKeyPOJOCacheElement<Integer>(100, 64 * 1024, 4);
+        long time = 3000L;
+        for (long i = 0; i < 1000; ++i) {
+            cache.putEntryForKey(time, i << 20, Integer.valueOf((int) i), 1);
+        }
+        assertEquals(100, cache.size());
+        for (long i = 900; i < 1000; ++i) {
+            assertEquals((int) i, cache.findEntryForKey(time, i << 20).getValue().intValue());
+        }
+        assertNull(cache.findEntryForKey(time, 899L << 20));
+        cache.checkSanity();
+    }
+
+    public void testResizing() throws Exception
+    {
+        LongKeyPOJOCacheElement<Integer> cache = new LongKeyPOJOCacheElement<Integer>(64, 64 * 1024, 4);
+        assertEquals(64, cache.getHashAreaSize());
+        cache.setMaxEntries(1000);
+        final long time = 9000L;
+        for (int i = 0; i < 1000; ++i) {
+            // use keys that only differ in high bits, to also exercise hash collisions
+            cache.putEntryForKey(time, ((long) i) << 32, i, 1);
+            if ((i % 37) == 0) {
+                cache.checkSanity();
+            }
+        }
+        assertEquals(1000, cache.size());
+        assertTrue(cache.getHashAreaSize() >= 512);
+        for (int i = 0; i < 1000; ++i) {
+            LongKeyPOJOCacheEntry<Integer> entry = cache.findEntryForKey(time, ((long) i) << 32);
+            assertNotNull(entry);
+            assertEquals(i, entry.getValue().intValue());
+        }
+        cache.checkSanity();
+
+        // and then shrink back
+        for (int i = 0; i < 990; ++i) {
+            assertNotNull(cache.removeEntryForKey(time, ((long) i) << 32));
+        }
+        assertEquals(10, cache.size());
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 990; i < 1000; ++i) {
+                assertNotNull(cache.findEntryForKey(time, ((long) i) << 32));
+            }
+        }
+        cache.checkSanity();
+        assertTrue("Should have shrunk, size "+cache.getHashAreaSize(), cache.getHashAreaSize() < 512);
+        assertNull(cache.findEntryForKey(time, 0L));
+    }
+
+    public void testExpirationAndStats() throws Exception
+    {
+        LongKeyPOJOCacheElement<String> cache = new LongKeyPOJOCacheElement<String>(64, 64 * 1024, 4);
+        assertNull(cache.putEntryForKey(3000L, 1L, "a", 1)); // stale at about 7 seconds
+        assertNull(cache.putEntryForKey(5000L, 2L, "b", 1));
+        assertNull(cache.putEntryForKey(5000L, 60, 3L, "c", 1));
+
+        // lookup of stale entry removes it, and counts as a miss
+        assertNull(cache.findEntryForKey(7500L, 1L));
+        assertEquals(2, cache.size());
+        assertEquals("b", cache.findEntryForKey(7500L, 2L).getValue());
+        assertNull(cache.findEntryForKey(9500L, 2L));
+        // but one with longer time-to-live is still there
+        assertEquals("c", cache.findEntryForKey(9500L, 3L).getValue());
+        assertEquals(1, cache.size());
+        assertEquals("c", cache.removeEntryForKey(9500L, 3L).getValue());
+        assertEquals(0, cache.size());
+        cache.checkSanity();
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2L, stats.getHits());
+        assertEquals(2L, stats.getMisses());
+        assertEquals(2L, stats.getExpirations());
+        assertEquals(1L, stats.getRemovals());
+    }
+}
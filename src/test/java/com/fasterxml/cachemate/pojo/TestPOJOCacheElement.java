@@ -3,6 +3,7 @@ package com.fasterxml.cachemate.pojo;
 import java.util.*;
 
 import com.fasterxml.cachemate.CacheEntry;
+import com.fasterxml.cachemate.CacheStats;
 import com.fasterxml.cachemate.converters.StringKeyConverter;
 import com.fasterxml.cachemate.pojo.POJOCacheElement;
 
@@ -333,4 +334,307 @@ public class TestPOJOCacheElement extends POJOTestBase
 
         cache.checkSanity();
     }
-}
\ No newline at end of file
+
+    /**
+     * Test to verify that hash area gets resized (incrementally) when
+     * entry limits are changed, and that entries remain accessible during
+     * and after resizing.
+     */
+    public void testResizing()
+    {
+        POJOCacheElement<String,Integer> cache = new POJOCacheElement<String,Integer>(StringKeyConverter.instance,
+                64, 64 * 1024, 4);
+        assertEquals(64, cache.getHashAreaSize());
+        cache.setMaxEntries(1000);
+        final long time = 9000L;
+        for (int i = 0; i < 1000; ++i) {
+            cache.putEntry(time, String.valueOf(i), i, 1);
+            if ((i % 37) == 0) {
+                cache.checkSanity();
+            }
+        }
+        assertEquals(1000, cache.size());
+        assertTrue(cache.getHashAreaSize() >= 512);
+        for (int i = 0; i < 1000; ++i) {
+            CacheEntry<String,Integer> entry = cache.findEntry(time, String.valueOf(i));
+            assertNotNull(entry);
+            assertEquals(i, entry.getValue().intValue());
+        }
+        // insertion order retained, as are LRU links
+        assertEquals("0", cache.keysFromOldestToNewest().get(0));
+        assertEquals("999", cache.keysFromLeastToMostRecent().get(999));
+        cache.checkSanity();
+
+        // and then shrink back
+        for (int i = 0; i < 990; ++i) {
+            assertNotNull(cache.removeEntry(time, String.valueOf(i)));
+        }
+        assertEquals(10, cache.size());
+        // shrinking is also incremental, so need a few more operations to complete
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 990; i < 1000; ++i) {
+                assertNotNull(cache.findEntry(time, String.valueOf(i)));
+            }
+        }
+        cache.checkSanity();
+        assertTrue("Should have shrunk, size "+cache.getHashAreaSize(), cache.getHashAreaSize() < 512);
+
+        // lowering limits evicts LRU entries
+        cache.setMaxEntries(5);
+        assertEquals(5, cache.size());
+        assertNull(cache.findEntry(time, "990"));
+        assertNotNull(cache.findEntry(time, "999"));
+        cache.checkSanity();
+    }
+
+    /**
+     * Test to verify that hash area pre-sized based on maximum entry count
+     * is not shrunk when cache is (still) mostly empty.
+     */
+    public void testPresizedHashArea()
+    {
+        POJOCacheElement<String,Integer> cache = new POJOCacheElement<String,Integer>(StringKeyConverter.instance,
+                1000, 64 * 1024, 4);
+        assertEquals(1024, cache.getHashAreaSize());
+        final long time = 9000L;
+        for (int i = 0; i < 100; ++i) {
+            cache.putEntry(time, "a", i, 1);
+            assertNotNull(cache.findEntry(time, "a"));
+            assertNull(cache.findEntry(time, "b"));
+        }
+        assertNotNull(cache.removeEntry(time, "a"));
+        assertEquals(1024, cache.getHashAreaSize());
+        cache.checkSanity();
+
+        // but lowering maximum entry count allows shrinking
+        cache.setMaxEntries(10);
+        // (shrinking is incremental, so takes a while)
+        for (int i = 0; i < 1000; ++i) {
+            cache.putEntry(time, "a", i, 1);
+        }
+        assertEquals(16, cache.getHashAreaSize());
+        cache.checkSanity();
+    }
+
+    /**
+     * Test to verify that entries removed by (constant-time) removeAll
+     * are not visible, even before they have been swept from hash area.
+     */
+    public void testRemoveAll()
+    {
+        POJOCacheElement<String,Integer> cache = new POJOCacheElement<String,Integer>(StringKeyConverter.instance,
+                64, 64 * 1024, 4);
+        cache.setMaxEntries(1000);
+        final long time = 9000L;
+        // leave hash area in the middle of resizing
+        for (int i = 0; i < 400; ++i) {
+            cache.putEntry(time, String.valueOf(i), i, 1);
+        }
+        cache.removeAll();
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.contentsWeight());
+        cache.checkSanity();
+        for (int i = 0; i < 400; i += 7) {
+            assertNull(cache.findEntry(time, String.valueOf(i)));
+        }
+        assertNull(cache.removeEntry(time, "3"));
+        // entries can be added back, regardless of whether stale ones were swept
+        for (int i = 0; i < 400; i += 2) {
+            assertNull(cache.putEntry(time, String.valueOf(i), -i, 1));
+        }
+        assertEquals(200, cache.size());
+        for (int i = 0; i < 400; ++i) {
+            CacheEntry<String,Integer> entry = cache.findEntry(time, String.valueOf(i));
+            if ((i & 1) == 0) {
+                assertNotNull(entry);
+                assertEquals(-i, entry.getValue().intValue());
+            } else {
+                assertNull(entry);
+            }
+        }
+        assertEquals("0", cache.keysFromOldestToNewest().get(0));
+        cache.checkSanity();
+        // and second removal works same way
+        cache.removeAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.findEntry(time, "0"));
+        cache.checkSanity();
+    }
+
+    /**
+     * Test to verify that with admission filter, scan of keys accessed
+     * only once does not flush frequently accessed entries.
+     */
+    public void testAdmissionFilter()
+    {
+        POJOCacheElement<String,Integer> cache = new POJOCacheElement<String,Integer>(StringKeyConverter.instance,
+                100, 64 * 1024, 4);
+        cache.enableAdmissionFilter();
+        assertTrue(cache.usesAdmissionFilter());
+        final long time = 9000L;
+        // first, the "hot" working set, accessed a few times
+        for (int i = 0; i < 50; ++i) {
+            cache.putEntry(time, "hot"+i, i, 1);
+        }
+        for (int round = 0; round < 3; ++round) {
+            for (int i = 0; i < 50; ++i) {
+                assertNotNull(cache.findEntry(time, "hot"+i));
+            }
+        }
+        cache.checkSanity();
+        // then a scan over cold keys
+        for (int i = 0; i < 1000; ++i) {
+            cache.putEntry(time, "cold"+i, i, 1);
+            if ((i % 97) == 0) {
+                cache.checkSanity();
+            }
+        }
+        assertEquals(100, cache.size());
+        int hot = 0;
+        for (int i = 0; i < 50; ++i) {
+            if (cache.findEntry(time, "hot"+i) != null) {
+                ++hot;
+            }
+        }
+        assertEquals(50, hot);
+        cache.checkSanity();
+
+        // removal works for entries in window and main area alike
+        assertNotNull(cache.removeEntry(time, "cold999"));
+        assertNotNull(cache.removeEntry(time, "hot0"));
+        assertEquals(98, cache.size());
+        cache.checkSanity();
+
+        cache.removeAll();
+        assertEquals(0, cache.size());
+        cache.checkSanity();
+
+        // and can not enable for non-empty caches
+        cache = new POJOCacheElement<String,Integer>(StringKeyConverter.instance, 100, 64 * 1024, 4);
+        cache.putEntry(time, "a", 1, 1);
+        try {
+            cache.enableAdmissionFilter();
+            fail("Should not allow enabling admission filter for non-empty cache");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("non-empty"));
+        }
+    }
+
+    /**
+     * Test to verify that entries with short time-to-live get invalidated
+     * even if there are older entries with longer time-to-live.
+     */
+    public void testMixedTimeToLive()
+    {
+        POJOCacheElement<String,Integer> cache = new POJOCacheElement<String,Integer>(StringKeyConverter.instance,
+                100, 64 * 1024, 4);
+        long time = 9000L;
+        // first, one with long ttl (1 hour)
+        cache.putEntry(time, 3600, "long", 0, 1);
+        // then bunch with default (4 seconds) and short (1 second) ttls
+        for (int i = 0; i < 10; ++i) {
+            cache.putEntry(time, "default"+i, i, 1);
+            cache.putEntry(time, 1, "short"+i, i, 1);
+        }
+        // and one with medium ttl (2 minutes)
+        cache.putEntry(time, 120, "medium", 0, 1);
+        assertEquals(22, cache.size());
+        cache.checkSanity();
+
+        // nothing expired yet
+        assertEquals(0, cache.invalidateStale(time + 500L));
+        // but after 2 seconds, short ones are
+        assertEquals(10, cache.invalidateStale(time + 2000L));
+        assertEquals(12, cache.size());
+        assertNotNull(cache.findEntry(time + 2000L, "default3"));
+        cache.checkSanity();
+        // and after 5 seconds, default ones too
+        assertEquals(10, cache.invalidateStale(time + 5000L, 20));
+        assertEquals(2, cache.size());
+        // medium after a few minutes
+        assertEquals(1, cache.invalidateStale(time + 200000L));
+        assertEquals("long", cache.oldestEntry(time + 200000L).getKey());
+        cache.checkSanity();
+        // and last one after an hour
+        assertEquals(0, cache.invalidateStale(time + 3500000L));
+        assertEquals(1, cache.invalidateStale(time + 3700000L));
+        assertEquals(0, cache.size());
+        cache.checkSanity();
+    }
+
+    /**
+     * Test to verify that access and removal statistics are properly
+     * counted.
+     */
+    public void testStats()
+    {
+        POJOCacheElement<String,Integer> cache = new POJOCacheElement<String,Integer>(StringKeyConverter.instance,
+                3, 64 * 1024, 4);
+        final long time = 9000L;
+        cache.putEntry(time, "a", 1, 1);
+        cache.putEntry(time, 1, "b", 2, 1);
+        cache.putEntry(time, "c", 3, 1);
+        cache.putEntry(time, "d", 4, 1); // evicts "a"
+        assertNull(cache.findEntry(time, "a"));
+        assertNotNull(cache.findEntry(time, "c"));
+        assertNotNull(cache.findEntry(time, "d"));
+        assertNotNull(cache.removeEntry(time, "c"));
+        assertNull(cache.removeEntry(time, "c"));
+        // and "b" expires
+        assertEquals(1, cache.invalidateStale(time + 2000L));
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2L, stats.getHits());
+        assertEquals(1L, stats.getMisses());
+        assertEquals(3L, stats.getTotalGets());
+        assertEquals(4L, stats.getInsertions());
+        assertEquals(1L, stats.getEvictions());
+        assertEquals(1L, stats.getExpirations());
+        assertEquals(1L, stats.getRemovals());
+        assertEquals(1, stats.getEntryCount());
+        assertEquals(1L, stats.getContentsWeight());
+        assertEquals(cache.weight(), stats.getTotalWeight());
+        assertEquals(3, stats.getMaxEntryCount());
+
+        cache.clearStats();
+        stats = cache.getStats();
+        assertEquals(0L, stats.getHits());
+        assertEquals(0L, stats.getEvictions());
+        assertEquals(1, stats.getEntryCount());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testBatchAccess()
+    {
+        POJOCacheElement<String,Integer> cache = new POJOCacheElement<String,Integer>(StringKeyConverter.instance,
+                4, 64 * 1024, 4);
+        final long time = 3000L;
+        String[] keys = new String[] { "a", "b", "c", "d", "e" };
+        Integer[] values = new Integer[] { 1, 2, 3, 4, 5 };
+        int[] weights = new int[] { 1, 1, 1, 1, 1 };
+        assertEquals(0, cache.putEntries(time, keys, values, weights, 3));
+        assertEquals(3, cache.size());
+        assertEquals("[a, b, c]", cache.keysFromLeastToMostRecent().toString());
+
+        CacheEntry<String,Integer>[] results = (CacheEntry<String,Integer>[]) new CacheEntry<?,?>[5];
+        String[] lookup = new String[] { "c", "x", "a" };
+        assertEquals(2, cache.findEntries(time, lookup, results, lookup.length));
+        assertEquals(Integer.valueOf(3), results[0].getValue());
+        assertNull(results[1]);
+        assertEquals(Integer.valueOf(1), results[2].getValue());
+        // accesses update LRU ordering as usual
+        assertEquals("[b, c, a]", cache.keysFromLeastToMostRecent().toString());
+
+        // limits are enforced within batch as well, so re-inserted "a" gets evicted
+        assertEquals(3, cache.putEntries(time, keys, values, weights, 5));
+        assertEquals(4, cache.size());
+        assertEquals(4, cache.findEntries(time, keys, results, 5));
+        assertNull(results[0]);
+        cache.checkSanity();
+
+        // and all expire eventually
+        assertEquals(0, cache.findEntries(time + 5000L, keys, results, 5));
+        assertEquals(0, cache.size());
+        cache.checkSanity();
+    }
+}
@@ -0,0 +1,263 @@
+package com.fasterxml.cachemate.pojo;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.fasterxml.cachemate.CacheEntry;
+import com.fasterxml.cachemate.converters.IntegerKeyConverter;
+import com.fasterxml.cachemate.converters.StringKeyConverter;
+
+/**
+ * Unit tests verifying correct functioning of {@link StripedPOJOCacheElement},
+ * both for single-threaded and multi-threaded access.
+ */
+public class TestStripedPOJOCacheElement extends POJOTestBase
+{
+    public void testInitialState() throws Exception
+    {
+        StripedPOJOCacheElement<String,String> cache = new StripedPOJOCacheElement<String,String>(StringKeyConverter.instance,
+                64, 64 * 1024, /* ttl */ 4, 4);
+        assertEquals(4, cache.getConcurrencyLevel());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.contentsWeight());
+        assertTrue(cache.weight() > 256L);
+
+        long time = 3000L;
+        assertNull(cache.findEntry(time, "a"));
+        assertNull(cache.removeEntry(time, "a"));
+        cache.checkSanity();
+    }
+
+    public void testSimpleAccess() throws Exception
+    {
+        StripedPOJOCacheElement<String,String> cache = new StripedPOJOCacheElement<String,String>(StringKeyConverter.instance,
+                64, 64 * 1024, 4);
+        long time = 3000L;
+        assertNull(cache.putEntry(time, "abc", "def", 3));
+        assertNull(cache.putEntry(time, "12", "34", 4));
+        assertNull(cache.putEntry(time, "xxx", "y", 5));
+        assertEquals(3, cache.size());
+        assertEquals(12, cache.contentsWeight());
+
+        assertEquals("34", cache.findEntry(time, "12").getValue());
+        CacheEntry<String,String> old = cache.putEntry(time, "12", "56", 2);
+        assertNotNull(old);
+        assertEquals("34", old.getValue());
+        assertEquals("56", cache.findEntry(time, "12").getValue());
+        assertEquals(3, cache.size());
+        assertEquals(10, cache.contentsWeight());
+
+        assertEquals("def", cache.removeEntry(time, "abc").getValue());
+        assertNull(cache.findEntry(time, "abc"));
+        assertEquals(2, cache.size());
+
+        // and then let entries expire
+        assertEquals(2, cache.invalidateStale(time + 5000L));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.contentsWeight());
+        cache.checkSanity();
+    }
+
+    public void testLimits() throws Exception
+    {
+        StripedPOJOCacheElement<Integer,String> cache = new StripedPOJOCacheElement<Integer,String>(IntegerKeyConverter.instance,
+                400, 1024 * 1024, 1000, 8);
+        long time = 3000L;
+        for (int i = 0; i < 4000; ++i) {
+            cache.putEntry(time, Integer.valueOf(i), "x", 1);
+        }
+        // global limit only approximately held, but can not exceed total of per-segment limits
+        int size = cache.size();
+        assertTrue("Should have at most 400 entries, had "+size, size <= 400);
+        assertTrue("Should have at least 300 entries, had "+size, size >= 300);
+        assertEquals(size, cache.getStats().getEntryCount());
+        cache.checkSanity();
+
+        cache.removeAll();
+        assertEquals(0, cache.size());
+        cache.checkSanity();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testBatchAccess() throws Exception
+    {
+        for (boolean buffered : new boolean[] { false, true }) {
+            StripedPOJOCacheElement<Integer,String> cache = new StripedPOJOCacheElement<Integer,String>(IntegerKeyConverter.instance,
+                    1000, 64 * 1024, 4, 8, buffered);
+            final long time = 3000L;
+            Integer[] keys = new Integer[50];
+            String[] values = new String[50];
+            int[] weights = new int[50];
+            for (int i = 0; i < keys.length; ++i) {
+                keys[i] = Integer.valueOf(i);
+                values[i] = "v"+i;
+                weights[i] = 2;
+            }
+            // only insert 40 first
+            assertEquals(0, cache.putEntries(time, keys, values, weights, 40));
+            assertEquals(40, cache.size());
+            assertEquals(80, cache.contentsWeight());
+            // and replace a few
+            assertEquals(10, cache.putEntries(time, keys, values, weights, 10));
+            assertEquals(40, cache.size());
+
+            CacheEntry<Integer,String>[] results = (CacheEntry<Integer,String>[]) new CacheEntry<?,?>[keys.length];
+            assertEquals(40, cache.findEntries(time, keys, results, keys.length));
+            for (int i = 0; i < keys.length; ++i) {
+                if (i < 40) {
+                    assertEquals(values[i], results[i].getValue());
+                } else {
+                    assertNull(results[i]);
+                }
+            }
+            assertEquals(40L, cache.getStats().getHits());
+            assertEquals(10L, cache.getStats().getMisses());
+            cache.checkSanity();
+
+            // duplicate keys within batch: last one wins
+            Integer[] dupKeys = new Integer[] { 3, 60, 3, 61, 60 };
+            String[] dupValues = new String[] { "a", "b", "c", "d", "e" };
+            cache.putEntries(time, dupKeys, dupValues, new int[] { 1, 1, 1, 1, 1 }, dupKeys.length);
+            assertEquals(42, cache.size());
+            assertEquals(4, cache.findEntries(time, dupKeys, results, 4));
+            assertEquals("c", results[0].getValue());
+            assertEquals("e", results[1].getValue());
+            assertEquals("c", results[2].getValue());
+            assertEquals("d", results[3].getValue());
+            cache.checkSanity();
+        }
+    }
+
+    /**
+     * Test to verify that with buffered reads, accesses are applied to
+     * LRU ordering before modifications.
+     */
+    public void testBufferedReadsLRU() throws Exception
+    {
+        StripedPOJOCacheElement<String,String> cache = new StripedPOJOCacheElement<String,String>(StringKeyConverter.instance,
+                3, 64 * 1024, 4, 1, true);
+        assertTrue(cache.usesBufferedReads());
+        long time = 3000L;
+        assertNull(cache.putEntry(time, "a", "1", 1));
+        assertNull(cache.putEntry(time, "b", "2", 1));
+        assertNull(cache.putEntry(time, "c", "3", 1));
+        assertEquals("1", cache.findEntry(time, "a").getValue());
+        // not yet applied...
+        assertEquals("[a, b, c]", cache._segments[0].keysFromLeastToMostRecent().toString());
+        // but will be before insertion, so "b" gets evicted:
+        assertNull(cache.putEntry(time, "d", "4", 1));
+        assertEquals(3, cache.size());
+        assertNull(cache.findEntry(time, "b"));
+        assertEquals("1", cache.findEntry(time, "a").getValue());
+        assertEquals("3", cache.findEntry(time, "c").getValue());
+
+        // and stale entries are not returned, even if not yet removed
+        assertNull(cache.findEntry(time + 5000L, "a"));
+        cache.checkSanity();
+
+        // lookups done without locking are also included in stats
+        assertEquals(3L, cache.getStats().getHits());
+        assertEquals(2L, cache.getStats().getMisses());
+        assertEquals(1L, cache.getStats().getEvictions());
+    }
+
+    /**
+     * Test to verify that with buffered reads, a miss that races with a
+     * modification (one that temporarily hides entries, like moving of
+     * entries during resizing does) is rechecked with lock held.
+     */
+    public void testBufferedMissDuringModification() throws Exception
+    {
+        final StripedPOJOCacheElement<String,String> cache = new StripedPOJOCacheElement<String,String>(StringKeyConverter.instance,
+                100, 64 * 1024, 4, 1, true);
+        final long time = 3000L;
+        assertNull(cache.putEntry(time, "a", "1", 1));
+        final POJOCacheElement<String,String> segment = cache._segments[0];
+        final int bucket = segment._primaryHashIndex(StringKeyConverter.instance.keyHash("a"));
+        final POJOCacheEntry<String,String> chain = segment._entries[bucket];
+
+        // hide entry while "modification" is in progress
+        cache._lockSegment(0);
+        segment._entries[bucket] = null;
+        final AtomicReference<CacheEntry<String,String>> result = new AtomicReference<CacheEntry<String,String>>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(cache.findEntry(time, "a"));
+            }
+        });
+        reader.start();
+        // reader must not give up, but wait for the lock
+        while (!cache._locks[0].hasQueuedThreads()) {
+            Thread.sleep(1L);
+        }
+        segment._entries[bucket] = chain;
+        cache._unlockSegment(0);
+        reader.join();
+        assertNotNull(result.get());
+        assertEquals("1", result.get().getValue());
+        cache.checkSanity();
+    }
+
+    /**
+     * Test that verifies that concurrent access does not corrupt state
+     */
+    public void testConcurrentAccess() throws Exception
+    {
+        _testConcurrentAccess(false);
+    }
+
+    public void testConcurrentAccessBuffered() throws Exception
+    {
+        _testConcurrentAccess(true);
+    }
+
+    private void _testConcurrentAccess(boolean buffered) throws Exception
+    {
+        final StripedPOJOCacheElement<Integer,Integer> cache = new StripedPOJOCacheElement<Integer,Integer>(IntegerKeyConverter.instance,
+                500, 64 * 1024, 4, 8, buffered);
+        final AtomicReference<Throwable> fail = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random rnd = new Random(seed);
+                    final long time = 9000L;
+                    try {
+                        for (int i = 0; i < 100000; ++i) {
+                            Integer key = rnd.nextInt(1000);
+                            switch (rnd.nextInt(4)) {
+                            case 0:
+                                cache.putEntry(time, key, key, 1);
+                                break;
+                            case 1:
+                                cache.removeEntry(time, key);
+                                break;
+                            default:
+                                CacheEntry<Integer,Integer> entry = cache.findEntry(time, key);
+                                if (entry != null && !key.equals(entry.getValue())) {
+                                    throw new IllegalStateException("Wrong value for key "+key+": "+entry.getValue());
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        fail.set(e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (fail.get() != null) {
+            throw new RuntimeException(fail.get());
+        }
+        assertEquals(cache.size(), (int) cache.contentsWeight());
+        cache.checkSanity();
+    }
+}
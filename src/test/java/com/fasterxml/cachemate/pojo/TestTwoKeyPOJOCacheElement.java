@@ -386,4 +386,60 @@ public class TestTwoKeyPOJOCacheElement extends POJOTestBase
         // and still fully 'sane'
         cache.checkSanity();
     }
+
+    /**
+     * Test to verify that both hash areas are resized as necessary.
+     */
+    public void testResizing()
+    {
+        TwoKeyPOJOCacheElement<Integer,String,Integer> cache = new TwoKeyPOJOCacheElement<Integer,String,Integer>
+            (IntegerKeyConverter.instance, StringKeyConverter.instance,
+                32, 64 * 1024, 4);
+        cache.setMaxEntries(500);
+        final long time = 9000L;
+        for (int i = 0; i < 500; ++i) {
+            cache.putEntry(time, i, "x"+i, i, 1);
+            // verify lookups work during resizing, too
+            assertEquals(Integer.valueOf(i/2), cache.findEntryBySecondary(time, "x"+(i/2)).getValue());
+        }
+        assertEquals(500, cache.size());
+        assertTrue(cache.getHashAreaSize() >= 256);
+        cache.checkSanity();
+        for (int i = 0; i < 495; ++i) {
+            assertNotNull(cache.removeEntry(time, i));
+        }
+        assertEquals(5, cache.size());
+        for (int i = 495; i < 500; ++i) {
+            assertEquals(Integer.valueOf(i), cache.findEntryBySecondary(time, "x"+i).getValue());
+        }
+        cache.checkSanity();
+    }
+
+    public void testRemoveAll()
+    {
+        TwoKeyPOJOCacheElement<Integer,String,Integer> cache = new TwoKeyPOJOCacheElement<Integer,String,Integer>
+            (IntegerKeyConverter.instance, StringKeyConverter.instance,
+                32, 64 * 1024, 4);
+        cache.setMaxEntries(500);
+        final long time = 9000L;
+        for (int i = 0; i < 200; ++i) {
+            cache.putEntry(time, i, "x"+i, i, 1);
+        }
+        cache.removeAll();
+        assertEquals(0, cache.size());
+        cache.checkSanity();
+        for (int i = 0; i < 200; i += 3) {
+            assertNull(cache.findEntry(time, i));
+            assertNull(cache.findEntryBySecondary(time, "x"+i));
+        }
+        for (int i = 0; i < 100; ++i) {
+            cache.putEntry(time, i, "x"+i, -i, 1);
+        }
+        assertEquals(100, cache.size());
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(Integer.valueOf(-i), cache.findEntryBySecondary(time, "x"+i).getValue());
+        }
+        assertNull(cache.findEntryBySecondary(time, "x150"));
+        cache.checkSanity();
+    }
 }
@@ -0,0 +1,594 @@
+package com.fasterxml.cachemate.raw;
+
+import java.io.File;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.cachemate.CacheEntry;
+import com.fasterxml.cachemate.CacheStats;
+
+public class TestRawCacheElement extends TestCase
+{
+    private final Hasher HASHER = new Murmur3Hasher();
+
+    public void testSimplePutAndFind()
+    {
+        RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocateDirect(64 * 1024));
+        final long time = 3000L;
+        byte[] key = "abc".getBytes();
+        byte[] value = "value".getBytes();
+        assertNull(cache.findEntry(time, key));
+        assertNull(cache.putEntry(time, key, value, 8));
+        assertEquals(1, cache.size());
+        assertEquals(8L, cache.contentsWeight());
+
+        CacheEntry<byte[],byte[]> entry = cache.findEntry(time, key);
+        assertNotNull(entry);
+        assertTrue(Arrays.equals(key, entry.getKey()));
+        assertTrue(Arrays.equals(value, entry.getValue()));
+
+        // replacement in same slab does not increase entry count
+        cache.putEntry(time, key, "other".getBytes(), 8);
+        assertEquals(1, cache.size());
+        assertEquals("other", new String(cache.findEntry(time, key).getValue()));
+
+        // and entries expire as expected
+        assertNotNull(cache.findEntry(time + 9000L, key));
+        assertNull(cache.findEntry(time + 11000L, key));
+
+        CacheStats stats = cache.getStats();
+        assertEquals(3L, stats.getHits());
+        assertEquals(2L, stats.getMisses());
+    }
+
+    public void testRollOverAndEviction()
+    {
+        // 4 slabs, each of which can contain at most 12 entries
+        RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocate(4000), 1000, 16);
+        assertEquals(4, cache.getSlabCount());
+        final long time = 3000L;
+        for (int i = 0; i < 47; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        // replacement within writable slab does not add an entry (but does use space)
+        cache.putEntry(time, _key(40), "newer".getBytes(), 10);
+        // all entries still there, in 3 frozen and 1 writable slab
+        assertEquals(47, cache.size());
+        for (int i = 0; i < 47; ++i) {
+            CacheEntry<byte[],byte[]> entry = cache.findEntry(time, _key(i));
+            assertNotNull("Missing entry #"+i, entry);
+            if (i != 40) {
+                assertTrue(Arrays.equals(_value(i), entry.getValue()));
+            }
+        }
+        assertEquals("newer", new String(cache.findEntry(time, _key(40)).getValue()));
+        assertEquals(0L, cache.getStats().getEvictions());
+
+        // but one more requires rolling over, dropping first (oldest) slab
+        cache.putEntry(time, _key(47), _value(47), 15);
+        assertEquals(36, cache.size());
+        assertEquals(12L, cache.getStats().getEvictions());
+        for (int i = 0; i < 12; ++i) {
+            assertNull(cache.findEntry(time, _key(i)));
+        }
+        for (int i = 12; i < 48; ++i) {
+            assertNotNull("Missing entry #"+i, cache.findEntry(time, _key(i)));
+        }
+        assertEquals("newer", new String(cache.findEntry(time, _key(40)).getValue()));
+    }
+
+    /**
+     * Test to verify that an expired entry still shadows older
+     * entries of the key in older slabs.
+     */
+    public void testExpiredEntryShadowsOlder()
+    {
+        // 4 slabs, each of which can contain at most 12 entries
+        RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocate(4000), 1000, 16);
+        final long time = 3000L;
+        byte[] key = "key".getBytes();
+        cache.putEntry(time, 1000, key, "OLD".getBytes(), 6);
+        for (int i = 0; i < 11; ++i) {
+            cache.putEntry(time, 1000, _key(i), _value(i), 15);
+        }
+        // first slab with long TTL; second one has short TTL, and replaces value
+        cache.putEntry(time, 1, key, "NEW".getBytes(), 6);
+        for (int i = 11; i < 22; ++i) {
+            cache.putEntry(time, 1, _key(i), _value(i), 15);
+        }
+        // and one more to freeze second slab too
+        cache.putEntry(time, 1000, _key(22), _value(22), 15);
+        assertEquals("NEW", new String(cache.findEntry(time, key).getValue()));
+
+        final long later = time + 5000L;
+        assertNull(cache.findEntry(later, key));
+        assertNull(cache.findValueView(later, key));
+        assertEquals(-1, cache.findInto(later, key, HASHER.calcHash(key, 0, key.length),
+                ByteBuffer.allocate(20)));
+        assertNull(cache.removeEntry(later, key));
+        assertEquals(0L, cache.getStats().getRemovals());
+        assertNotNull(cache.findEntry(later, _key(0)));
+    }
+
+    public void testPerfectHashIndex()
+    {
+        RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocate(4000), 1000, 16);
+        cache.enablePerfectHashIndex();
+        assertTrue(cache.usesPerfectHashIndex());
+        final long time = 3000L;
+        for (int i = 0; i < 60; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        // 4 slabs of 12 entries each, so first 12 have been dropped
+        assertEquals(12L, cache.getStats().getEvictions());
+        for (int i = 0; i < 60; ++i) {
+            CacheEntry<byte[],byte[]> entry = cache.findEntry(time, _key(i));
+            if (i < 12) {
+                assertNull(entry);
+            } else {
+                assertNotNull("Missing entry #"+i, entry);
+                assertTrue(Arrays.equals(_value(i), entry.getValue()));
+            }
+        }
+    }
+
+    public void testConcurrentPuts() throws Exception
+    {
+        // 16 slabs, each of which can contain up to 192 entries; enough for all
+        final RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocateDirect(128 * 1024),
+                8 * 1024, 256);
+        final int THREADS = 4;
+        final int PER_THREAD = 500;
+        final long time = 3000L;
+        final AtomicReference<Throwable> fail = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; ++t) {
+            final int base = t * PER_THREAD;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < PER_THREAD; ++i) {
+                            cache.putEntry(time, _key(base+i), _value(base+i), 15);
+                        }
+                    } catch (Throwable t) {
+                        fail.compareAndSet(null, t);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (fail.get() != null) {
+            fail("Failure: "+fail.get());
+        }
+        assertEquals(THREADS * PER_THREAD, cache.size());
+        assertEquals(0L, cache.getStats().getEvictions());
+        for (int i = 0; i < THREADS * PER_THREAD; ++i) {
+            CacheEntry<byte[],byte[]> entry = cache.findEntry(time, _key(i));
+            assertNotNull("Missing entry #"+i, entry);
+            assertTrue(Arrays.equals(_value(i), entry.getValue()));
+        }
+    }
+
+    public void testConcurrentReads() throws Exception
+    {
+        final RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocateDirect(4000), 1000, 16);
+        final long time = 3000L;
+        final int ENTRIES = 40; // in 3 frozen slabs, and writable one
+        for (int i = 0; i < ENTRIES; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        final int THREADS = 8;
+        final AtomicReference<Throwable> fail = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; ++t) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 2000; ++round) {
+                            int i = (round * 7 + seed) % ENTRIES;
+                            CacheEntry<byte[],byte[]> entry = cache.findEntry(time, _key(i));
+                            if (entry == null || !Arrays.equals(_value(i), entry.getValue())) {
+                                throw new IllegalStateException("Invalid entry for #"+i);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        fail.compareAndSet(null, t);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (fail.get() != null) {
+            fail("Failure: "+fail.get());
+        }
+        assertEquals(THREADS * 2000L, cache.getStats().getHits());
+    }
+
+    public void testValueViews() throws Exception
+    {
+        final RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocateDirect(4000), 1000, 16);
+        final long time = 3000L;
+        for (int i = 0; i < 12; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        assertNull(cache.findValueView(time, _key(99)));
+        RawValueView view = cache.findValueView(time, _key(3));
+        assertNotNull(view);
+        assertEquals(10, view.getValueLength());
+        assertTrue(view.getValue().isReadOnly());
+        assertTrue(view.getValue().isDirect());
+        byte[] b = new byte[view.getValueLength()];
+        view.getValue().get(b);
+        assertTrue(Arrays.equals(_value(3), b));
+
+        // area with pinned value is not reused until view is released, but
+        // roll over does not wait for that: it moves to the next area instead
+        for (int i = 12; i < 49; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        // so both the first (pinned) slab and the second one got evicted
+        assertEquals(24L, cache.getStats().getEvictions());
+        assertNull(cache.findValueView(time, _key(3)));
+        assertNull(cache.findEntry(time, _key(15)));
+        assertNotNull(cache.findEntry(time, _key(48)));
+        b = new byte[view.getValueLength()];
+        view.getValue().rewind();
+        view.getValue().get(b);
+        assertTrue(Arrays.equals(_value(3), b));
+        view.release();
+        assertTrue(view.isReleased());
+
+        // after which area is used again, once its turn comes
+        for (int i = 49; i < 85; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        assertEquals(48L, cache.getStats().getEvictions());
+        assertEquals(37, cache.size());
+        for (int i = 48; i < 85; ++i) {
+            assertNotNull("Missing entry #"+i, cache.findEntry(time, _key(i)));
+        }
+        view = cache.findValueView(time, _key(84));
+        assertNotNull(view);
+        view.release();
+    }
+
+    public void testAllAreasPinned()
+    {
+        // just 2 slabs: pinning the frozen one leaves no area for roll over
+        RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocate(2000), 1000, 16);
+        final long time = 3000L;
+        for (int i = 0; i < 24; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        RawValueView view = cache.findValueView(time, _key(3));
+        assertNotNull(view);
+        assertEquals(24, cache.size());
+        try {
+            cache.putEntry(time, _key(24), _value(24), 15);
+            fail("Should not be able to roll over with all areas pinned");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("pinned"));
+        }
+        try {
+            cache.removeAll();
+            fail("Should not be able to remove all with all areas pinned");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("pinned"));
+        }
+        // nothing was removed or evicted, and value is still intact
+        assertEquals(24, cache.size());
+        assertEquals(0L, cache.getStats().getEvictions());
+        assertNotNull(cache.findEntry(time, _key(0)));
+        assertNotNull(cache.findEntry(time, _key(3)));
+        assertNotNull(cache.findEntry(time, _key(23)));
+        byte[] b = new byte[view.getValueLength()];
+        view.getValue().get(b);
+        assertTrue(Arrays.equals(_value(3), b));
+        view.release();
+        // releasing more than once has no effect
+        view.release();
+        assertTrue(view.isReleased());
+
+        cache.putEntry(time, _key(24), _value(24), 15);
+        assertNotNull(cache.findEntry(time, _key(24)));
+        assertEquals(12L, cache.getStats().getEvictions());
+    }
+
+    public void testFindInto()
+    {
+        RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocateDirect(4000), 1000, 16);
+        final long time = 3000L;
+        // enough to have entries in both frozen and writable slabs
+        for (int i = 0; i < 20; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        dst.position(5);
+        for (int i : new int[] { 3, 15 }) {
+            byte[] key = _key(i);
+            assertEquals(10, cache.findInto(time, key, HASHER.calcHash(key, 0, key.length), dst));
+        }
+        assertEquals(25, dst.position());
+        byte[] b = new byte[20];
+        dst.position(5);
+        dst.get(b);
+        assertEquals(new String(_value(3))+new String(_value(15)), new String(b));
+
+        byte[] key = _key(99);
+        assertEquals(-1, cache.findInto(time, key, HASHER.calcHash(key, 0, key.length), dst));
+        // expired entries are not found
+        key = _key(3);
+        assertEquals(-1, cache.findInto(time + 11000L, key, HASHER.calcHash(key, 0, key.length), dst));
+        // and if there is not enough room, nothing is copied
+        dst = ByteBuffer.allocate(5);
+        try {
+            cache.findInto(time, key, HASHER.calcHash(key, 0, key.length), dst);
+            fail("Should not pass");
+        } catch (BufferOverflowException e) { }
+        assertEquals(0, dst.position());
+        assertEquals(3L, cache.getStats().getHits());
+        assertEquals(2L, cache.getStats().getMisses());
+    }
+
+    public void testRemoveEntry()
+    {
+        RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocateDirect(4000), 1000, 16);
+        final long time = 3000L;
+        // 12 entries in frozen slab, 8 in writable one
+        for (int i = 0; i < 20; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        assertNull(cache.removeEntry(time, _key(99)));
+        for (int i : new int[] { 3, 15 }) {
+            CacheEntry<byte[],byte[]> removed = cache.removeEntry(time, _key(i));
+            assertNotNull(removed);
+            assertTrue(Arrays.equals(_value(i), removed.getValue()));
+            assertNull(cache.findEntry(time, _key(i)));
+            assertNull(cache.findValueView(time, _key(i)));
+            byte[] key = _key(i);
+            assertEquals(-1, cache.findInto(time, key, HASHER.calcHash(key, 0, key.length),
+                    ByteBuffer.allocate(100)));
+            // second removal finds nothing to remove
+            assertNull(cache.removeEntry(time, _key(i)));
+        }
+        assertEquals(2L, cache.getStats().getRemovals());
+        assertNotNull(cache.findEntry(time, _key(4)));
+
+        // tombstones remain effective after roll over
+        for (int i = 20; i < 30; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        assertEquals(0L, cache.getStats().getEvictions());
+        assertNull(cache.findEntry(time, _key(3)));
+        assertNull(cache.findEntry(time, _key(15)));
+        // and entries may be re-added
+        cache.putEntry(time, _key(3), "again".getBytes(), 5);
+        assertEquals("again", new String(cache.findEntry(time, _key(3)).getValue()));
+    }
+
+    /**
+     * Test to verify that entries of dropped slabs are counted as
+     * expirations if all have expired, and tombstones are not counted.
+     */
+    public void testExpirationCounts()
+    {
+        RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocate(4000), 1000, 16);
+        final long time = 3000L;
+        // 13th entry rolls over first slab
+        for (int i = 0; i < 13; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        final ReadOnlySlab first = cache._firstReadOnlySlab.get();
+        assertNotNull(first);
+        assertEquals(12, first.getEntryCount());
+        assertNotNull(cache.removeEntry(time, _key(0)));
+        assertNotNull(cache.removeEntry(time, _key(1)));
+        int i = 13;
+        while (cache._firstReadOnlySlab.get() == first) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+            ++i;
+        }
+        final ReadOnlySlab second = cache._firstReadOnlySlab.get();
+        assertEquals(2, second.getTombstoneCount());
+
+        // all entries of first two slabs expired by the time they are dropped
+        final long later = time + 20000L;
+        while (!second.isRecycled()) {
+            cache.putEntry(later, _key(i), _value(i), 15);
+            ++i;
+        }
+        CacheStats stats = cache.getStats();
+        assertEquals(12L + second.getEntryCount() - 2, stats.getExpirations());
+        assertEquals(0L, stats.getEvictions());
+        assertEquals(2L, stats.getRemovals());
+
+        // but third one has unexpired entries, so they are evicted
+        final ReadOnlySlab third = cache._readOnlySlabs[(second.getSlabId() + 1) % 4];
+        assertNotNull(third);
+        while (!third.isRecycled()) {
+            cache.putEntry(later, _key(i), _value(i), 15);
+            ++i;
+        }
+        stats = cache.getStats();
+        assertEquals(12L + second.getEntryCount() - 2, stats.getExpirations());
+        assertEquals((long) third.getEntryCount(), stats.getEvictions());
+    }
+
+    public void testRemoveAll()
+    {
+        // 4 slabs, each of which can contain at most 12 entries
+        RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocate(4000), 1000, 16);
+        final long time = 3000L;
+        for (int i = 0; i < 40; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        // (entry in second slab, since area of the first is recycled right away)
+        RawValueView view = cache.findValueView(time, _key(15));
+        assertNotNull(view);
+        cache.removeAll();
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.contentsWeight());
+        assertEquals(0L, cache.getStats().getEvictions());
+        for (int i = 0; i < 40; ++i) {
+            assertNull(cache.findEntry(time, _key(i)));
+        }
+        // view to a removed entry remains valid until released
+        byte[] b = new byte[view.getValueLength()];
+        view.getValue().get(b);
+        assertTrue(Arrays.equals(_value(15), b));
+        view.release();
+
+        // and new entries can be added, recycling slabs of removed entries
+        for (int i = 100; i < 140; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        assertEquals(40, cache.size());
+        assertEquals(0L, cache.getStats().getEvictions());
+        for (int i = 100; i < 140; ++i) {
+            assertNotNull("Missing entry #"+i, cache.findEntry(time, _key(i)));
+        }
+        assertNull(cache.findEntry(time, _key(39)));
+        // until slabs of new entries get evicted as well
+        for (int i = 140; i < 150; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        assertEquals(12L, cache.getStats().getEvictions());
+        assertNull(cache.findEntry(time, _key(100)));
+        assertNotNull(cache.findEntry(time, _key(149)));
+    }
+
+    public void testMappedRestart() throws Exception
+    {
+        File file = File.createTempFile("cachemate", ".slabs");
+        file.deleteOnExit();
+        final long time = 3000L;
+        RawCacheElement cache = RawCacheElement.openMapped(file, 10, HASHER, 1000, 4, 16, time);
+        assertTrue(cache.isPersistent());
+        cache.enablePerfectHashIndex();
+        // 2 frozen slabs, writable one with 6 entries
+        for (int i = 0; i < 30; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        assertNotNull(cache.removeEntry(time, _key(5)));
+        // writable slab is only persisted when flushed
+        cache.flush(time);
+        cache.putEntry(time, _key(99), _value(99), 15);
+        assertEquals(32, cache.size());
+
+        // "restart": frozen slabs are reused as is
+        RawCacheElement restored = RawCacheElement.openMapped(file, 10, HASHER, 1000, 4, 16, time + 1000L);
+        assertEquals(31, restored.size());
+        assertEquals(cache.contentsWeight() - 15L, restored.contentsWeight());
+        for (int i = 0; i < 30; ++i) {
+            CacheEntry<byte[],byte[]> entry = restored.findEntry(time, _key(i));
+            if (i == 5) {
+                assertNull(entry);
+            } else {
+                assertNotNull("Missing entry #"+i, entry);
+                assertTrue(Arrays.equals(_value(i), entry.getValue()));
+            }
+        }
+        assertNull(restored.findEntry(time, _key(99)));
+        // and new entries go to the next slab area, evicting oldest slab when needed
+        for (int i = 100; i < 112; ++i) {
+            restored.putEntry(time, _key(i), _value(i), 15);
+        }
+        assertEquals(43, restored.size());
+        restored.putEntry(time, _key(112), _value(112), 15);
+        assertEquals(12L, restored.getStats().getEvictions());
+        assertNull(restored.findEntry(time, _key(0)));
+        assertNotNull(restored.findEntry(time, _key(29)));
+
+        // no slabs reused if all entries have expired
+        RawCacheElement expired = RawCacheElement.openMapped(file, 10, HASHER, 1000, 4, 16, time + 20000L);
+        assertEquals(0, expired.size());
+        assertNull(expired.findEntry(time + 20000L, _key(29)));
+        // nor if configuration differs
+        RawCacheElement different = RawCacheElement.openMapped(file, 10, HASHER, 500, 8, 16, time);
+        assertEquals(0, different.size());
+    }
+
+    public void testMultipleBuffers()
+    {
+        // 2 buffers, each containing 2 slabs of at most 12 entries
+        ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.allocateDirect(2000), ByteBuffer.allocate(2000) };
+        RawCacheElement cache = new RawCacheElement(10, HASHER, buffers, 1000, 16);
+        assertEquals(4, cache.getSlabCount());
+        assertEquals(2, cache.getBufferCount());
+        final long time = 3000L;
+        for (int i = 0; i < 48; ++i) {
+            cache.putEntry(time, _key(i), _value(i), 15);
+        }
+        assertEquals(0L, cache.getStats().getEvictions());
+        for (int i = 0; i < 48; ++i) {
+            CacheEntry<byte[],byte[]> entry = cache.findEntry(time, _key(i));
+            assertNotNull("Missing entry #"+i, entry);
+            assertTrue(Arrays.equals(_value(i), entry.getValue()));
+        }
+        byte[] key = _key(36);
+        assertEquals(10, cache.findInto(time, key, HASHER.calcHash(key, 0, key.length),
+                ByteBuffer.allocate(20)));
+        // entries of the last slab are in the second buffer, starting at its second slab
+        assertTrue(Arrays.equals(key, Arrays.copyOfRange(buffers[1].array(), 1005, 1010)));
+
+        // and round-robin continues from the first buffer
+        cache.putEntry(time, _key(48), _value(48), 15);
+        assertEquals(12L, cache.getStats().getEvictions());
+        assertNull(cache.findEntry(time, _key(0)));
+        RawValueView view = cache.findValueView(time, _key(48));
+        assertNotNull(view);
+        assertEquals(10, view.getValueLength());
+        view.release();
+    }
+
+    public void testBufferLayout()
+    {
+        assertEquals(10, RawCacheElement._slabsPerBuffer(10, 1000));
+        // 1 GB buffers
+        assertEquals(1024, RawCacheElement._slabsPerBuffer(100 * 1024, 1024 * 1024));
+        // 5 buffers needed for 4.5 GB, so 3 slabs are dropped
+        assertEquals(921, RawCacheElement._slabsPerBuffer(4608, 1024 * 1024));
+        // slabs bigger than maximum buffer size: one per buffer
+        assertEquals(1, RawCacheElement._slabsPerBuffer(3, Integer.MAX_VALUE));
+    }
+
+    public void testTooBig()
+    {
+        RawCacheElement cache = new RawCacheElement(10, HASHER, ByteBuffer.allocate(4000), 1000, 16);
+        byte[] key = "key".getBytes();
+        assertNull(cache.putEntry(3000L, key, new byte[2000], 2003));
+        assertEquals(0, cache.size());
+        assertNull(cache.findEntry(3000L, key));
+
+        // but if there is an existing value, it must not remain visible
+        byte[] key2 = "key2".getBytes();
+        cache.putEntry(3000L, key2, _value(1), 14);
+        assertNotNull(cache.findEntry(3000L, key2));
+        assertNull(cache.putEntry(3000L, key2, new byte[2000], 2004));
+        assertNull(cache.findEntry(3000L, key2));
+        assertNull(cache.findValueView(3000L, key2));
+        // but is not counted as removal
+        assertEquals(0L, cache.getStats().getRemovals());
+    }
+
+    private byte[] _key(int i) {
+        return String.format("key%02d", i).getBytes();
+    }
+
+    private byte[] _value(int i) {
+        return String.format("value:%04d", i).getBytes();
+    }
+}
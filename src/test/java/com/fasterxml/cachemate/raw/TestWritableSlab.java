@@ -0,0 +1,391 @@
+package com.fasterxml.cachemate.raw;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class TestWritableSlab extends TestCase
+{
+    private final Hasher HASHER = new Murmur3Hasher();
+
+    public void testAppendAndFind()
+    {
+        ByteBuffer bbuf = ByteBuffer.allocateDirect(64 * 1024);
+        // let's not start at 0, to verify offset handling
+        WritableSlab slab = new WritableSlab(bbuf, 1000, 33000, 100);
+        assertEquals(0, slab.getEntryCount());
+
+        byte[] key1 = "key1".getBytes();
+        byte[] key2 = "second".getBytes();
+        assertNull(slab.findEntry(bbuf, key1, HASHER.calcHash(key1, 0, key1.length)));
+        int offset = slab.appendEntry(bbuf, key1, HASHER.calcHash(key1, 0, key1.length), new byte[200], 1000);
+        assertEquals(1000, offset);
+        // long value to verify multi-byte lengths work
+        assertEquals(1000 + WritableSlab.calcEntryLength(key1, new byte[200]),
+                slab.appendEntry(bbuf, key2, HASHER.calcHash(key2, 0, key2.length), new byte[3], 2000));
+        assertEquals(2, slab.getEntryCount());
+        assertEquals(2000, slab.getMaxExpirationTime());
+
+        EntryReference ref = slab.findEntry(bbuf, key1, HASHER.calcHash(key1, 0, key1.length));
+        assertNotNull(ref);
+        assertEquals(1000, ref.getTimestamp());
+        assertTrue(ref.hasKey(key1));
+        ref = slab.findEntry(bbuf, key2, HASHER.calcHash(key2, 0, key2.length));
+        assertNotNull(ref);
+        assertEquals(2000, ref.getTimestamp());
+
+        // replacement: new entry is found
+        slab.appendEntry(bbuf, key1, HASHER.calcHash(key1, 0, key1.length), new byte[1], 3000);
+        assertEquals(2, slab.getEntryCount());
+        assertEquals(3000, slab.findEntry(bbuf, key1, HASHER.calcHash(key1, 0, key1.length)).getTimestamp());
+
+        // and non-existing key with same hash as existing one is not
+        assertNull(slab.findEntry(bbuf, "key2".getBytes(), HASHER.calcHash(key1, 0, key1.length)));
+    }
+
+    public void testFull()
+    {
+        ByteBuffer bbuf = ByteBuffer.allocate(4000);
+        // index with 16 slots, so can have at most 12 entries
+        WritableSlab slab = new WritableSlab(bbuf, 0, 4000, 16);
+        int i = 0;
+        for (; i < 100; ++i) {
+            byte[] key = ("key"+i).getBytes();
+            if (slab.appendEntry(bbuf, key, HASHER.calcHash(key, 0, key.length), new byte[10], 1) < 0) {
+                break;
+            }
+        }
+        assertEquals(12, i);
+        // but entry area may also fill up
+        slab = new WritableSlab(bbuf, 0, 4000, 16);
+        byte[] key = "key".getBytes();
+        assertTrue(slab.appendEntry(bbuf, key, HASHER.calcHash(key, 0, key.length), new byte[3000], 1) >= 0);
+        assertEquals(-1, slab.appendEntry(bbuf, key, HASHER.calcHash(key, 0, key.length), new byte[1000], 1));
+        for (i = 0; i < 12; ++i) {
+            key = ("key"+i).getBytes();
+            assertNull(slab.findEntry(bbuf, key, HASHER.calcHash(key, 0, key.length)));
+        }
+    }
+
+    /**
+     * Test to verify that a failed append does not block later appenders
+     * (or closing), and that slab is closed after failure.
+     */
+    public void testFailedAppend() throws Exception
+    {
+        ByteBuffer bbuf = ByteBuffer.allocate(4000);
+        WritableSlab slab = new WritableSlab(bbuf, 0, 4000, 16);
+        byte[] key1 = "key1".getBytes();
+        byte[] key2 = "key2".getBytes();
+        assertEquals(0, slab.appendEntry(bbuf, key1, HASHER.calcHash(key1, 0, key1.length), new byte[10], 1));
+        try {
+            slab.appendEntry(bbuf.asReadOnlyBuffer(), key2, HASHER.calcHash(key2, 0, key2.length), new byte[10], 1);
+            fail("Should not pass");
+        } catch (java.nio.ReadOnlyBufferException e) { }
+        // no more appends; but closing must not block
+        assertEquals(-1, slab.appendEntry(bbuf, key2, HASHER.calcHash(key2, 0, key2.length), new byte[10], 1));
+        final WritableSlab closing = slab;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                closing.close();
+            }
+        });
+        t.start();
+        t.join(5000L);
+        assertFalse("close() should not block after failed append", t.isAlive());
+        assertNotNull(slab.findEntry(bbuf, key1, HASHER.calcHash(key1, 0, key1.length)));
+        assertNull(slab.findEntry(bbuf, key2, HASHER.calcHash(key2, 0, key2.length)));
+        assertEquals(1, slab.freeze(bbuf).getEntryCount());
+    }
+
+    /**
+     * Test to verify that value lengths read are verified against end of slab
+     * (not just end of the buffer), since data may be garbage if slab area is
+     * recycled during read.
+     */
+    public void testGarbageValueLength()
+    {
+        ByteBuffer bbuf = ByteBuffer.allocate(64 * 1024);
+        WritableSlab slab = new WritableSlab(bbuf, 1000, 3000, 16);
+        byte[] key = "key".getBytes();
+        final int keyHash = HASHER.calcHash(key, 0, key.length);
+        int offset = slab.appendEntry(bbuf, key, keyHash, new byte[10], 1);
+        assertEquals(1000, offset);
+        EntryReference ref = slab.findEntry(bbuf, key, keyHash);
+        assertEquals(10, ref.asCacheEntry(key, keyHash).getValue().length);
+        assertEquals(10, ref.asValueBuffer().remaining());
+
+        // value length of 2048 fits in buffer, but not in the slab
+        int lengthOffset = EntryReference.valueLengthOffsetAt(bbuf, offset);
+        bbuf.put(lengthOffset, (byte) 0x90);
+        bbuf.put(lengthOffset+1, (byte) 0x00);
+        ref = slab.findEntry(bbuf, key, keyHash);
+        assertNull(ref.asCacheEntry(key, keyHash));
+        assertNull(ref.asValueBuffer());
+    }
+
+    public void testTombstones()
+    {
+        ByteBuffer bbuf = ByteBuffer.allocate(8000);
+        for (int round = 0; round < 2; ++round) {
+            WritableSlab slab = new WritableSlab(bbuf, round * 4000, (round+1) * 4000, 16);
+            byte[] key1 = "key1".getBytes();
+            byte[] key2 = "key2".getBytes();
+            int hash1 = HASHER.calcHash(key1, 0, key1.length);
+            int hash2 = HASHER.calcHash(key2, 0, key2.length);
+            assertTrue(slab.appendTombstone(bbuf, key2, hash2, 10) >= 0);
+            slab.appendEntry(bbuf, key1, hash1, new byte[5], 20);
+            // tombstones replace entries in the same slab; and are needed as long
+            // as entries committed before them, regardless of minimum given
+            assertTrue(slab.appendTombstone(bbuf, key1, hash1, 5) >= 0);
+            EntryReference ref = slab.findEntry(bbuf, key1, hash1);
+            assertTrue(ref.isTombstone());
+            assertEquals(20, ref.getTimestamp());
+
+            // and are dropped when frozen, if no longer needed
+            ReadOnlySlab frozen = slab.freeze(bbuf, false, (round == 0) ? 0 : 15);
+            assertEquals(2 - round, frozen.getEntryCount());
+            assertTrue(frozen.findEntry(bbuf, key1, hash1).isTombstone());
+            ref = frozen.findEntry(bbuf, key2, hash2);
+            if (round == 0) {
+                assertTrue(ref.isTombstone());
+            } else {
+                assertNull(ref);
+            }
+        }
+    }
+
+    public void testTombstonesShadowOlderSlabs()
+    {
+        ByteBuffer bbuf = ByteBuffer.allocate(4000);
+        WritableSlab slab = new WritableSlab(bbuf, 0, 4000, 16);
+        // entries of older slabs may expire later than those of this slab
+        slab.setOlderMaxExpirationTime(50);
+        byte[] key = "key".getBytes();
+        int hash = HASHER.calcHash(key, 0, key.length);
+        slab.appendEntry(bbuf, key, hash, new byte[5], 20);
+        assertTrue(slab.appendTombstone(bbuf, key, hash, 10) >= 0);
+        EntryReference ref = slab.findEntry(bbuf, key, hash);
+        assertTrue(ref.isTombstone());
+        assertEquals(50, ref.getTimestamp());
+        // so tombstone is retained when frozen
+        ReadOnlySlab frozen = slab.freeze(bbuf, false, 30);
+        assertEquals(1, frozen.getEntryCount());
+        assertTrue(frozen.findEntry(bbuf, key, hash).isTombstone());
+    }
+
+    public void testIndexBucketsFull()
+    {
+        ByteBuffer bbuf = ByteBuffer.allocate(16 * 1024);
+        WritableSlab slab = new WritableSlab(bbuf, 0, 16 * 1024, 128);
+        // with identical hashes, keys can only go in two buckets of 10 slots each
+        int i = 0;
+        for (; i < 30; ++i) {
+            byte[] key = ("key"+i).getBytes();
+            if (slab.appendEntry(bbuf, key, 12345, new byte[1], i) < 0) {
+                break;
+            }
+        }
+        assertEquals(20, i);
+        // after which slab is closed
+        byte[] key = "other".getBytes();
+        assertEquals(-1, slab.appendEntry(bbuf, key, HASHER.calcHash(key, 0, key.length), new byte[1], 1));
+        assertEquals(20, slab.getEntryCount());
+        ReadOnlySlab frozen = slab.freeze(bbuf);
+        assertEquals(20, frozen.getEntryCount());
+        for (i = 0; i < 20; ++i) {
+            assertNotNull(frozen.findEntry(bbuf, ("key"+i).getBytes(), 12345));
+        }
+        assertNull(frozen.findEntry(bbuf, "key20".getBytes(), 12345));
+    }
+
+    public void testLookupRetriedDuringMoves() throws Exception
+    {
+        final ByteBuffer bbuf = ByteBuffer.allocate(4000);
+        final WritableSlab slab = new WritableSlab(bbuf, 0, 4000, 16);
+        final byte[] key = "key".getBytes();
+        final int hash = HASHER.calcHash(key, 0, key.length);
+        final AtomicReference<EntryReference> result = new AtomicReference<EntryReference>();
+        // simulate entries being moved when lookup is made
+        slab._moveCount.incrementAndGet();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(slab.findEntry(bbuf, key, hash));
+            }
+        });
+        reader.start();
+        // miss can not be trusted, so lookup must be retried until moves are done
+        reader.join(100L);
+        assertTrue(reader.isAlive());
+        assertTrue(slab.appendEntry(bbuf, key, hash, new byte[3], 7) >= 0);
+        slab._moveCount.incrementAndGet();
+        reader.join();
+        assertNotNull(result.get());
+        assertEquals(7, result.get().getTimestamp());
+
+        // and with moves done, misses are immediate
+        byte[] key2 = "key2".getBytes();
+        assertNull(slab.findEntry(bbuf, key2, HASHER.calcHash(key2, 0, key2.length)));
+    }
+
+    public void testFreeze()
+    {
+        ByteBuffer bbuf = ByteBuffer.allocate(64 * 1024);
+        // fill with garbage, to verify that reused areas are handled properly
+        for (int i = 0; i < bbuf.capacity(); ++i) {
+            bbuf.put(i, (byte) 0xFF);
+        }
+        WritableSlab slab = new WritableSlab(bbuf, 0, 64 * 1024, 1024);
+        final int COUNT = 700;
+        for (int i = 0; i < COUNT; ++i) {
+            byte[] key = ("key"+i).getBytes();
+            assertTrue(slab.appendEntry(bbuf, key, HASHER.calcHash(key, 0, key.length), new byte[i % 20], i) >= 0);
+        }
+        ReadOnlySlab frozen = slab.freeze(bbuf);
+        assertEquals(COUNT, frozen.getEntryCount());
+        assertEquals(COUNT-1, frozen.getMaxExpirationTime());
+        // no more appends after freezing
+        byte[] key = "foo".getBytes();
+        assertEquals(-1, slab.appendEntry(bbuf, key, HASHER.calcHash(key, 0, key.length), new byte[1], 1));
+
+        for (int i = 0; i < COUNT; ++i) {
+            key = ("key"+i).getBytes();
+            int hash = HASHER.calcHash(key, 0, key.length);
+            assertTrue(frozen.mightContain(bbuf, hash));
+            EntryReference ref = frozen.findEntry(bbuf, key, hash);
+            assertNotNull(ref);
+            assertEquals(i, ref.getTimestamp());
+        }
+        // and Bloom filter should weed out most misses
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; ++i) {
+            key = ("other"+i).getBytes();
+            int hash = HASHER.calcHash(key, 0, key.length);
+            if (frozen.mightContain(bbuf, hash)) {
+                ++falsePositives;
+            }
+            assertNull(frozen.findEntry(bbuf, key, hash));
+        }
+        assertTrue("Too many false positives: "+falsePositives, falsePositives < 500);
+    }
+
+    public void testFreezeWithCollisions()
+    {
+        ByteBuffer bbuf = ByteBuffer.allocate(16 * 1024);
+        WritableSlab slab = new WritableSlab(bbuf, 0, 16 * 1024, 128);
+        // use explicit hashes, 5 keys per hash; both negative and positive
+        for (int i = 0; i < 60; ++i) {
+            byte[] key = ("key"+i).getBytes();
+            assertTrue(slab.appendEntry(bbuf, key, _collidingHash(i), new byte[1], i) >= 0);
+        }
+        ReadOnlySlab frozen = slab.freeze(bbuf);
+        assertEquals(60, frozen.getEntryCount());
+        for (int i = 0; i < 60; ++i) {
+            EntryReference ref = frozen.findEntry(bbuf, ("key"+i).getBytes(), _collidingHash(i));
+            assertNotNull(ref);
+            assertEquals(i, ref.getTimestamp());
+        }
+        assertNull(frozen.findEntry(bbuf, "key60".getBytes(), _collidingHash(60)));
+        assertNull(frozen.findEntry(bbuf, "key0".getBytes(), _collidingHash(5)));
+    }
+
+    private int _collidingHash(int i) {
+        return ((i / 5) - 6) * 0x12345679;
+    }
+
+    public void testFreezePerfectHash()
+    {
+        ByteBuffer bbuf = ByteBuffer.allocate(128 * 1024);
+        for (int i = 0; i < bbuf.capacity(); ++i) {
+            bbuf.put(i, (byte) 0xFF);
+        }
+        final int COUNT = 1500;
+        ReadOnlySlab[] frozen = new ReadOnlySlab[2];
+        for (int round = 0; round < 2; ++round) {
+            int start = round * 64 * 1024;
+            WritableSlab slab = new WritableSlab(bbuf, start, start + 64 * 1024, 2048);
+            for (int i = 0; i < COUNT; ++i) {
+                byte[] key = ("key"+i).getBytes();
+                // include some hash collisions too
+                int hash = (i < 10) ? 12345 : HASHER.calcHash(key, 0, key.length);
+                assertTrue(slab.appendEntry(bbuf, key, hash, new byte[4], i) >= 0);
+            }
+            frozen[round] = slab.freeze(bbuf, round == 1);
+        }
+        assertFalse(frozen[0].usesPerfectHashIndex());
+        assertTrue(frozen[1].usesPerfectHashIndex());
+        // perfect hash index should be much more compact
+        int entryArea = frozen[0].getIndexStartOffset() - frozen[0].getSlabStartOffset();
+        int sortedSize = frozen[0].getUsedSize() - entryArea;
+        int perfectSize = frozen[1].getUsedSize() - entryArea;
+        assertTrue("Index sizes: sorted "+sortedSize+", perfect "+perfectSize,
+                perfectSize * 3 < sortedSize * 2);
+
+        for (ReadOnlySlab slab : frozen) {
+            for (int i = 0; i < COUNT; ++i) {
+                byte[] key = ("key"+i).getBytes();
+                int hash = (i < 10) ? 12345 : HASHER.calcHash(key, 0, key.length);
+                EntryReference ref = slab.findEntry(bbuf, key, hash);
+                assertNotNull(ref);
+                assertEquals(i, ref.getTimestamp());
+            }
+            for (int i = 0; i < 1000; ++i) {
+                byte[] key = ("other"+i).getBytes();
+                assertNull(slab.findEntry(bbuf, key, HASHER.calcHash(key, 0, key.length)));
+            }
+            assertNull(slab.findEntry(bbuf, "other".getBytes(), 12345));
+        }
+    }
+
+    public void testPerfectHashLayoutValidation()
+    {
+        ByteBuffer bbuf = ByteBuffer.allocate(64 * 1024);
+        WritableSlab slab = new WritableSlab(bbuf, 0, bbuf.capacity(), 2048);
+        final int COUNT = 1500;
+        for (int i = 0; i < COUNT; ++i) {
+            byte[] key = ("key"+i).getBytes();
+            int hash = (i < 10) ? 12345 : HASHER.calcHash(key, 0, key.length);
+            assertTrue(slab.appendEntry(bbuf, key, hash, new byte[4], i) >= 0);
+        }
+        PerfectHashIndex index = slab.freeze(bbuf, true).getPerfectHashIndex();
+        assertNotNull(index);
+        final int start = index._bitsStartOffset;
+        final int[] starts = index._levelStarts;
+        final int[] words = index._levelWords;
+        final int rank = index._rankStartOffset;
+        final int slots = index._slotsStartOffset;
+        final int overflow = index._overflowStartOffset;
+        final int overflowCount = index._overflowCount;
+        final int end = index._endOffset;
+
+        assertNotNull(PerfectHashIndex.fromLayout(start, starts, words, rank, slots, overflow,
+                overflowCount, end, COUNT));
+        // any offset not matching the layout must be rejected
+        assertNull(PerfectHashIndex.fromLayout(start, starts, words, rank + 8, slots, overflow,
+                overflowCount, end, COUNT));
+        assertNull(PerfectHashIndex.fromLayout(start, starts, words, rank, -1, overflow,
+                overflowCount, end, COUNT));
+        assertNull(PerfectHashIndex.fromLayout(start, starts, words, rank, slots, Integer.MAX_VALUE,
+                overflowCount, end, COUNT));
+        assertNull(PerfectHashIndex.fromLayout(start, starts, words, rank, slots, overflow,
+                COUNT + 1, end, COUNT));
+        assertNull(PerfectHashIndex.fromLayout(start, starts, words, rank, slots, overflow,
+                overflowCount, end + 1024, COUNT));
+        assertNull(PerfectHashIndex.fromLayout(start, starts, words, rank, slots, overflow,
+                overflowCount, end, COUNT + 1));
+        // as well as inconsistent levels
+        int[] badWords = words.clone();
+        badWords[0] = 0;
+        assertNull(PerfectHashIndex.fromLayout(start, starts, badWords, rank, slots, overflow,
+                overflowCount, end, COUNT));
+        int[] badStarts = starts.clone();
+        badStarts[0] = 1;
+        assertNull(PerfectHashIndex.fromLayout(start, badStarts, words, rank, slots, overflow,
+                overflowCount, end, COUNT));
+        assertNull(PerfectHashIndex.fromLayout(start, new int[starts.length + 1], words, rank, slots, overflow,
+                overflowCount, end, COUNT));
+    }
+}
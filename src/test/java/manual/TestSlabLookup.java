@@ -0,0 +1,143 @@
+package manual;
+
+import java.nio.ByteBuffer;
+
+import com.fasterxml.cachemate.raw.EntryReference;
+import com.fasterxml.cachemate.raw.Hasher;
+import com.fasterxml.cachemate.raw.Murmur3Hasher;
+import com.fasterxml.cachemate.raw.ReadOnlySlab;
+import com.fasterxml.cachemate.raw.WritableSlab;
+
+/* Manually run piece of code that compares lookup speed of frozen slabs
+ * (hash prefix directory, preceded by Bloom filter check; as well as
+ * perfect hash index) against plain binary search over the sorted hash
+ * array of the same slab.
+ */
+public class TestSlabLookup
+{
+    private final static int ROUNDS = 20;
+
+    public static void main(String[] args)
+    {
+        if (args.length != 1) {
+            System.err.println("Usage: java ... [entries]");
+            System.exit(1);
+        }
+        final int count = Integer.parseInt(args[0]);
+        final Hasher hasher = new Murmur3Hasher();
+        // assume less than 64 bytes per entry, including index
+        final int size = count * 64 + 1024;
+        ByteBuffer bbuf = ByteBuffer.allocateDirect(size * 2);
+        WritableSlab wslab = new WritableSlab(bbuf, 0, size, (count * 4) / 3 + 1);
+        WritableSlab wslab2 = new WritableSlab(bbuf, size, size * 2, (count * 4) / 3 + 1);
+
+        byte[][] hitKeys = new byte[count][];
+        int[] hitHashes = new int[count];
+        byte[][] missKeys = new byte[count][];
+        int[] missHashes = new int[count];
+        for (int i = 0; i < count; ++i) {
+            hitKeys[i] = ("key"+i).getBytes();
+            hitHashes[i] = hasher.calcHash(hitKeys[i], 0, hitKeys[i].length);
+            missKeys[i] = ("miss"+i).getBytes();
+            missHashes[i] = hasher.calcHash(missKeys[i], 0, missKeys[i].length);
+            if (wslab.appendEntry(bbuf, hitKeys[i], hitHashes[i], new byte[4], 1) < 0
+                    || wslab2.appendEntry(bbuf, hitKeys[i], hitHashes[i], new byte[4], 1) < 0) {
+                throw new IllegalStateException("Slab full after "+i+" entries");
+            }
+        }
+        ReadOnlySlab slab = wslab.freeze(bbuf);
+        ReadOnlySlab phSlab = wslab2.freeze(bbuf, true);
+        // shuffle lookup order, to avoid sequential access
+        _shuffle(hitKeys, hitHashes);
+
+        for (int round = 0; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < count; ++i) {
+                if (slab.findEntryOffset(bbuf, hitKeys[i], hitHashes[i]) >= 0) {
+                    ++found;
+                }
+            }
+            long dirHits = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                if (slab.findEntryOffset(bbuf, missKeys[i], missHashes[i]) >= 0) {
+                    ++found;
+                }
+            }
+            long dirMisses = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                if (phSlab.findEntryOffset(bbuf, hitKeys[i], hitHashes[i]) >= 0) {
+                    ++found;
+                }
+            }
+            long phHits = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                if (phSlab.findEntryOffset(bbuf, missKeys[i], missHashes[i]) >= 0) {
+                    ++found;
+                }
+            }
+            long phMisses = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                if (_binarySearch(bbuf, slab, hitKeys[i], hitHashes[i]) >= 0) {
+                    ++found;
+                }
+            }
+            long binHits = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                if (_binarySearch(bbuf, slab, missKeys[i], missHashes[i]) >= 0) {
+                    ++found;
+                }
+            }
+            long binMisses = System.nanoTime() - start;
+            System.out.printf("Round %d (%d found): directory %.1f/%.1f ns, perfect hash %.1f/%.1f ns,"
+                    +" binary search %.1f/%.1f ns (hit/miss)\n",
+                    round, found, (double) dirHits / count, (double) dirMisses / count,
+                    (double) phHits / count, (double) phMisses / count,
+                    (double) binHits / count, (double) binMisses / count);
+        }
+    }
+
+    /**
+     * Binary search over sorted hashes, as done before directory was added
+     * (ignoring hash collisions, which do not matter for timing)
+     */
+    private static int _binarySearch(ByteBuffer bbuf, ReadOnlySlab slab, byte[] key, int keyHash)
+    {
+        final int indexStart = slab.getIndexStartOffset();
+        final int count = slab.getEntryCount();
+        int min = 0;
+        int max = count-1;
+        while (min <= max) {
+            int mid = (min + max) >> 1;
+            int currHash = bbuf.getInt(indexStart + (mid << 2));
+            if (currHash > keyHash) {
+                max = mid-1;
+            } else if (currHash < keyHash) {
+                min = mid+1;
+            } else {
+                int offset = bbuf.getInt(indexStart + ((count + mid) << 2));
+                return EntryReference.hasKeyAt(bbuf, offset, key) ? offset : -1;
+            }
+        }
+        return -1;
+    }
+
+    private static void _shuffle(byte[][] keys, int[] hashes)
+    {
+        java.util.Random rnd = new java.util.Random(keys.length);
+        for (int i = keys.length; --i > 0; ) {
+            int j = rnd.nextInt(i+1);
+            byte[] k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+            int h = hashes[i];
+            hashes[i] = hashes[j];
+            hashes[j] = h;
+        }
+    }
+}